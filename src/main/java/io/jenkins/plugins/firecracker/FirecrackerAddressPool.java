@@ -0,0 +1,279 @@
+package io.jenkins.plugins.firecracker;
+
+import hudson.model.Node;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lock-free allocator of guest IP and MAC addresses within a CIDR.
+ *
+ * <p>The first host address of the range is the gateway (the bridge's own address); the
+ * rest are handed out round-robin from a bitmap, so a released address is not reused until
+ * the range wraps. Each address maps to a fixed MAC, {@code AA:FC} followed by the four
+ * address bytes. Pools are shared by network across cloud instances, however its CIDR is
+ * spelled, ranges that overlap one in use are rejected, and a new pool first reserves the
+ * addresses of agents that are already registered with Jenkins.
+ */
+public final class FirecrackerAddressPool {
+    private static final Logger LOGGER = Logger.getLogger(FirecrackerAddressPool.class.getName());
+
+    private static final Map<String, FirecrackerAddressPool> POOLS = new ConcurrentHashMap<>();
+
+    private final String cidr;
+    private final int network;
+    private final int prefixLength;
+    private final int size;
+    private final AtomicLongArray bitmap;
+    private final AtomicInteger next = new AtomicInteger();
+
+    FirecrackerAddressPool(String cidr) {
+        int[] parsed = parseCidr(cidr);
+        this.network = parsed[0];
+        this.prefixLength = parsed[1];
+        this.cidr = formatAddress(network) + "/" + prefixLength;
+        // Excludes the network address, the gateway and the broadcast address
+        this.size = (1 << (32 - prefixLength)) - 3;
+        this.bitmap = new AtomicLongArray((size + 63) / 64);
+    }
+
+    /**
+     * Returns the pool for a CIDR, creating it and reserving the addresses of live agents on first use.
+     *
+     * @throws IllegalArgumentException if the CIDR is malformed, or overlaps a different range in use
+     */
+    public static FirecrackerAddressPool forCidr(String cidr) {
+        int[] parsed = parseCidr(cidr);
+        String key = formatAddress(parsed[0]) + "/" + parsed[1];
+        FirecrackerAddressPool pool = POOLS.get(key);
+        if (pool != null) {
+            return pool;
+        }
+        synchronized (POOLS) {
+            pool = POOLS.get(key);
+            if (pool == null) {
+                for (FirecrackerAddressPool existing : POOLS.values()) {
+                    int mask = -1 << (32 - Math.min(parsed[1], existing.prefixLength));
+                    if ((parsed[0] & mask) == (existing.network & mask)) {
+                        throw new IllegalArgumentException(cidr.trim() + " overlaps " + existing.cidr + ", which is already in use");
+                    }
+                }
+                pool = new FirecrackerAddressPool(key);
+                pool.reserveLiveAgents();
+                POOLS.put(key, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Returns an address to whichever pool it belongs to. Used for agents whose VM handle did
+     * not survive a controller restart.
+     */
+    public static void releaseAddress(String ipAddress) {
+        for (FirecrackerAddressPool pool : POOLS.values()) {
+            int index = pool.indexOf(ipAddress);
+            if (index >= 0) {
+                pool.clear(index);
+            }
+        }
+    }
+
+    public String getCidr() {
+        return cidr;
+    }
+
+    public String getGateway() {
+        return formatAddress(network + 1);
+    }
+
+    public String getNetmask() {
+        return formatAddress(-1 << (32 - prefixLength));
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getAllocatedCount() {
+        int count = 0;
+        for (int i = 0; i < bitmap.length(); i++) {
+            count += Long.bitCount(bitmap.get(i));
+        }
+        return count;
+    }
+
+    public Lease allocate() throws IOException {
+        for (int attempt = 0; attempt < size; attempt++) {
+            int index = Math.floorMod(next.getAndIncrement(), size);
+            if (set(index)) {
+                return new Lease(index);
+            }
+        }
+        throw new IOException("No free addresses left in " + cidr);
+    }
+
+    /**
+     * Leases a particular address, one that was allocated elsewhere; a remote host's daemon
+     * claims the addresses its controller picked for its VMs.
+     */
+    public Lease claim(String ipAddress) throws IOException {
+        int index = indexOf(ipAddress);
+        if (index < 0) {
+            throw new IOException(ipAddress + " is not a guest address in " + cidr);
+        }
+        if (!set(index)) {
+            throw new IOException(ipAddress + " is already in use");
+        }
+        return new Lease(index);
+    }
+
+    void reserve(String ipAddress) {
+        int index = indexOf(ipAddress);
+        if (index >= 0) {
+            set(index);
+        }
+    }
+
+    private void reserveLiveAgents() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return;
+        }
+        for (Node node : jenkins.getNodes()) {
+            if (node instanceof FirecrackerAgent) {
+                String ipAddress = ((FirecrackerAgent) node).getIpAddress();
+                if (indexOf(ipAddress) >= 0) {
+                    LOGGER.log(Level.FINE, "Reserving {0} for existing agent {1}", new Object[]{ipAddress, node.getNodeName()});
+                    reserve(ipAddress);
+                }
+            }
+        }
+    }
+
+    private boolean set(int index) {
+        int word = index >>> 6;
+        long bit = 1L << (index & 63);
+        long current;
+        do {
+            current = bitmap.get(word);
+            if ((current & bit) != 0) {
+                return false;
+            }
+        } while (!bitmap.compareAndSet(word, current, current | bit));
+        return true;
+    }
+
+    private void clear(int index) {
+        int word = index >>> 6;
+        long bit = 1L << (index & 63);
+        long current;
+        do {
+            current = bitmap.get(word);
+        } while (!bitmap.compareAndSet(word, current, current & ~bit));
+    }
+
+    private int indexOf(String ipAddress) {
+        if (ipAddress == null) {
+            return -1;
+        }
+        int address;
+        try {
+            address = parseAddress(ipAddress);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+        long index = (address & 0xFFFFFFFFL) - ((network & 0xFFFFFFFFL) + 2);
+        return index >= 0 && index < size ? (int) index : -1;
+    }
+
+    /**
+     * @return the network address and the prefix length
+     */
+    private static int[] parseCidr(String cidr) {
+        String[] parts = cidr.trim().split("/");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Not a CIDR: " + cidr);
+        }
+        int prefixLength = Integer.parseInt(parts[1]);
+        if (prefixLength < 8 || prefixLength > 29) {
+            throw new IllegalArgumentException("CIDR prefix must be between /8 and /29: " + cidr);
+        }
+        return new int[]{parseAddress(parts[0]) & (-1 << (32 - prefixLength)), prefixLength};
+    }
+
+    private static int parseAddress(String address) {
+        String[] octets = address.trim().split("\\.");
+        if (octets.length != 4) {
+            throw new IllegalArgumentException("Not an IPv4 address: " + address);
+        }
+        int value = 0;
+        for (String octet : octets) {
+            int part = Integer.parseInt(octet);
+            if (part < 0 || part > 255) {
+                throw new IllegalArgumentException("Not an IPv4 address: " + address);
+            }
+            value = (value << 8) | part;
+        }
+        return value;
+    }
+
+    private static String formatAddress(int address) {
+        return ((address >>> 24) & 0xFF) + "." + ((address >>> 16) & 0xFF) + "."
+                + ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+    }
+
+    /**
+     * An address handed out to one VM. Releasing it more than once is harmless.
+     */
+    public final class Lease {
+        private final int index;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(int index) {
+            this.index = index;
+        }
+
+        public String getAddress() {
+            return formatAddress(network + 2 + index);
+        }
+
+        public String getCidr() {
+            return cidr;
+        }
+
+        public String getGateway() {
+            return FirecrackerAddressPool.this.getGateway();
+        }
+
+        public String getNetmask() {
+            return FirecrackerAddressPool.this.getNetmask();
+        }
+
+        public String getMacAddress() {
+            int address = network + 2 + index;
+            return String.format("AA:FC:%02X:%02X:%02X:%02X",
+                    (address >>> 24) & 0xFF, (address >>> 16) & 0xFF, (address >>> 8) & 0xFF, address & 0xFF);
+        }
+
+        /**
+         * Kernel {@code ip=} argument configuring eth0 statically, so the guest needs no DHCP.
+         */
+        public String getKernelBootArg() {
+            return "ip=" + getAddress() + "::" + getGateway() + ":" + getNetmask() + "::eth0:off";
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                clear(index);
+            }
+        }
+    }
+}
@@ -3,19 +3,26 @@ package io.jenkins.plugins.firecracker;
 import hudson.Extension;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
+import hudson.model.Executor;
+import hudson.model.ExecutorListener;
 import hudson.model.Label;
 import hudson.model.Node;
+import hudson.model.Queue;
 import hudson.model.TaskListener;
 import hudson.slaves.AbstractCloudComputer;
 import hudson.slaves.AbstractCloudSlave;
+import hudson.slaves.Cloud;
 import hudson.slaves.ComputerLauncher;
+import hudson.slaves.JNLPLauncher;
 import hudson.slaves.NodeProperty;
 import hudson.slaves.RetentionStrategy;
+import jenkins.model.Jenkins;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,6 +32,15 @@ public class FirecrackerAgent extends AbstractCloudSlave {
     private final String ipAddress;
     private final transient FirecrackerVM vm;
     private final String idleTerminationMinutes;
+    private int startupTimeoutSeconds = 180;
+    private String cloudName;
+    private boolean oneShot;
+    private FirecrackerCloud.LaunchMode launchMode;
+    private String hostName;
+    private String remoteVmId;
+    private transient volatile FirecrackerCapacity.Reservation reservation;
+    private transient volatile FirecrackerMetrics.BootPath bootPath;
+    private transient long provisioningStartMillis;
     
     @DataBoundConstructor
     public FirecrackerAgent(
@@ -61,6 +77,106 @@ public class FirecrackerAgent extends AbstractCloudSlave {
         return idleTerminationMinutes;
     }
     
+    public int getStartupTimeoutSeconds() {
+        return startupTimeoutSeconds;
+    }
+    
+    void setStartupTimeoutSeconds(int startupTimeoutSeconds) {
+        this.startupTimeoutSeconds = startupTimeoutSeconds;
+    }
+    
+    public String getCloudName() {
+        return cloudName;
+    }
+    
+    void setCloudName(String cloudName) {
+        this.cloudName = cloudName;
+    }
+    
+    /**
+     * Whether this agent runs a single task and is then replaced by a fresh VM.
+     */
+    public boolean isOneShot() {
+        return oneShot;
+    }
+    
+    void setOneShot(boolean oneShot) {
+        this.oneShot = oneShot;
+    }
+    
+    /**
+     * The host the VM runs on, or {@code null} if its cloud has no hosts.
+     */
+    public String getHostName() {
+        return hostName;
+    }
+    
+    /**
+     * Records where the VM runs, so that the host's capacity is still counted, and a remote VM
+     * can still be terminated, after a controller restart.
+     */
+    void setPlacement(FirecrackerVM vm) {
+        FirecrackerCapacity.Reservation placed = vm.getReservation();
+        hostName = placed == null ? null : placed.getHostName();
+        remoteVmId = vm instanceof FirecrackerRemoteVM ? vm.getId() : null;
+    }
+    
+    public FirecrackerCloud.LaunchMode getLaunchMode() {
+        return launchMode == null ? FirecrackerCloud.LaunchMode.SSH : launchMode;
+    }
+    
+    /**
+     * Waits for the guest to connect as an inbound WebSocket agent instead of connecting to it.
+     */
+    void setInbound() {
+        JNLPLauncher launcher = new JNLPLauncher();
+        launcher.setWebSocket(true);
+        setLauncher(launcher);
+        launchMode = FirecrackerCloud.LaunchMode.INBOUND;
+    }
+    
+    /**
+     * Whether this is an inbound agent whose guest has not connected yet, and so can become
+     * {@linkplain #isLaunchOverdue() overdue}.
+     */
+    boolean isAwaitingLaunch() {
+        return getLaunchMode() == FirecrackerCloud.LaunchMode.INBOUND && bootPath != null;
+    }
+    
+    /**
+     * Whether this inbound agent has not connected within its startup timeout. SSH launches
+     * fail on their own when the timeout passes.
+     */
+    boolean isLaunchOverdue() {
+        return isAwaitingLaunch()
+                && System.currentTimeMillis() - provisioningStartMillis > TimeUnit.SECONDS.toMillis(startupTimeoutSeconds);
+    }
+    
+    void setReservation(FirecrackerCapacity.Reservation reservation) {
+        this.reservation = reservation;
+    }
+    
+    public FirecrackerMetrics.BootPath getBootPath() {
+        return bootPath;
+    }
+    
+    public long getProvisioningStartMillis() {
+        return provisioningStartMillis;
+    }
+    
+    void setProvisioning(FirecrackerMetrics.BootPath bootPath, long provisioningStartMillis) {
+        this.provisioningStartMillis = provisioningStartMillis;
+        this.bootPath = bootPath;
+    }
+    
+    synchronized boolean clearBootPath() {
+        if (bootPath == null) {
+            return false;
+        }
+        bootPath = null;
+        return true;
+    }
+    
     @Override
     public AbstractCloudComputer<FirecrackerAgent> createComputer() {
         return new FirecrackerComputer(this);
@@ -72,14 +188,66 @@ public class FirecrackerAgent extends AbstractCloudSlave {
         
         try {
             if (vm != null) {
-                vm.terminate();
+                // Runs in the background so idle termination does not hold up the retention check
+                vm.terminateAsync();
+            } else {
+                // The VM handle does not survive a controller restart, but the address lease must not leak
+                if (remoteVmId != null) {
+                    try {
+                        terminateRemoteVm();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to terminate VM " + remoteVmId + " on " + hostName, e);
+                    }
+                }
+                FirecrackerAddressPool.releaseAddress(ipAddress);
+                if (reservation != null) {
+                    reservation.release();
+                }
             }
         } catch (Exception e) {
             LOGGER.log(Level.WARNING, "Failed to terminate Firecracker VM for node " + getNodeName(), e);
         }
     }
     
-    public static class FirecrackerComputer extends AbstractCloudComputer<FirecrackerAgent> {
+    private void terminateRemoteVm() throws IOException, InterruptedException {
+        Cloud cloud = cloudName == null ? null : Jenkins.get().getCloud(cloudName);
+        if (cloud instanceof FirecrackerCloud) {
+            for (FirecrackerHost host : ((FirecrackerCloud) cloud).getHosts()) {
+                if (host instanceof FirecrackerRemoteHost && host.getName().equals(hostName)) {
+                    ((FirecrackerRemoteHost) host).deleteVM(remoteVmId);
+                    return;
+                }
+            }
+        }
+        LOGGER.log(Level.WARNING, "Firecracker host {0} of {1} is no longer configured, its VM {2} is left running",
+                new Object[]{hostName, getNodeName(), remoteVmId});
+    }
+    
+    /**
+     * Terminates a single-use agent once its task has finished and starts warming a replacement
+     * VM at the same moment, so the next queued build does not pay for a full boot.
+     */
+    void taskDone() {
+        Computer.threadPoolForRemoting.submit(() -> {
+            try {
+                terminate();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to terminate single-use agent " + getNodeName(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        
+        Cloud cloud = cloudName == null ? null : Jenkins.get().getCloud(cloudName);
+        if (cloud instanceof FirecrackerCloud) {
+            FirecrackerAgentTemplate template = ((FirecrackerCloud) cloud).getTemplate(getLabelString());
+            if (template != null && template.isOneShot()) {
+                ((FirecrackerCloud) cloud).getWarmPool(template).prewarm();
+            }
+        }
+    }
+    
+    public static class FirecrackerComputer extends AbstractCloudComputer<FirecrackerAgent> implements ExecutorListener {
         public FirecrackerComputer(FirecrackerAgent agent) {
             super(agent);
         }
@@ -88,6 +256,42 @@ public class FirecrackerAgent extends AbstractCloudSlave {
         public FirecrackerAgent getNode() {
             return super.getNode();
         }
+        
+        @Override
+        public void taskAccepted(Executor executor, Queue.Task task) {
+            FirecrackerAgent agent = getNode();
+            if (agent != null && agent.isOneShot()) {
+                setAcceptingTasks(false);
+            }
+            // Give the build the memory an idle balloon took, without holding up the executor on the API call
+            FirecrackerVM vm = agent != null ? agent.getVm() : null;
+            if (vm != null && vm.getBalloonReclaimPercent() > 0) {
+                Computer.threadPoolForRemoting.submit(() -> {
+                    try {
+                        vm.setBalloonTarget(0);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Could not deflate the balloon of VM " + vm.getName(), e);
+                    }
+                });
+            }
+        }
+        
+        @Override
+        public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+            done();
+        }
+        
+        @Override
+        public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+            done();
+        }
+        
+        private void done() {
+            FirecrackerAgent agent = getNode();
+            if (agent != null && agent.isOneShot()) {
+                agent.taskDone();
+            }
+        }
     }
     
     @Extension
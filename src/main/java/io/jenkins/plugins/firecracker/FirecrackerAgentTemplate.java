@@ -1,6 +1,7 @@
 package io.jenkins.plugins.firecracker;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.Describable;
 import hudson.model.Descriptor;
 import hudson.model.Label;
@@ -12,18 +13,42 @@ import org.kohsuke.stapler.DataBoundSetter;
 
 import java.io.IOException;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public class FirecrackerAgentTemplate implements Describable<FirecrackerAgentTemplate> {
     private String description;
     private String labelString;
     private int numExecutors = 1;
+    private int instanceCap = 0;
     private String remoteFS = "/home/jenkins";
     private int startupTimeoutSeconds = 180;
     private List<? extends NodeProperty<?>> nodeProperties = Collections.emptyList();
+    private String vmImagePath;
+    private String kernelImagePath;
+    private int memorySize = 0;
+    private int vcpuCount = 0;
+    private String bootArgs;
+    private String cacheDrives;
+    private String buildCacheImage;
+    private int buildCacheOverlaySizeMb = 4096;
+    private int diskBandwidthMBps;
+    private int diskIops;
+    private int networkBandwidthMbps;
+    private int balloonReclaimPercent;
     private String idleTerminationMinutes = "30";
+    private int minIdleAgents = 0;
+    private int warmPoolMinIdle = 0;
+    private int warmPoolMaxIdle = 0;
+    private int warmPoolRefillConcurrency = 1;
+    private boolean snapshotBoot;
+    private boolean configFileBoot;
+    private boolean oneShot;
+    private String guestEnvironment;
     private transient int templateId;
     
     @DataBoundConstructor
@@ -65,6 +90,19 @@ public class FirecrackerAgentTemplate implements Describable<FirecrackerAgentTem
         this.numExecutors = numExecutors;
     }
     
+    /**
+     * Maximum number of VMs of this template, including booting and warm ones. Zero means no
+     * limit beyond the cloud's.
+     */
+    public int getInstanceCap() {
+        return instanceCap;
+    }
+    
+    @DataBoundSetter
+    public void setInstanceCap(int instanceCap) {
+        this.instanceCap = instanceCap;
+    }
+    
     public String getRemoteFS() {
         return remoteFS;
     }
@@ -83,6 +121,175 @@ public class FirecrackerAgentTemplate implements Describable<FirecrackerAgentTem
         this.startupTimeoutSeconds = startupTimeoutSeconds;
     }
     
+    /**
+     * The rootfs image of this template's VMs, or {@code null} for the cloud's.
+     */
+    public String getVmImagePath() {
+        return vmImagePath;
+    }
+    
+    @DataBoundSetter
+    public void setVmImagePath(String vmImagePath) {
+        this.vmImagePath = Util.fixEmptyAndTrim(vmImagePath);
+    }
+    
+    /**
+     * The kernel of this template's VMs, or {@code null} for the cloud's.
+     */
+    public String getKernelImagePath() {
+        return kernelImagePath;
+    }
+    
+    @DataBoundSetter
+    public void setKernelImagePath(String kernelImagePath) {
+        this.kernelImagePath = Util.fixEmptyAndTrim(kernelImagePath);
+    }
+    
+    /**
+     * Guest memory in MB, or 0 for the cloud's.
+     */
+    public int getMemorySize() {
+        return memorySize;
+    }
+    
+    @DataBoundSetter
+    public void setMemorySize(int memorySize) {
+        this.memorySize = Math.max(0, memorySize);
+    }
+    
+    /**
+     * Guest vCPUs, or 0 for the cloud's.
+     */
+    public int getVcpuCount() {
+        return vcpuCount;
+    }
+    
+    @DataBoundSetter
+    public void setVcpuCount(int vcpuCount) {
+        this.vcpuCount = Math.max(0, vcpuCount);
+    }
+    
+    /**
+     * Kernel arguments appended to the ones every VM gets.
+     */
+    public String getBootArgs() {
+        return bootArgs;
+    }
+    
+    @DataBoundSetter
+    public void setBootArgs(String bootArgs) {
+        this.bootArgs = Util.fixEmptyAndTrim(bootArgs);
+    }
+    
+    public String getCacheDrives() {
+        return cacheDrives;
+    }
+    
+    @DataBoundSetter
+    public void setCacheDrives(String cacheDrives) {
+        this.cacheDrives = cacheDrives;
+    }
+    
+    /**
+     * Images attached read-only after the root filesystem, one path per line, so the guest sees
+     * them as the next block devices in order.
+     */
+    public List<String> getCacheDrivePaths() {
+        List<String> paths = new ArrayList<>();
+        if (cacheDrives != null) {
+            for (String line : cacheDrives.split("\\r?\\n")) {
+                if (!line.trim().isEmpty()) {
+                    paths.add(line.trim());
+                }
+            }
+        }
+        return paths;
+    }
+    
+    /**
+     * The seed image of this template's build cache, or {@code null} for none; see
+     * {@link FirecrackerBuildCache}.
+     */
+    public String getBuildCacheImage() {
+        return buildCacheImage;
+    }
+    
+    @DataBoundSetter
+    public void setBuildCacheImage(String buildCacheImage) {
+        this.buildCacheImage = Util.fixEmptyAndTrim(buildCacheImage);
+    }
+    
+    /**
+     * Size of each VM's writable build cache overlay, in MB.
+     */
+    public int getBuildCacheOverlaySizeMb() {
+        // Templates saved before the setting existed have 0
+        return buildCacheOverlaySizeMb > 0 ? buildCacheOverlaySizeMb : 4096;
+    }
+    
+    @DataBoundSetter
+    public void setBuildCacheOverlaySizeMb(int buildCacheOverlaySizeMb) {
+        this.buildCacheOverlaySizeMb = Math.max(64, buildCacheOverlaySizeMb);
+    }
+    
+    /**
+     * Disk bandwidth of each of a VM's drives, in MB/s; 0 is unlimited.
+     */
+    public int getDiskBandwidthMBps() {
+        return diskBandwidthMBps;
+    }
+    
+    @DataBoundSetter
+    public void setDiskBandwidthMBps(int diskBandwidthMBps) {
+        this.diskBandwidthMBps = Math.max(0, diskBandwidthMBps);
+    }
+    
+    /**
+     * Disk operations per second of each of a VM's drives; 0 is unlimited.
+     */
+    public int getDiskIops() {
+        return diskIops;
+    }
+    
+    @DataBoundSetter
+    public void setDiskIops(int diskIops) {
+        this.diskIops = Math.max(0, diskIops);
+    }
+    
+    /**
+     * Network bandwidth of a VM each way, in Mbit/s; 0 is unlimited.
+     */
+    public int getNetworkBandwidthMbps() {
+        return networkBandwidthMbps;
+    }
+    
+    @DataBoundSetter
+    public void setNetworkBandwidthMbps(int networkBandwidthMbps) {
+        this.networkBandwidthMbps = Math.max(0, networkBandwidthMbps);
+    }
+    
+    /**
+     * The rate limits of this template's VMs, or {@code null} if they are unlimited.
+     */
+    public FirecrackerRateLimits getRateLimits() {
+        FirecrackerRateLimits limits = new FirecrackerRateLimits(
+                diskBandwidthMBps * 1024L * 1024L, diskIops, networkBandwidthMbps * 1000L * 1000L / 8);
+        return limits.isUnlimited() ? null : limits;
+    }
+    
+    /**
+     * Share of a VM's memory its balloon takes back while the agent is idle, in percent; 0
+     * attaches no balloon. See {@link FirecrackerBalloon}.
+     */
+    public int getBalloonReclaimPercent() {
+        return balloonReclaimPercent;
+    }
+    
+    @DataBoundSetter
+    public void setBalloonReclaimPercent(int balloonReclaimPercent) {
+        this.balloonReclaimPercent = Math.max(0, Math.min(90, balloonReclaimPercent));
+    }
+    
     public List<? extends NodeProperty<?>> getNodeProperties() {
         return Collections.unmodifiableList(nodeProperties);
     }
@@ -101,21 +308,131 @@ public class FirecrackerAgentTemplate implements Describable<FirecrackerAgentTem
         this.idleTerminationMinutes = idleTerminationMinutes;
     }
     
+    /**
+     * The idle timeout in milliseconds, or 0 if idle agents are never terminated.
+     */
+    public long getIdleTerminationMillis() {
+        return FirecrackerRetentionStrategy.parseIdleTimeout(idleTerminationMinutes);
+    }
+    
+    public int getMinIdleAgents() {
+        return minIdleAgents;
+    }
+    
+    @DataBoundSetter
+    public void setMinIdleAgents(int minIdleAgents) {
+        this.minIdleAgents = Math.max(0, minIdleAgents);
+    }
+    
+    public int getWarmPoolMinIdle() {
+        return warmPoolMinIdle;
+    }
+    
+    @DataBoundSetter
+    public void setWarmPoolMinIdle(int warmPoolMinIdle) {
+        this.warmPoolMinIdle = Math.max(0, warmPoolMinIdle);
+    }
+    
+    public int getWarmPoolMaxIdle() {
+        return Math.max(warmPoolMinIdle, warmPoolMaxIdle);
+    }
+    
+    @DataBoundSetter
+    public void setWarmPoolMaxIdle(int warmPoolMaxIdle) {
+        this.warmPoolMaxIdle = Math.max(0, warmPoolMaxIdle);
+    }
+    
+    public int getWarmPoolRefillConcurrency() {
+        return warmPoolRefillConcurrency;
+    }
+    
+    @DataBoundSetter
+    public void setWarmPoolRefillConcurrency(int warmPoolRefillConcurrency) {
+        this.warmPoolRefillConcurrency = Math.max(1, warmPoolRefillConcurrency);
+    }
+    
+    public boolean isSnapshotBoot() {
+        return snapshotBoot;
+    }
+    
+    @DataBoundSetter
+    public void setSnapshotBoot(boolean snapshotBoot) {
+        this.snapshotBoot = snapshotBoot;
+    }
+    
+    public boolean isConfigFileBoot() {
+        return configFileBoot;
+    }
+    
+    /**
+     * Boots VMs from a rendered {@code --config-file} instead of configuring them through the API.
+     */
+    @DataBoundSetter
+    public void setConfigFileBoot(boolean configFileBoot) {
+        this.configFileBoot = configFileBoot;
+    }
+    
+    public boolean isOneShot() {
+        return oneShot;
+    }
+    
+    @DataBoundSetter
+    public void setOneShot(boolean oneShot) {
+        this.oneShot = oneShot;
+    }
+    
+    public String getGuestEnvironment() {
+        return guestEnvironment;
+    }
+    
+    @DataBoundSetter
+    public void setGuestEnvironment(String guestEnvironment) {
+        this.guestEnvironment = guestEnvironment;
+    }
+    
+    /**
+     * The guest environment as variables, one {@code NAME=value} per line; blank lines and lines
+     * starting with {@code #} are skipped.
+     */
+    public Map<String, String> getGuestEnvironmentVariables() {
+        Map<String, String> variables = new LinkedHashMap<>();
+        if (guestEnvironment != null) {
+            for (String line : guestEnvironment.split("\\r?\\n")) {
+                int equals = line.indexOf('=');
+                if (!line.trim().isEmpty() && !line.trim().startsWith("#") && equals > 0) {
+                    variables.put(line.substring(0, equals).trim(), line.substring(equals + 1));
+                }
+            }
+        }
+        return variables;
+    }
+    
+    /**
+     * Executors each agent gets; single-use agents run exactly one task, so they get one.
+     */
+    public int getExecutorsPerAgent() {
+        return oneShot ? 1 : numExecutors;
+    }
+    
     public String createNodeName() {
         return "firecracker-" + templateId + "-" + UUID.randomUUID().toString().substring(0, 8);
     }
     
     public FirecrackerAgent createNode(String nodeName, String ipAddress, FirecrackerVM vm) throws Descriptor.FormException, IOException {
-        return new FirecrackerAgent(
+        FirecrackerAgent agent = new FirecrackerAgent(
                 nodeName,
                 description,
                 remoteFS,
-                numExecutors,
+                getExecutorsPerAgent(),
                 labelString == null ? null : new LabelAtom(labelString),
                 nodeProperties,
                 ipAddress,
                 vm,
                 idleTerminationMinutes);
+        agent.setStartupTimeoutSeconds(startupTimeoutSeconds);
+        agent.setOneShot(oneShot);
+        agent.setRetentionStrategy(new FirecrackerRetentionStrategy(idleTerminationMinutes, minIdleAgents));
+        return agent;
     }
     
     @Override
@@ -0,0 +1,361 @@
+package io.jenkins.plugins.firecracker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * HTTP/1.1 client for the Firecracker API socket.
+ *
+ * <p>Keeps a single keep-alive connection to the VM's Unix domain socket and reuses
+ * its request and response buffers, so configuring a VM does not fork a process per call.
+ * Instances are not shared between VMs; calls on one instance are serialized.
+ *
+ * <p>A request on a keep-alive connection that Firecracker has closed is sent again on a new
+ * one if writing it failed, since nothing was processed then. If the connection only closed
+ * once the request was written, it may have been processed, so it is only sent again when
+ * repeating it is harmless: not for {@code /actions} and {@code /snapshot} calls.
+ */
+public class FirecrackerApiClient implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(FirecrackerApiClient.class.getName());
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    private static final long DEFAULT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final Pattern FAULT_MESSAGE = Pattern.compile("\"fault_message\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+    private final Path socketPath;
+    private final long timeoutMillis;
+    private SocketChannel channel;
+    private Selector selector;
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    public FirecrackerApiClient(Path socketPath) {
+        this(socketPath, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    public FirecrackerApiClient(Path socketPath, long timeoutMillis) {
+        this.socketPath = socketPath;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public Path getSocketPath() {
+        return socketPath;
+    }
+
+    /**
+     * Sends a request and throws {@link FirecrackerApiException} if Firecracker answers
+     * with anything other than a 2xx status.
+     */
+    public synchronized Response request(String method, String path, String body) throws IOException {
+        Response response = send(method, path, body);
+        if (!response.isSuccessful()) {
+            throw new FirecrackerApiException(method, path, response.getStatusCode(), parseFaultMessage(response.getBody()));
+        }
+        return response;
+    }
+
+    /**
+     * Sends a request and returns the response whatever its status.
+     */
+    public synchronized Response send(String method, String path, String body) throws IOException {
+        boolean reused = channel != null && channel.isOpen();
+        try {
+            return exchange(method, path, body);
+        } catch (StaleConnectionException e) {
+            closeQuietly();
+            if (!reused) {
+                throw new IOException("Firecracker API closed the connection on " + socketPath, e);
+            }
+            if (e.written && !isRepeatable(method, path)) {
+                throw new IOException("Firecracker API closed the connection on " + socketPath
+                        + " after " + method + " " + path + " was sent; it may or may not have been processed", e);
+            }
+            LOGGER.log(Level.FINE, "Keep-alive connection to {0} went stale, reconnecting", socketPath);
+            return exchange(method, path, body);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closeQuietly();
+    }
+
+    /**
+     * Whether sending a request twice has the same effect as sending it once.
+     */
+    static boolean isRepeatable(String method, String path) {
+        if (method.equals("GET")) {
+            return true;
+        }
+        return !path.startsWith("/actions") && !path.startsWith("/snapshot");
+    }
+
+    private Response exchange(String method, String path, String body) throws IOException {
+        ensureConnected();
+        try {
+            writeRequest(method, path, body);
+        } catch (IOException e) {
+            // Firecracker closes idle connections; a failed write means nothing was processed
+            throw new StaleConnectionException(e, false);
+        }
+        return readResponse();
+    }
+
+    private void ensureConnected() throws IOException {
+        if (channel != null && channel.isOpen()) {
+            return;
+        }
+        channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.connect(UnixDomainSocketAddress.of(socketPath));
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    private void writeRequest(String method, String path, String body) throws IOException {
+        byte[] payload = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        String head = method + " " + path + " HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Accept: application/json\r\n"
+                + (payload.length > 0 ? "Content-Type: application/json\r\n" : "")
+                + "Content-Length: " + payload.length + "\r\n"
+                + "\r\n";
+        byte[] headBytes = head.getBytes(StandardCharsets.US_ASCII);
+
+        writeBuffer = ensureCapacity(writeBuffer, headBytes.length + payload.length);
+        writeBuffer.clear();
+        writeBuffer.put(headBytes).put(payload).flip();
+        while (writeBuffer.hasRemaining()) {
+            // A Unix socket write only returns 0 when the peer stops reading; treat it as a timeout
+            if (channel.write(writeBuffer) == 0) {
+                awaitWritable();
+            }
+        }
+    }
+
+    private Response readResponse() throws IOException {
+        readBuffer.clear();
+        int headerEnd;
+        while ((headerEnd = indexOfHeaderEnd(readBuffer)) < 0) {
+            if (!readMore(readBuffer.position() == 0)) {
+                throw new IOException("Firecracker API closed the connection mid-response on " + socketPath);
+            }
+        }
+
+        String head = new String(readBuffer.array(), 0, headerEnd, StandardCharsets.US_ASCII);
+        String[] lines = head.split("\r\n");
+        int statusCode = parseStatusCode(lines[0]);
+        int contentLength = 0;
+        boolean keepAlive = true;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = lines[i].substring(colon + 1).trim();
+            if (name.equals("content-length")) {
+                contentLength = Integer.parseInt(value);
+            } else if (name.equals("connection") && value.equalsIgnoreCase("close")) {
+                keepAlive = false;
+            } else if (name.equals("transfer-encoding") && !value.equalsIgnoreCase("identity")) {
+                throw new IOException("Unsupported transfer encoding from Firecracker API: " + value);
+            }
+        }
+
+        int bodyStart = headerEnd + 4;
+        readBuffer = ensureCapacity(readBuffer, bodyStart + contentLength);
+        while (readBuffer.position() < bodyStart + contentLength) {
+            if (!readMore(false)) {
+                throw new IOException("Firecracker API closed the connection mid-body on " + socketPath);
+            }
+        }
+        String body = new String(readBuffer.array(), bodyStart, contentLength, StandardCharsets.UTF_8);
+
+        if (!keepAlive) {
+            closeQuietly();
+        }
+        return new Response(statusCode, body);
+    }
+
+    /**
+     * Reads whatever is available into {@link #readBuffer}, growing it when full.
+     *
+     * @param firstRead whether nothing of the response has been seen yet, in which case an
+     *                  immediate EOF means the server dropped an idle keep-alive connection
+     * @return {@code false} on EOF
+     */
+    private boolean readMore(boolean firstRead) throws IOException {
+        if (!readBuffer.hasRemaining()) {
+            readBuffer = ensureCapacity(readBuffer, readBuffer.capacity() * 2);
+        }
+        while (true) {
+            int n;
+            try {
+                n = channel.read(readBuffer);
+            } catch (IOException e) {
+                if (firstRead) {
+                    throw new StaleConnectionException(e, true);
+                }
+                throw e;
+            }
+            if (n > 0) {
+                return true;
+            }
+            if (n < 0) {
+                if (firstRead) {
+                    throw new StaleConnectionException(null, true);
+                }
+                return false;
+            }
+            if (selector.select(timeoutMillis) == 0) {
+                throw new IOException("Timed out after " + timeoutMillis + "ms waiting for Firecracker API on " + socketPath);
+            }
+            selector.selectedKeys().clear();
+        }
+    }
+
+    private void awaitWritable() throws IOException {
+        SelectionKey key = channel.keyFor(selector);
+        key.interestOps(SelectionKey.OP_WRITE);
+        try {
+            if (selector.select(timeoutMillis) == 0) {
+                throw new IOException("Timed out after " + timeoutMillis + "ms writing to Firecracker API on " + socketPath);
+            }
+            selector.selectedKeys().clear();
+        } finally {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error closing Firecracker API connection", e);
+        } finally {
+            selector = null;
+            channel = null;
+        }
+    }
+
+    private static int indexOfHeaderEnd(ByteBuffer buffer) {
+        byte[] data = buffer.array();
+        for (int i = 0; i + 3 < buffer.position(); i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int parseStatusCode(String statusLine) throws IOException {
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Malformed status line from Firecracker API: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed status line from Firecracker API: " + statusLine, e);
+        }
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int required) {
+        if (buffer.capacity() >= required) {
+            return buffer;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(required, buffer.capacity() * 2));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    static String parseFaultMessage(String body) {
+        if (body == null || body.isEmpty()) {
+            return null;
+        }
+        Matcher matcher = FAULT_MESSAGE.matcher(body);
+        if (matcher.find()) {
+            return matcher.group(1).replace("\\\"", "\"").replace("\\\\", "\\");
+        }
+        return body.trim();
+    }
+
+    public static final class Response {
+        private final int statusCode;
+        private final String body;
+
+        Response(int statusCode, String body) {
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public boolean isSuccessful() {
+            return statusCode >= 200 && statusCode < 300;
+        }
+    }
+
+    /**
+     * Thrown when Firecracker rejects an API call.
+     */
+    public static class FirecrackerApiException extends IOException {
+        private final int statusCode;
+        private final String faultMessage;
+
+        public FirecrackerApiException(String method, String path, int statusCode, String faultMessage) {
+            super(method + " " + path + " failed with status " + statusCode
+                    + (faultMessage == null ? "" : ": " + faultMessage));
+            this.statusCode = statusCode;
+            this.faultMessage = faultMessage;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getFaultMessage() {
+            return faultMessage;
+        }
+    }
+
+    private static final class StaleConnectionException extends IOException {
+        // Whether the whole request reached the socket before the connection closed
+        final boolean written;
+
+        StaleConnectionException(IOException cause, boolean written) {
+            super("Connection closed before a response was received", cause);
+            this.written = written;
+        }
+    }
+}
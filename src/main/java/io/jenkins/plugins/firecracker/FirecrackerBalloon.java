@@ -0,0 +1,174 @@
+package io.jenkins.plugins.firecracker;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import net.sf.json.JSONObject;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reclaims guest memory from idle agents with Firecracker's balloon device, so hosts can run more
+ * VMs than their templates' peak memory sizes would allow.
+ *
+ * <p>VMs of templates with an idle reclaim percentage get a balloon that starts deflated, with
+ * deflate-on-OOM set so the guest can take pages back under memory pressure. {@link Policy}
+ * inflates it on agents that have been idle for {@link #IDLE_SECONDS}, and the agent deflates
+ * it as soon as it accepts a task. The balloon is never inflated into the last
+ * {@link #HEADROOM_MB} of memory the guest reports as available.
+ */
+public final class FirecrackerBalloon {
+    private static final Logger LOGGER = Logger.getLogger(FirecrackerBalloon.class.getName());
+
+    /**
+     * How often the guest's balloon driver reports memory statistics, in seconds.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static /* non-final for script console */ int STATS_INTERVAL_SECONDS =
+            SystemProperties.getInteger(FirecrackerBalloon.class.getName() + ".statsIntervalSeconds", 5);
+
+    /**
+     * How long an agent has to be idle before its balloon is inflated.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static /* non-final for script console */ long IDLE_SECONDS =
+            SystemProperties.getLong(FirecrackerBalloon.class.getName() + ".idleSeconds", 60L);
+
+    /**
+     * Available guest memory, in MB, that inflating the balloon leaves alone.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static /* non-final for script console */ int HEADROOM_MB =
+            SystemProperties.getInteger(FirecrackerBalloon.class.getName() + ".headroomMb", 128);
+
+    private FirecrackerBalloon() {
+    }
+
+    /**
+     * The balloon size for an idle VM: {@code reclaimPercent} of its memory, or less if the guest
+     * would be left with under {@link #HEADROOM_MB} available.
+     *
+     * @param statistics the guest's last report, or {@code null} if there is none yet
+     */
+    static int idleTargetMb(int memoryMb, int reclaimPercent, Statistics statistics) {
+        int target = (int) ((long) memoryMb * reclaimPercent / 100);
+        if (statistics != null && statistics.getAvailableMemoryBytes() >= 0) {
+            long available = statistics.getAvailableMemoryBytes() / (1024 * 1024);
+            target = (int) Math.min(target, statistics.getActualMb() + available - HEADROOM_MB);
+        }
+        return Math.max(0, target);
+    }
+
+    /**
+     * The balloon and guest memory statistics of a VM, from {@code GET /balloon/statistics}.
+     * Guest figures the driver did not report are -1.
+     */
+    public static final class Statistics {
+        private final int targetMb;
+        private final int actualMb;
+        private final long availableMemoryBytes;
+        private final long totalMemoryBytes;
+        private final long majorFaults;
+        private final long swapIn;
+        private final long swapOut;
+
+        Statistics(int targetMb, int actualMb, long availableMemoryBytes, long totalMemoryBytes,
+                   long majorFaults, long swapIn, long swapOut) {
+            this.targetMb = targetMb;
+            this.actualMb = actualMb;
+            this.availableMemoryBytes = availableMemoryBytes;
+            this.totalMemoryBytes = totalMemoryBytes;
+            this.majorFaults = majorFaults;
+            this.swapIn = swapIn;
+            this.swapOut = swapOut;
+        }
+
+        static Statistics fromJson(JSONObject json) {
+            return new Statistics(json.optInt("target_mib"), json.optInt("actual_mib"),
+                    json.optLong("available_memory", -1), json.optLong("total_memory", -1),
+                    json.optLong("major_faults", -1), json.optLong("swap_in", -1), json.optLong("swap_out", -1));
+        }
+
+        public int getTargetMb() {
+            return targetMb;
+        }
+
+        /**
+         * Memory the balloon holds, which the host can use for other VMs.
+         */
+        public int getActualMb() {
+            return actualMb;
+        }
+
+        public long getAvailableMemoryBytes() {
+            return availableMemoryBytes;
+        }
+
+        public long getTotalMemoryBytes() {
+            return totalMemoryBytes;
+        }
+
+        public long getMajorFaults() {
+            return majorFaults;
+        }
+
+        public long getSwapIn() {
+            return swapIn;
+        }
+
+        public long getSwapOut() {
+            return swapOut;
+        }
+    }
+
+    /**
+     * Refreshes the statistics of every agent's balloon and inflates the balloons of idle agents.
+     */
+    @Extension
+    public static class Policy extends AsyncPeriodicWork {
+        public Policy() {
+            super("Firecracker balloon policy");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.SECONDS.toMillis(15);
+        }
+
+        @Override
+        protected void execute(TaskListener listener) {
+            for (Node node : Jenkins.get().getNodes()) {
+                if (!(node instanceof FirecrackerAgent)) {
+                    continue;
+                }
+                FirecrackerVM vm = ((FirecrackerAgent) node).getVm();
+                Computer computer = node.toComputer();
+                if (vm == null || computer == null || vm.getBalloonReclaimPercent() == 0 || !vm.isAlive()) {
+                    continue;
+                }
+                try {
+                    Statistics statistics = vm.refreshBalloonStatistics();
+                    if (isIdle(computer)) {
+                        vm.inflateBalloonIfIdle(idleTargetMb(vm.getMemorySize(), vm.getBalloonReclaimPercent(), statistics),
+                                () -> isIdle(computer));
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Could not update the balloon of VM " + vm.getName(), e);
+                }
+            }
+        }
+
+        private static boolean isIdle(Computer computer) {
+            return computer.isIdle() && computer.isOnline()
+                    && System.currentTimeMillis() - computer.getIdleStartMilliseconds() >= TimeUnit.SECONDS.toMillis(IDLE_SECONDS);
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package io.jenkins.plugins.firecracker;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.util.SystemProperties;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A dependency cache shared by a template's VMs, so Maven, Gradle and npm caches do not start
+ * cold in every VM.
+ *
+ * <p>Each VM gets the current generation of the cache image attached read-only, plus a writable
+ * overlay drive of its own, an empty ext4 filesystem. The guest mounts an overlayfs with its
+ * upper directory at {@code /upper} on the overlay drive. When the VM terminates its overlay is
+ * kept, and {@link Merge} periodically folds the kept overlays into a new generation:
+ * the current generation and each overlay's {@code /upper} are extracted with {@code debugfs
+ * rdump}, overlaid in order, and packed into a new image with {@code mke2fs -d}. Every file is
+ * given the owner of the seed image's root directory. Overlayfs whiteouts are not carried over,
+ * so files are never removed from the cache.
+ *
+ * <p>File names in an overlay are chosen by the guest, and {@code debugfs} commands cannot
+ * escape them. Files whose names contain a quote, a backslash or a control character are
+ * therefore dropped from every extracted tree before anything is merged, and no name that
+ * could end a quoted {@code debugfs} argument is ever passed to it.
+ *
+ * <p>Generations live in a {@code firecracker-build-cache} directory next to the seed image. A
+ * {@code current} symlink names the generation new VMs get and is replaced atomically, so a
+ * VM always sees one complete generation. Running VMs keep the generation they were started
+ * with; generations older than the previous one are deleted.
+ */
+public final class FirecrackerBuildCache {
+    private static final Logger LOGGER = Logger.getLogger(FirecrackerBuildCache.class.getName());
+
+    /**
+     * Minutes between merges.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static /* non-final for script console */ long MERGE_PERIOD_MINUTES =
+            SystemProperties.getLong(FirecrackerBuildCache.class.getName() + ".mergePeriodMinutes", 30L);
+
+    /**
+     * Directory on the overlay drive whose contents are merged back.
+     */
+    public static final String UPPER_DIR = "upper";
+
+    // Overlays waiting for a merge; the oldest are dropped beyond this
+    private static final int MAX_PENDING_OVERLAYS = 16;
+    private static final Pattern GENERATION = Pattern.compile("gen-(\\d+)\\.ext4");
+
+    private static final Map<Path, FirecrackerBuildCache> CACHES = new ConcurrentHashMap<>();
+
+    private final Path seedImage;
+    private final Path dir;
+    private final Object mergeLock = new Object();
+    // Guarded by this
+    private final Deque<Path> pending = new ArrayDeque<>();
+
+    FirecrackerBuildCache(Path seedImage) {
+        this.seedImage = seedImage.toAbsolutePath();
+        this.dir = this.seedImage.getParent().resolve("firecracker-build-cache").resolve(this.seedImage.getFileName().toString());
+    }
+
+    /**
+     * Returns the cache seeded from an image, shared by every template that uses the image.
+     */
+    public static FirecrackerBuildCache forImage(String seedImage) {
+        return CACHES.computeIfAbsent(Paths.get(seedImage).toAbsolutePath(), FirecrackerBuildCache::new);
+    }
+
+    /**
+     * The image new VMs get: the latest generation, or the seed image before the first merge.
+     */
+    public Path getCurrentImage() throws IOException {
+        Path current = dir.resolve("current");
+        if (Files.isSymbolicLink(current)) {
+            return dir.resolve(Files.readSymbolicLink(current));
+        }
+        return seedImage;
+    }
+
+    /**
+     * The number of merges that went into the current image, 0 for the seed image.
+     */
+    public int getGeneration() throws IOException {
+        Matcher matcher = GENERATION.matcher(getCurrentImage().getFileName().toString());
+        return matcher.matches() ? Integer.parseInt(matcher.group(1)) : 0;
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Pins the current generation for one VM and creates its empty overlay drive.
+     */
+    Lease lease(String vmId, int overlaySizeMb) throws IOException, InterruptedException {
+        Path image = getCurrentImage();
+        Path overlays = dir.resolve("overlays");
+        Files.createDirectories(overlays);
+        Path overlay = overlays.resolve(vmId + ".ext4");
+        // Formatting once and cloning the result is cheaper than running mke2fs for every VM
+        run("cp", "--reflink=auto", "--sparse=always", emptyOverlay(overlaySizeMb).toString(), overlay.toString());
+        return new Lease(image, overlay);
+    }
+
+    private synchronized Path emptyOverlay(int sizeMb) throws IOException, InterruptedException {
+        Path empty = dir.resolve("empty-" + sizeMb + "m.ext4");
+        if (!Files.exists(empty)) {
+            Files.createDirectories(dir);
+            Path building = dir.resolve(empty.getFileName() + ".tmp");
+            Files.deleteIfExists(building);
+            run("mke2fs", "-q", "-F", "-t", "ext4", "-L", "buildcache-rw", building.toString(), sizeMb + "M");
+            Files.move(building, empty, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return empty;
+    }
+
+    private void offer(Path overlay) throws IOException {
+        Path dropped = null;
+        synchronized (this) {
+            pending.addLast(overlay);
+            if (pending.size() > MAX_PENDING_OVERLAYS) {
+                dropped = pending.pollFirst();
+            }
+        }
+        if (dropped != null) {
+            LOGGER.log(Level.FINE, "Dropping build cache overlay {0}, too many are waiting to be merged", dropped);
+            Files.deleteIfExists(dropped);
+        }
+    }
+
+    /**
+     * Folds the overlays of terminated VMs into a new generation and makes it current.
+     *
+     * @return the new generation's image, or {@code null} if there was nothing to merge
+     */
+    Path merge() throws IOException, InterruptedException {
+        synchronized (mergeLock) {
+            List<Path> overlays;
+            synchronized (this) {
+                overlays = new ArrayList<>(pending);
+                pending.clear();
+            }
+            if (overlays.isEmpty()) {
+                return null;
+            }
+
+            Path base = getCurrentImage();
+            int generation = getGeneration() + 1;
+            Path staging = Files.createTempDirectory(dir, "merge.");
+            try {
+                Path tree = Files.createDirectory(staging.resolve("tree"));
+                String owner = dump(base, "/", tree);
+                prune(tree);
+                int merged = 0;
+                for (int i = 0; i < overlays.size(); i++) {
+                    Path overlay = overlays.get(i);
+                    Path upper = Files.createDirectory(staging.resolve("upper" + i));
+                    try {
+                        dump(overlay, "/" + UPPER_DIR, upper);
+                        prune(upper);
+                        overlay(upper, tree);
+                        merged++;
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Skipping build cache overlay " + overlay, e);
+                    }
+                }
+
+                if (merged == 0) {
+                    return null;
+                }
+
+                Path building = staging.resolve("image.ext4");
+                long sizeKb = Math.max(Files.size(base), size(tree) * 5 / 4 + 64L * 1024 * 1024) / 1024;
+                run("mke2fs", "-q", "-F", "-t", "ext4", "-L", "buildcache", "-E", "root_owner=" + owner,
+                        "-d", tree.toString(), building.toString(), sizeKb + "k");
+                chown(building, tree, owner);
+
+                Path image = dir.resolve(String.format("gen-%06d.ext4", generation));
+                Files.move(building, image, StandardCopyOption.ATOMIC_MOVE);
+                Path link = dir.resolve("current.tmp");
+                Files.deleteIfExists(link);
+                Files.createSymbolicLink(link, image.getFileName());
+                Files.move(link, dir.resolve("current"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                LOGGER.log(Level.INFO, "Build cache {0} is now at generation {1}, merged from {2} VMs",
+                        new Object[]{seedImage, generation, merged});
+
+                deleteGenerationsBefore(generation - 1);
+                return image;
+            } finally {
+                Util.deleteRecursive(staging.toFile());
+                for (Path overlay : overlays) {
+                    Files.deleteIfExists(overlay);
+                }
+            }
+        }
+    }
+
+    /**
+     * Extracts a directory of an ext4 image into {@code target}.
+     *
+     * @return the {@code uid:gid} owning the directory
+     */
+    private static String dump(Path image, String directory, Path target) throws IOException, InterruptedException {
+        String owner = "0:0";
+        StringBuilder rdump = new StringBuilder("rdump");
+        boolean any = false;
+        for (String line : run("debugfs", "-R", "ls -p " + quote(directory), image.toString()).split("\n")) {
+            // /inode/mode/uid/gid/name/size/
+            String[] fields = line.split("/", -1);
+            if (fields.length < 7) {
+                continue;
+            }
+            String name = fields[5];
+            if (!isSafeName(name)) {
+                LOGGER.log(Level.FINE, "Skipping {0} in {1}, its name cannot be passed to debugfs", new Object[]{directory, image});
+            } else if (name.equals(".")) {
+                owner = fields[3] + ":" + fields[4];
+            } else if (!name.equals("..") && !(directory.equals("/") && name.equals("lost+found"))) {
+                rdump.append(' ').append(quote(directory.equals("/") ? "/" + name : directory + "/" + name));
+                any = true;
+            }
+        }
+        if (any) {
+            run("debugfs", "-R", rdump.append(' ').append(quote(target.toString())).toString(), image.toString());
+        }
+        return owner;
+    }
+
+    /**
+     * Deletes every file and directory under {@code tree} whose name is not {@link #isSafeName safe}.
+     */
+    private static void prune(Path tree) throws IOException {
+        List<Path> unsafe;
+        try (Stream<Path> walk = Files.walk(tree)) {
+            unsafe = walk.skip(1).filter(path -> !isSafeName(path.getFileName().toString())).collect(Collectors.toList());
+        }
+        for (Path path : unsafe) {
+            if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                LOGGER.log(Level.WARNING, "Dropping {0} from the build cache, its name cannot be passed to debugfs",
+                        tree.relativize(path).toString().replaceAll("\\p{Cntrl}", "?"));
+                Util.deleteRecursive(path.toFile());
+            }
+        }
+    }
+
+    /**
+     * Whether a file name can be quoted in a {@code debugfs} command, which has no escapes.
+     */
+    static boolean isSafeName(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '"' || c == '\\' || Character.isISOControl(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves everything under {@code upper} into {@code tree}, replacing what is there.
+     */
+    private static void overlay(Path upper, Path tree) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(upper)) {
+            paths = new ArrayList<>(walk.skip(1).collect(Collectors.toList()));
+        }
+        for (Path path : paths) {
+            Path target = tree.resolve(upper.relativize(path).toString());
+            boolean directory = Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+            if (Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS) != directory && Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+                Util.deleteRecursive(target.toFile());
+            }
+            if (directory) {
+                Files.createDirectories(target);
+            } else {
+                Files.move(path, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    /**
+     * Gives every file the cache's owner; {@code mke2fs -d} copies the controller user's.
+     */
+    private static void chown(Path image, Path tree, String owner) throws IOException, InterruptedException {
+        String[] ids = owner.split(":");
+        Path script = tree.resolveSibling("chown.debugfs");
+        List<String> commands = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(tree)) {
+            for (Path path : (Iterable<Path>) walk.skip(1)::iterator) {
+                String file = quote("/" + tree.relativize(path).toString());
+                commands.add("sif " + file + " uid " + ids[0]);
+                commands.add("sif " + file + " gid " + ids[1]);
+            }
+        }
+        if (!commands.isEmpty()) {
+            Files.write(script, commands, StandardCharsets.UTF_8);
+            run("debugfs", "-w", "-f", script.toString(), image.toString());
+        }
+    }
+
+    private void deleteGenerationsBefore(int generation) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Matcher matcher = GENERATION.matcher(file.getFileName().toString());
+                // Running VMs keep their open image even once it is unlinked
+                if (matcher.matches() && Integer.parseInt(matcher.group(1)) < generation) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private static long size(Path tree) throws IOException {
+        try (Stream<Path> walk = Files.walk(tree)) {
+            return walk.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+
+    private static String quote(String path) throws IOException {
+        if (!isSafeName(path)) {
+            throw new IOException("Refusing to pass an unsafe path to debugfs");
+        }
+        return "\"" + path + "\"";
+    }
+
+    private static String run(String... command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).start();
+        CompletableFuture<String> errors = CompletableFuture.supplyAsync(() -> readQuietly(process.getErrorStream()));
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        if (!process.waitFor(30, TimeUnit.MINUTES)) {
+            process.destroyForcibly();
+            throw new IOException("Timed out: " + String.join(" ", command));
+        }
+        if (process.exitValue() != 0) {
+            throw new IOException(String.join(" ", command) + " failed: " + errors.join().trim());
+        }
+        return output;
+    }
+
+    private static String readQuietly(InputStream in) {
+        try {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    /**
+     * One VM's view of the cache. Releasing it more than once is harmless.
+     */
+    public final class Lease {
+        private final Path image;
+        private final Path overlay;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(Path image, Path overlay) {
+            this.image = image;
+            this.overlay = overlay;
+        }
+
+        /**
+         * The generation attached read-only.
+         */
+        public Path getImage() {
+            return image;
+        }
+
+        public Path getOverlay() {
+            return overlay;
+        }
+
+        /**
+         * Hands the overlay to the next merge if the guest ran, and deletes it otherwise.
+         */
+        public void release(boolean merge) throws IOException {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            if (merge) {
+                offer(overlay);
+            } else {
+                Files.deleteIfExists(overlay);
+            }
+        }
+    }
+
+    /**
+     * Merges every cache that has overlays waiting.
+     */
+    @Extension
+    public static class Merge extends AsyncPeriodicWork {
+        public Merge() {
+            super("Firecracker build cache merge");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(Math.max(1, MERGE_PERIOD_MINUTES));
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws InterruptedException {
+            for (FirecrackerBuildCache cache : CACHES.values()) {
+                if (cache.getPendingCount() == 0) {
+                    continue;
+                }
+                try {
+                    cache.merge();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to merge build cache " + cache.seedImage, e);
+                }
+            }
+        }
+    }
+}
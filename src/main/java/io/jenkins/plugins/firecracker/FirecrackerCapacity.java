@@ -0,0 +1,361 @@
+package io.jenkins.plugins.firecracker;
+
+import hudson.model.Node;
+import hudson.slaves.Cloud;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Instance and resource accounting for one cloud.
+ *
+ * <p>A slot is reserved before a VM is created and held by the VM until it terminates, so
+ * VMs that are still booting, idle in a warm pool or running an agent all count. Each VM counts
+ * with its template's memory and vCPUs. Limits are checked per cloud, by instances, memory and
+ * vCPUs, and per template. The controller's memory and vCPU budget covers every VM that runs on
+ * the controller itself, whichever cloud it belongs to and whether it runs an agent, waits in a
+ * warm pool or is a golden snapshot VM; VMs on remote hosts do not count against it. Clouds
+ * each set the budget, and the smallest one applies. Clouds with hosts also place each VM on a
+ * host that has room for it, chosen by the {@link FirecrackerScheduler}; usage is tracked per
+ * host name across clouds. All checks are constant time under one lock, apart from the walks
+ * over a cloud's hosts and over the configured clouds for the budget; the Jenkins node list is
+ * only walked once per cloud, to pick up agents that survived a controller restart.
+ */
+public final class FirecrackerCapacity {
+    private static final Logger LOGGER = Logger.getLogger(FirecrackerCapacity.class.getName());
+
+    private static final Map<String, FirecrackerCapacity> CLOUDS = new ConcurrentHashMap<>();
+
+    // Usage of VMs running on the controller, guarded by FirecrackerCapacity.class
+    private static long hostMemoryMb;
+    private static int hostVcpus;
+    private static final Map<String, HostUsage> HOSTS = new HashMap<>();
+
+    private final String cloudName;
+    // Guarded by FirecrackerCapacity.class
+    private int instances;
+    private long memoryMb;
+    private int vcpus;
+    private final Map<String, Integer> templateInstances = new HashMap<>();
+
+    FirecrackerCapacity(String cloudName) {
+        this.cloudName = cloudName;
+    }
+
+    public static FirecrackerCapacity forCloud(String cloudName) {
+        return CLOUDS.computeIfAbsent(cloudName, name -> {
+            FirecrackerCapacity capacity = new FirecrackerCapacity(name);
+            capacity.reserveLiveAgents();
+            return capacity;
+        });
+    }
+
+    /**
+     * Reserves a slot for one VM of the template, in the template's shape, if the cloud, the
+     * template and the host all have room, on one of the cloud's hosts if it has any.
+     *
+     * @return the reservation, or {@code null} if any limit would be exceeded
+     */
+    public Reservation tryReserve(FirecrackerCloud cloud, FirecrackerAgentTemplate template) {
+        return tryReserve(templateKey(template.getLabelString()), template.getInstanceCap(), cloud.getInstanceCap(),
+                cloud.getMemorySize(template), cloud.getVcpuCount(template), cloud.getMemoryCapMb(), cloud.getVcpuCap(),
+                controllerBudget(cloud, FirecrackerCloud::getHostMemoryBudgetMb),
+                (int) controllerBudget(cloud, FirecrackerCloud::getHostVcpuBudget), cloud.getHosts(), cloud.getPlacement());
+    }
+
+    /**
+     * Reserves the controller's budget for a VM of the template's shape that always runs on the
+     * controller and never becomes an agent, such as a golden snapshot VM. It counts against no
+     * cloud or template limit.
+     *
+     * @return the reservation, or {@code null} if the budget would be exceeded
+     */
+    public Reservation tryReserveOnController(FirecrackerCloud cloud, FirecrackerAgentTemplate template) {
+        return tryReserveOnController(cloud.getMemorySize(template), cloud.getVcpuCount(template),
+                controllerBudget(cloud, FirecrackerCloud::getHostMemoryBudgetMb),
+                (int) controllerBudget(cloud, FirecrackerCloud::getHostVcpuBudget), cloud.getHosts());
+    }
+
+    Reservation tryReserveOnController(int memoryMb, int vcpus, long hostMemoryBudgetMb, int hostVcpuBudget,
+                                       List<FirecrackerHost> hosts) {
+        synchronized (FirecrackerCapacity.class) {
+            if (exceedsBudget(memoryMb, vcpus, hostMemoryBudgetMb, hostVcpuBudget)) {
+                return null;
+            }
+            // Count it on the cloud's entry for the controller, if it lists one
+            FirecrackerHost controller = null;
+            for (FirecrackerHost host : hosts) {
+                if (!(host instanceof FirecrackerRemoteHost)) {
+                    controller = host;
+                    break;
+                }
+            }
+            return reserve(null, memoryMb, vcpus, controller, controller == null ? null : controller.getName(), true);
+        }
+    }
+
+    /**
+     * Caps and budgets of zero or less mean unlimited.
+     */
+    Reservation tryReserve(String templateKey, int templateCap, int cloudCap, int memoryMb, int vcpus,
+                           long cloudMemoryCapMb, int cloudVcpuCap, long hostMemoryBudgetMb, int hostVcpuBudget) {
+        return tryReserve(templateKey, templateCap, cloudCap, memoryMb, vcpus, cloudMemoryCapMb, cloudVcpuCap,
+                hostMemoryBudgetMb, hostVcpuBudget, Collections.emptyList(), FirecrackerScheduler.Placement.PACK);
+    }
+
+    /**
+     * As above, additionally placing the VM on one of {@code hosts} unless the list is empty.
+     * Draining hosts are skipped.
+     */
+    Reservation tryReserve(String templateKey, int templateCap, int cloudCap, int memoryMb, int vcpus,
+                           long cloudMemoryCapMb, int cloudVcpuCap, long hostMemoryBudgetMb, int hostVcpuBudget,
+                           List<FirecrackerHost> hosts, FirecrackerScheduler.Placement placement) {
+        synchronized (FirecrackerCapacity.class) {
+            int templateCount = templateInstances.getOrDefault(templateKey, 0);
+            if ((cloudCap > 0 && instances >= cloudCap)
+                    || (templateCap > 0 && templateCount >= templateCap)
+                    || (cloudMemoryCapMb > 0 && this.memoryMb + memoryMb > cloudMemoryCapMb)
+                    || (cloudVcpuCap > 0 && this.vcpus + vcpus > cloudVcpuCap)) {
+                return null;
+            }
+            boolean controllerFull = exceedsBudget(memoryMb, vcpus, hostMemoryBudgetMb, hostVcpuBudget);
+            if (hosts.isEmpty()) {
+                return controllerFull ? null : reserve(templateKey, memoryMb, vcpus, null, null, true);
+            }
+
+            Map<String, FirecrackerHost> byName = new HashMap<>();
+            List<FirecrackerScheduler.Candidate> candidates = new ArrayList<>();
+            for (FirecrackerHost host : hosts) {
+                boolean remote = host instanceof FirecrackerRemoteHost;
+                if (!host.isDraining() && (remote || !controllerFull) && byName.putIfAbsent(host.getName(), host) == null) {
+                    HostUsage usage = HOSTS.getOrDefault(host.getName(), new HostUsage());
+                    candidates.add(new FirecrackerScheduler.Candidate(host.getName(), host.getMemoryCapacityMb(),
+                            host.getVcpuCapacity(), usage.memoryMb, usage.vcpus, usage.instances));
+                }
+            }
+            FirecrackerScheduler.Candidate chosen = FirecrackerScheduler.choose(candidates, memoryMb, vcpus, placement);
+            if (chosen == null) {
+                return null;
+            }
+            FirecrackerHost host = byName.get(chosen.name);
+            return reserve(templateKey, memoryMb, vcpus, host, host.getName(), !(host instanceof FirecrackerRemoteHost));
+        }
+    }
+
+    private static boolean exceedsBudget(int memoryMb, int vcpus, long hostMemoryBudgetMb, int hostVcpuBudget) {
+        return (hostMemoryBudgetMb > 0 && hostMemoryMb + memoryMb > hostMemoryBudgetMb)
+                || (hostVcpuBudget > 0 && hostVcpus + vcpus > hostVcpuBudget);
+    }
+
+    /**
+     * The smallest positive budget any configured Firecracker cloud sets, since they all share
+     * the controller.
+     */
+    private static long controllerBudget(FirecrackerCloud cloud, ToLongFunction<FirecrackerCloud> budget) {
+        long smallest = budget.applyAsLong(cloud);
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins != null) {
+            for (FirecrackerCloud other : jenkins.clouds.getAll(FirecrackerCloud.class)) {
+                long value = budget.applyAsLong(other);
+                if (value > 0 && (smallest <= 0 || value < smallest)) {
+                    smallest = value;
+                }
+            }
+        }
+        return smallest;
+    }
+
+    public int getInstanceCount() {
+        synchronized (FirecrackerCapacity.class) {
+            return instances;
+        }
+    }
+
+    public int getInstanceCount(String labelString) {
+        synchronized (FirecrackerCapacity.class) {
+            return templateInstances.getOrDefault(templateKey(labelString), 0);
+        }
+    }
+
+    /**
+     * Guest memory reserved by this cloud's VMs, in MB.
+     */
+    public long getMemoryMb() {
+        synchronized (FirecrackerCapacity.class) {
+            return memoryMb;
+        }
+    }
+
+    public int getVcpus() {
+        synchronized (FirecrackerCapacity.class) {
+            return vcpus;
+        }
+    }
+
+    /**
+     * Guest memory reserved by VMs running on the controller, in MB.
+     */
+    public static long getHostMemoryMb() {
+        synchronized (FirecrackerCapacity.class) {
+            return hostMemoryMb;
+        }
+    }
+
+    public static int getHostVcpus() {
+        synchronized (FirecrackerCapacity.class) {
+            return hostVcpus;
+        }
+    }
+
+    /**
+     * VMs placed on the named host by any cloud.
+     */
+    public static int getInstanceCountOn(String hostName) {
+        synchronized (FirecrackerCapacity.class) {
+            HostUsage usage = HOSTS.get(hostName);
+            return usage == null ? 0 : usage.instances;
+        }
+    }
+
+    /**
+     * Counts a VM. Agent VMs have a template key and count against the cloud; {@code onController}
+     * is whether the VM runs on the controller.
+     */
+    private Reservation reserve(String templateKey, int memoryMb, int vcpus, FirecrackerHost host, String hostName,
+                                boolean onController) {
+        synchronized (FirecrackerCapacity.class) {
+            if (hostName != null) {
+                HostUsage usage = HOSTS.computeIfAbsent(hostName, name -> new HostUsage());
+                usage.instances++;
+                usage.memoryMb += memoryMb;
+                usage.vcpus += vcpus;
+            }
+            if (templateKey != null) {
+                instances++;
+                templateInstances.merge(templateKey, 1, Integer::sum);
+                this.memoryMb += memoryMb;
+                this.vcpus += vcpus;
+            }
+            if (onController) {
+                hostMemoryMb += memoryMb;
+                hostVcpus += vcpus;
+            }
+            return new Reservation(templateKey, memoryMb, vcpus, host, hostName, onController);
+        }
+    }
+
+    private void reserveLiveAgents() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return;
+        }
+        Cloud configured = jenkins.clouds.getByName(cloudName);
+        FirecrackerCloud cloud = configured instanceof FirecrackerCloud ? (FirecrackerCloud) configured : null;
+        for (Node node : jenkins.getNodes()) {
+            if (node instanceof FirecrackerAgent) {
+                FirecrackerAgent agent = (FirecrackerAgent) node;
+                if (cloudName.equals(agent.getCloudName()) && agent.getVm() == null) {
+                    LOGGER.log(Level.FINE, "Counting existing agent {0} against cloud {1}", new Object[]{node.getNodeName(), cloudName});
+                    // The shape the agent was started with is not persisted; assume its template's current one
+                    FirecrackerAgentTemplate template = cloud == null ? null : cloud.getTemplate(agent.getLabelString());
+                    agent.setReservation(reserve(templateKey(agent.getLabelString()),
+                            cloud == null ? 0 : template == null ? cloud.getMemorySize() : cloud.getMemorySize(template),
+                            cloud == null ? 0 : template == null ? cloud.getVcpuCount() : cloud.getVcpuCount(template),
+                            null, agent.getHostName(), !isRemote(cloud, agent.getHostName())));
+                }
+            }
+        }
+    }
+
+    private static boolean isRemote(FirecrackerCloud cloud, String hostName) {
+        if (cloud != null && hostName != null) {
+            for (FirecrackerHost host : cloud.getHosts()) {
+                if (host instanceof FirecrackerRemoteHost && host.getName().equals(hostName)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String templateKey(String labelString) {
+        return labelString == null ? "" : labelString.trim();
+    }
+
+    private static final class HostUsage {
+        private long memoryMb;
+        private int vcpus;
+        private int instances;
+    }
+
+    /**
+     * A slot held by one VM. Releasing it more than once is harmless.
+     */
+    public final class Reservation {
+        private final String templateKey;
+        private final int memoryMb;
+        private final int vcpus;
+        private final FirecrackerHost host;
+        private final String hostName;
+        private final boolean onController;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Reservation(String templateKey, int memoryMb, int vcpus, FirecrackerHost host, String hostName,
+                            boolean onController) {
+            this.templateKey = templateKey;
+            this.memoryMb = memoryMb;
+            this.vcpus = vcpus;
+            this.host = host;
+            this.hostName = hostName;
+            this.onController = onController;
+        }
+
+        /**
+         * The host the VM was placed on, or {@code null} if the cloud has no hosts or the VM
+         * predates a controller restart.
+         */
+        public FirecrackerHost getHost() {
+            return host;
+        }
+
+        public String getHostName() {
+            return hostName;
+        }
+
+        public void release() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            synchronized (FirecrackerCapacity.class) {
+                if (templateKey != null) {
+                    instances--;
+                    templateInstances.computeIfPresent(templateKey, (key, count) -> count > 1 ? count - 1 : null);
+                    FirecrackerCapacity.this.memoryMb -= memoryMb;
+                    FirecrackerCapacity.this.vcpus -= vcpus;
+                }
+                if (onController) {
+                    hostMemoryMb -= memoryMb;
+                    hostVcpus -= vcpus;
+                }
+                HostUsage usage = hostName == null ? null : HOSTS.get(hostName);
+                if (usage != null) {
+                    usage.instances--;
+                    usage.memoryMb -= memoryMb;
+                    usage.vcpus -= vcpus;
+                    if (usage.instances <= 0) {
+                        HOSTS.remove(hostName);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -5,7 +5,7 @@ import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import hudson.Extension;
-import hudson.model.Computer;
+import hudson.Util;
 import hudson.model.Descriptor;
 import hudson.model.Label;
 import hudson.model.Node;
@@ -15,31 +15,64 @@ import hudson.slaves.NodeProvisioner;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
+import jenkins.slaves.JnlpAgentReceiver;
+import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class FirecrackerCloud extends Cloud {
     private static final Logger LOGGER = Logger.getLogger(FirecrackerCloud.class.getName());
     
+    /**
+     * How remoting is started on an agent.
+     */
+    public enum LaunchMode {
+        /** The controller connects to the guest over SSH and starts the agent JAR. */
+        SSH,
+        /**
+         * The guest starts the agent JAR itself as an inbound WebSocket agent, from the controller
+         * URL, agent name and secret under {@code agent} in its metadata service document.
+         */
+        INBOUND
+    }
+    
     private String credentialsId;
     private String vmImagePath;
     private String kernelImagePath;
     private int memorySize = 1024;
     private int vcpuCount = 1;
     private String networkInterface = "eth0";
+    private String networkCidr = "172.16.0.0/24";
+    private FirecrackerRootfs.Strategy rootfsStrategy = FirecrackerRootfs.Strategy.AUTO;
+    private FirecrackerJail.Isolation isolation = FirecrackerJail.Isolation.NONE;
     private String agentJarUrl;
     private String javaPath = "/usr/bin/java";
+    private LaunchMode launchMode = LaunchMode.SSH;
     private int instanceCap = 10;
+    private long memoryCapMb = 0;
+    private int vcpuCap = 0;
+    private int provisioningThreads = 4;
+    private int tapPoolSize = 8;
+    private long hostMemoryBudgetMb = 0;
+    private int hostVcpuBudget = 0;
     private List<FirecrackerAgentTemplate> templates = new ArrayList<>();
+    private List<FirecrackerHost> hosts = new ArrayList<>();
+    private FirecrackerScheduler.Placement placement = FirecrackerScheduler.Placement.PACK;
     
     @DataBoundConstructor
     public FirecrackerCloud(String name) {
@@ -100,6 +133,37 @@ public class FirecrackerCloud extends Cloud {
         this.networkInterface = networkInterface;
     }
     
+    public String getNetworkCidr() {
+        return networkCidr;
+    }
+    
+    @DataBoundSetter
+    public void setNetworkCidr(String networkCidr) {
+        this.networkCidr = networkCidr;
+    }
+    
+    public FirecrackerRootfs.Strategy getRootfsStrategy() {
+        return rootfsStrategy == null ? FirecrackerRootfs.Strategy.AUTO : rootfsStrategy;
+    }
+    
+    @DataBoundSetter
+    public void setRootfsStrategy(FirecrackerRootfs.Strategy rootfsStrategy) {
+        this.rootfsStrategy = rootfsStrategy;
+    }
+    
+    public FirecrackerJail.Isolation getIsolation() {
+        return isolation == null ? FirecrackerJail.Isolation.NONE : isolation;
+    }
+    
+    @DataBoundSetter
+    public void setIsolation(FirecrackerJail.Isolation isolation) {
+        this.isolation = isolation;
+    }
+    
+    public FirecrackerAddressPool getAddressPool() {
+        return FirecrackerAddressPool.forCidr(networkCidr);
+    }
+    
     public String getAgentJarUrl() {
         return agentJarUrl;
     }
@@ -118,6 +182,15 @@ public class FirecrackerCloud extends Cloud {
         this.javaPath = javaPath;
     }
     
+    public LaunchMode getLaunchMode() {
+        return launchMode == null ? LaunchMode.SSH : launchMode;
+    }
+    
+    @DataBoundSetter
+    public void setLaunchMode(LaunchMode launchMode) {
+        this.launchMode = launchMode;
+    }
+    
     public int getInstanceCap() {
         return instanceCap;
     }
@@ -127,6 +200,78 @@ public class FirecrackerCloud extends Cloud {
         this.instanceCap = instanceCap;
     }
     
+    /**
+     * Total guest memory this cloud may run, in MB; 0 means no limit.
+     */
+    public long getMemoryCapMb() {
+        return memoryCapMb;
+    }
+    
+    @DataBoundSetter
+    public void setMemoryCapMb(long memoryCapMb) {
+        this.memoryCapMb = Math.max(0, memoryCapMb);
+    }
+    
+    /**
+     * Total guest vCPUs this cloud may run; 0 means no limit.
+     */
+    public int getVcpuCap() {
+        return vcpuCap;
+    }
+    
+    @DataBoundSetter
+    public void setVcpuCap(int vcpuCap) {
+        this.vcpuCap = Math.max(0, vcpuCap);
+    }
+    
+    public long getHostMemoryBudgetMb() {
+        return hostMemoryBudgetMb;
+    }
+    
+    @DataBoundSetter
+    public void setHostMemoryBudgetMb(long hostMemoryBudgetMb) {
+        this.hostMemoryBudgetMb = hostMemoryBudgetMb;
+    }
+    
+    public int getHostVcpuBudget() {
+        return hostVcpuBudget;
+    }
+    
+    @DataBoundSetter
+    public void setHostVcpuBudget(int hostVcpuBudget) {
+        this.hostVcpuBudget = hostVcpuBudget;
+    }
+    
+    public FirecrackerCapacity getCapacity() {
+        return FirecrackerCapacity.forCloud(name);
+    }
+    
+    public int getProvisioningThreads() {
+        return provisioningThreads;
+    }
+    
+    @DataBoundSetter
+    public void setProvisioningThreads(int provisioningThreads) {
+        this.provisioningThreads = Math.max(1, provisioningThreads);
+    }
+    
+    public FirecrackerProvisioningExecutor getProvisioningExecutor() {
+        return FirecrackerProvisioningExecutor.forCloud(name, provisioningThreads);
+    }
+    
+    public int getTapPoolSize() {
+        return tapPoolSize;
+    }
+    
+    @DataBoundSetter
+    public void setTapPoolSize(int tapPoolSize) {
+        this.tapPoolSize = Math.max(0, tapPoolSize);
+    }
+    
+    public FirecrackerTapPool getTapPool() {
+        return FirecrackerTapPool.forCloud(name, networkInterface, tapPoolSize);
+    }
+    
     public List<FirecrackerAgentTemplate> getTemplates() {
         return Collections.unmodifiableList(templates);
     }
@@ -136,6 +281,27 @@ public class FirecrackerCloud extends Cloud {
         this.templates = new ArrayList<>(templates);
     }
     
+    /**
+     * The hosts VMs are placed on. Without any, every VM runs on the controller.
+     */
+    public List<FirecrackerHost> getHosts() {
+        return hosts == null ? Collections.emptyList() : Collections.unmodifiableList(hosts);
+    }
+    
+    @DataBoundSetter
+    public void setHosts(List<FirecrackerHost> hosts) {
+        this.hosts = hosts == null ? new ArrayList<>() : new ArrayList<>(hosts);
+    }
+    
+    public FirecrackerScheduler.Placement getPlacement() {
+        return placement == null ? FirecrackerScheduler.Placement.PACK : placement;
+    }
+    
+    @DataBoundSetter
+    public void setPlacement(FirecrackerScheduler.Placement placement) {
+        this.placement = placement;
+    }
+    
     public SSHUserPrivateKey getSshCredentials() {
         return CredentialsMatchers.firstOrNull(
                 CredentialsProvider.lookupCredentials(
@@ -146,42 +312,268 @@ public class FirecrackerCloud extends Cloud {
                 CredentialsMatchers.withId(credentialsId));
     }
     
+    /**
+     * The template agents with the given label string were created from, if it is still configured.
+     */
+    public FirecrackerAgentTemplate getTemplate(String labelString) {
+        for (FirecrackerAgentTemplate template : templates) {
+            if (Objects.equals(Util.fixEmptyAndTrim(template.getLabelString()), Util.fixEmptyAndTrim(labelString))) {
+                return template;
+            }
+        }
+        return null;
+    }
+    
+    public FirecrackerWarmPool getWarmPool(FirecrackerAgentTemplate template) {
+        return FirecrackerWarmPool.get(this, template);
+    }
+    
+    /**
+     * The rootfs image of the template's VMs: its own, or this cloud's.
+     */
+    public String getVmImagePath(FirecrackerAgentTemplate template) {
+        return template.getVmImagePath() != null ? template.getVmImagePath() : vmImagePath;
+    }
+    
+    public String getKernelImagePath(FirecrackerAgentTemplate template) {
+        return template.getKernelImagePath() != null ? template.getKernelImagePath() : kernelImagePath;
+    }
+    
+    public int getMemorySize(FirecrackerAgentTemplate template) {
+        return template.getMemorySize() > 0 ? template.getMemorySize() : memorySize;
+    }
+    
+    public int getVcpuCount(FirecrackerAgentTemplate template) {
+        return template.getVcpuCount() > 0 ? template.getVcpuCount() : vcpuCount;
+    }
+    
+    /**
+     * Creates a VM on the controller, on this cloud's bridge and address range.
+     */
+    FirecrackerVM createLocalVM(String vmName, String vmImagePath, String kernelImagePath, int memorySize, int vcpuCount) throws IOException {
+        FirecrackerVM vm = new FirecrackerVM(
+                vmName,
+                vmImagePath,
+                kernelImagePath,
+                memorySize,
+                vcpuCount,
+                networkInterface,
+                getAddressPool().allocate());
+        vm.setRootfsStrategy(getRootfsStrategy());
+        vm.setTapPool(getTapPool());
+        return vm;
+    }
+    
+    private FirecrackerVM createVMOn(FirecrackerHost host, FirecrackerAgentTemplate template, String vmName) throws IOException {
+        FirecrackerVM vm = host != null
+                ? host.createVM(this, vmName, getVmImagePath(template), getKernelImagePath(template),
+                        getMemorySize(template), getVcpuCount(template))
+                : createLocalVM(vmName, getVmImagePath(template), getKernelImagePath(template),
+                        getMemorySize(template), getVcpuCount(template));
+        // The VM holds its address from here on, but only terminating a started VM gives it back
+        try {
+            vm.setBootArgs(template.getBootArgs());
+            vm.setCacheDrives(template.getCacheDrivePaths());
+            vm.setRateLimits(template.getRateLimits());
+            vm.setConfigFileBoot(template.isConfigFileBoot());
+            // Restored guests have the golden VM's filesystems mounted, and remote hosts have no access to the cache
+            if (template.getBuildCacheImage() != null && !template.isSnapshotBoot() && !(vm instanceof FirecrackerRemoteVM)) {
+                vm.setBuildCache(FirecrackerBuildCache.forImage(template.getBuildCacheImage()), template.getBuildCacheOverlaySizeMb());
+            }
+            // The balloon is driven through the API socket, which only local VMs have
+            if (!(vm instanceof FirecrackerRemoteVM)) {
+                vm.setBalloonReclaimPercent(template.getBalloonReclaimPercent());
+            }
+            // Snapshots name files by their host paths, which a chroot would hide
+            if (!template.isSnapshotBoot() && !(vm instanceof FirecrackerRemoteVM)) {
+                vm.setIsolation(getIsolation());
+            }
+            vm.setMetadata(createMetadata(template, vm, vmName, false));
+        } catch (IOException | RuntimeException e) {
+            vm.detachLease().release();
+            throw e;
+        }
+        return vm;
+    }
+    
+    /**
+     * Creates a VM of the template, on the host the reservation was placed on, that holds the
+     * reservation until it terminates. The reservation and the VM's address are released if the
+     * VM cannot be created.
+     */
+    FirecrackerVM createVM(FirecrackerAgentTemplate template, String vmName, FirecrackerCapacity.Reservation reservation) throws IOException {
+        try {
+            FirecrackerVM vm = createVMOn(reservation.getHost(), template, vmName);
+            vm.setReservation(reservation);
+            vm.getTimeline().setTemplate(template.getLabelString());
+            return vm;
+        } catch (IOException | RuntimeException e) {
+            reservation.release();
+            throw e;
+        }
+    }
+    
+    /**
+     * The metadata document of a VM of the template serving the given node: its network settings,
+     * hostname, labels and the template's guest environment, plus what an inbound agent needs to
+     * connect if {@code inbound} is set.
+     */
+    JSONObject createMetadata(FirecrackerAgentTemplate template, FirecrackerVM vm, String nodeName, boolean inbound) throws IOException {
+        JSONObject metadata = vm.createMetadata()
+                .element("hostname", nodeName)
+                .element("labels", Util.fixNull(template.getLabelString()))
+                .element("env", template.getGuestEnvironmentVariables());
+        if (inbound) {
+            String rootUrl = Jenkins.get().getRootUrl();
+            if (rootUrl == null) {
+                throw new IOException("The Jenkins URL must be configured for inbound agents");
+            }
+            String agentJar = Util.fixEmptyAndTrim(agentJarUrl);
+            metadata.element("agent", new JSONObject()
+                    .element("url", rootUrl)
+                    .element("name", nodeName)
+                    .element("secret", JnlpAgentReceiver.SLAVE_SECRET.mac(nodeName))
+                    .element("jar", agentJar != null ? agentJar : rootUrl + "jnlpJars/agent.jar")
+                    .element("java", javaPath)
+                    .element("workdir", template.getRemoteFS()));
+        }
+        return metadata;
+    }
+    
+    /**
+     * Points the VM's metadata at the node it now serves.
+     *
+     * @return whether the guest was given what it needs to connect as an inbound agent
+     */
+    private boolean assignMetadata(FirecrackerAgentTemplate template, FirecrackerVM vm, String nodeName) {
+        boolean inbound = getLaunchMode() == LaunchMode.INBOUND;
+        try {
+            vm.setMetadata(createMetadata(template, vm, nodeName, inbound));
+            return inbound;
+        } catch (IOException e) {
+            LOGGER.log(inbound ? Level.WARNING : Level.FINE, "Could not update the metadata of " + nodeName
+                    + (inbound ? ", launching it over SSH instead" : ""), e);
+            return false;
+        }
+    }
+    
+    /**
+     * Creates a VM for the template and brings it up, from the golden snapshot if the template
+     * boots from one and it is ready, and cold otherwise. The VM is terminated if it fails to
+     * come up.
+     */
+    FirecrackerVM bootVM(FirecrackerAgentTemplate template, String vmName, FirecrackerCapacity.Reservation reservation) throws IOException, InterruptedException {
+        FirecrackerVM vm = createVM(template, vmName, reservation);
+        boot(template, vm);
+        return vm;
+    }
+    
+    private void boot(FirecrackerAgentTemplate template, FirecrackerVM vm) throws IOException, InterruptedException {
+        try {
+            FirecrackerSnapshotStore.Snapshot snapshot = restores(template, vm)
+                    ? FirecrackerSnapshotStore.getIfReady(this, template) : null;
+            if (snapshot != null) {
+                vm.restore(snapshot);
+            } else {
+                if (template.isSnapshotBoot()) {
+                    // The guest waits for a new address as if restored; it already has it
+                    vm.setReaddressOffered(true);
+                }
+                vm.start();
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            vm.terminateAsync();
+            throw e;
+        }
+    }
+    
+    /**
+     * Whether the VM is restored from the template's snapshot; VMs on remote hosts boot cold.
+     */
+    private static boolean restores(FirecrackerAgentTemplate template, FirecrackerVM vm) {
+        return template.isSnapshotBoot() && !(vm instanceof FirecrackerRemoteVM);
+    }
+    
     @Override
     public Collection<NodeProvisioner.PlannedNode> provision(Label label, int excessWorkload) {
         List<NodeProvisioner.PlannedNode> nodes = new ArrayList<>();
+        FirecrackerProvisioningExecutor executor = getProvisioningExecutor();
+        FirecrackerCapacity capacity = getCapacity();
         
         for (FirecrackerAgentTemplate template : templates) {
             if (label == null || (template.getLabel() != null && template.getLabel().equals(label))) {
+                List<ProvisioningCallback> callbacks = new ArrayList<>();
+                List<FirecrackerVM> batch = new ArrayList<>();
                 try {
-                    while (excessWorkload > 0 && !exceededCapacity()) {
+                    while (excessWorkload > 0) {
+                        // Warm VMs already hold a reservation, so only cold boots need a new slot
+                        FirecrackerWarmPool pool = getWarmPool(template);
+                        FirecrackerWarmPool.WarmVM warm = pool.isEnabled() ? pool.take() : null;
+                        FirecrackerCapacity.Reservation reservation = null;
+                        if (warm == null) {
+                            reservation = capacity.tryReserve(this, template);
+                            if (reservation == null) {
+                                LOGGER.log(Level.FINE, "Cloud {0} has no capacity left for label {1}", new Object[]{name, label});
+                                break;
+                            }
+                        }
+                        
                         LOGGER.log(Level.INFO, "Provisioning Firecracker VM for label: {0}", label);
                         
                         String nodeName = template.createNodeName();
-                        nodes.add(new NodeProvisioner.PlannedNode(
-                                nodeName,
-                                Computer.threadPoolForRemoting.submit(new ProvisioningCallback(template, nodeName)),
-                                template.getNumExecutors()));
+                        if (warm != null) {
+                            callbacks.add(new ProvisioningCallback(template, nodeName, warm, null));
+                        } else {
+                            FirecrackerVM vm = createVM(template, nodeName, reservation);
+                            // Remote hosts set up their own side
+                            if (!(vm instanceof FirecrackerRemoteVM)) {
+                                batch.add(vm);
+                            }
+                            ProvisioningCallback callback = new ProvisioningCallback(template, nodeName, null, vm);
+                            if (getLaunchMode() == LaunchMode.INBOUND) {
+                                callback.inbound = assignMetadata(template, vm, nodeName);
+                            }
+                            callbacks.add(callback);
+                        }
                         
-                        excessWorkload -= template.getNumExecutors();
+                        excessWorkload -= template.getExecutorsPerAgent();
                     }
-                    break;
                 } catch (Exception e) {
                     LOGGER.log(Level.WARNING, "Failed to provision Firecracker VM", e);
                 }
+                
+                // Host-side setup for the whole batch is queued first; each boot waits for it
+                Future<?> hostSetup = batch.isEmpty() ? null : executor.submit(() -> {
+                    checkImages(template);
+                    FirecrackerVM.prepareHosts(batch);
+                    return null;
+                });
+                for (ProvisioningCallback callback : callbacks) {
+                    callback.hostSetup = batch.contains(callback.vm) ? hostSetup : null;
+                    nodes.add(new NodeProvisioner.PlannedNode(
+                            callback.nodeName,
+                            executor.submit(callback),
+                            template.getExecutorsPerAgent()));
+                }
+                break;
             }
         }
         
         return nodes;
     }
     
-    private boolean exceededCapacity() {
-        int count = 0;
-        for (Node node : Jenkins.get().getNodes()) {
-            if (node instanceof FirecrackerAgent) {
-                count++;
+    private void checkImages(FirecrackerAgentTemplate template) throws IOException {
+        List<String> paths = new ArrayList<>(template.getCacheDrivePaths());
+        if (template.getBuildCacheImage() != null) {
+            paths.add(template.getBuildCacheImage());
+        }
+        paths.add(getKernelImagePath(template));
+        paths.add(getVmImagePath(template));
+        for (String path : paths) {
+            if (path == null || !Files.isReadable(Paths.get(path))) {
+                throw new IOException("Image is not readable: " + path);
             }
         }
-        return count >= instanceCap;
     }
     
     @Override
@@ -202,36 +594,65 @@ public class FirecrackerCloud extends Cloud {
     private final class ProvisioningCallback implements Callable<Node> {
         private final FirecrackerAgentTemplate template;
         private final String nodeName;
+        private final FirecrackerWarmPool.WarmVM warm;
+        private final FirecrackerVM vm;
+        private final long started = System.currentTimeMillis();
+        private Future<?> hostSetup;
+        private boolean inbound;
         
-        ProvisioningCallback(FirecrackerAgentTemplate template, String nodeName) {
+        ProvisioningCallback(FirecrackerAgentTemplate template, String nodeName, FirecrackerWarmPool.WarmVM warm, FirecrackerVM vm) {
             this.template = template;
             this.nodeName = nodeName;
+            this.warm = warm;
+            this.vm = vm;
         }
         
         @Override
         public Node call() throws Exception {
-            FirecrackerVM vm = null;
+            if (warm != null) {
+                LOGGER.log(Level.INFO, "Using warm VM {0} for node {1}", new Object[]{warm.getVm().getName(), nodeName});
+                FirecrackerAgent agent = template.createNode(nodeName, warm.getIpAddress(), warm.getVm());
+                agent.setCloudName(name);
+                agent.setPlacement(warm.getVm());
+                // The guest has been up since before the node had a name
+                if (assignMetadata(template, warm.getVm(), nodeName)) {
+                    agent.setInbound();
+                }
+                agent.setProvisioning(FirecrackerMetrics.BootPath.WARM, started);
+                return agent;
+            }
             
             try {
-                vm = new FirecrackerVM(
-                        nodeName,
-                        vmImagePath,
-                        kernelImagePath,
-                        memorySize,
-                        vcpuCount,
-                        networkInterface);
+                if (hostSetup != null) {
+                    try {
+                        hostSetup.get();
+                    } catch (ExecutionException e) {
+                        throw new IOException("Host setup failed for " + nodeName, e.getCause());
+                    }
+                }
+                vm.getTimeline().record(FirecrackerTimeline.Phase.QUEUE, started, System.currentTimeMillis() - started);
                 
-                vm.start();
+                boot(template, vm);
                 
                 // Wait for VM to boot and get its IP
-                String ipAddress = vm.getIpAddress();
+                String ipAddress;
+                try (FirecrackerTimeline.Span span = vm.getTimeline().begin(FirecrackerTimeline.Phase.IP_DISCOVERY)) {
+                    ipAddress = vm.getIpAddress();
+                }
                 
                 // Create and return the agent node
-                return template.createNode(nodeName, ipAddress, vm);
-            } catch (Exception e) {
-                if (vm != null) {
-                    vm.terminate();
+                FirecrackerAgent agent = template.createNode(nodeName, ipAddress, vm);
+                agent.setCloudName(name);
+                agent.setPlacement(vm);
+                if (inbound) {
+                    agent.setInbound();
                 }
+                agent.setProvisioning(restores(template, vm)
+                        ? FirecrackerMetrics.BootPath.RESTORE
+                        : FirecrackerMetrics.BootPath.COLD, started);
+                return agent;
+            } catch (Exception e) {
+                vm.terminateAsync();
                 throw e;
             }
         }
@@ -251,6 +672,15 @@ public class FirecrackerCloud extends Cloud {
             return FormValidation.ok();
         }
         
+        public FormValidation doCheckNetworkCidr(@QueryParameter String value) {
+            try {
+                FirecrackerAddressPool pool = new FirecrackerAddressPool(value);
+                return FormValidation.ok("Gateway " + pool.getGateway() + ", " + pool.getSize() + " guest addresses");
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+        
         public FormValidation doCheckKernelImagePath(@QueryParameter String value) {
             if (value.isEmpty()) {
                 return FormValidation.error("Kernel image path is required");
@@ -1,22 +1,54 @@
 package io.jenkins.plugins.firecracker;
 
 import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserPrivateKey;
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.SCPClient;
+import com.trilead.ssh2.Session;
 import hudson.model.TaskListener;
-import hudson.plugins.sshslaves.SSHLauncher;
+import hudson.remoting.Channel;
+import hudson.slaves.Cloud;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.SlaveComputer;
+import hudson.util.Secret;
 import jenkins.model.Jenkins;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Starts remoting over SSH on a Firecracker agent.
+ *
+ * <p>The agent JAR is only copied when the guest does not already have the controller's version:
+ * a JAR baked into the image at {@link #BAKED_AGENT_JAR}, or one left in the remote FS root by
+ * an earlier launch, is used if its SHA-256 matches. The launcher only connects once the guest's
+ * SSH port answers, so connection attempts retry quickly at first, doubling the delay from
+ * 100 ms up to five seconds.
+ */
 public class FirecrackerComputerLauncher extends ComputerLauncher {
     private static final Logger LOGGER = Logger.getLogger(FirecrackerComputerLauncher.class.getName());
     
+    /**
+     * Where images can bake in the controller's {@code agent.jar} so that no launch has to copy it.
+     */
+    public static final String BAKED_AGENT_JAR = "/usr/share/jenkins/agent.jar";
+    
+    private static final String CACHED_AGENT_JAR = "remoting.jar";
+    private static final long INITIAL_RETRY_DELAY_MILLIS = 100;
+    private static final long MAX_RETRY_DELAY_MILLIS = 5000;
+    
+    private static volatile AgentJar agentJar;
+    
     private final String ipAddress;
-    private transient SSHLauncher launcher;
+    private transient Connection connection;
     
     public FirecrackerComputerLauncher(String ipAddress) {
         this.ipAddress = ipAddress;
@@ -36,7 +68,7 @@ public class FirecrackerComputerLauncher extends ComputerLauncher {
                 throw new IllegalStateException("Node for computer " + computer.getName() + " is null");
             }
             
-            FirecrackerCloud cloud = findCloud();
+            FirecrackerCloud cloud = findCloud(agent);
             if (cloud == null) {
                 throw new IllegalStateException("Cannot find Firecracker cloud");
             }
@@ -47,52 +79,235 @@ public class FirecrackerComputerLauncher extends ComputerLauncher {
             }
             
             // Wait for VM to be ready for SSH
-            waitForSshReady(ipAddress, listener);
+            waitForSshReady(agent, listener);
             
-            // Create SSH launcher
-            launcher = new SSHLauncher(
-                    ipAddress,
-                    22,
-                    credentials.getId(),
-                    "",  // jvmOptions
-                    "",  // javaPath - use default
-                    "",  // prefixStartSlaveCmd
-                    "",  // suffixStartSlaveCmd
-                    60,  // launchTimeoutSeconds
-                    10,  // maxNumRetries
-                    5,   // retryWaitTime
-                    new NonVerifyingKeyVerificationStrategy());
-            
-            launcher.launch(computer, listener);
+            FirecrackerVM vm = agent.getVm();
+            if (vm != null) {
+                try (FirecrackerTimeline.Span span = vm.getTimeline().begin(FirecrackerTimeline.Phase.REMOTING_LAUNCH)) {
+                    startRemoting(computer, agent, cloud, credentials, listener);
+                }
+            } else {
+                startRemoting(computer, agent, cloud, credentials, listener);
+            }
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Failed to launch agent", e);
             listener.error("Failed to launch agent: " + e.getMessage());
+            closeConnection();
         }
     }
     
-    private FirecrackerCloud findCloud() {
+    @Override
+    public void afterDisconnect(SlaveComputer computer, TaskListener listener) {
+        closeConnection();
+    }
+    
+    private void startRemoting(SlaveComputer computer, FirecrackerAgent agent, FirecrackerCloud cloud,
+                               SSHUserPrivateKey credentials, TaskListener listener) throws IOException, InterruptedException {
+        Connection ssh = connect(agent, credentials, listener);
+        connection = ssh;
+        
+        String jar = installAgentJar(ssh, agent.getRemoteFS(), getAgentJar(), listener);
+        
+        Session session = ssh.openSession();
+        session.execCommand("cd " + quote(agent.getRemoteFS()) + " && exec " + quote(cloud.getJavaPath()) + " -jar " + quote(jar));
+        copyInBackground(session.getStderr(), listener.getLogger(), "stderr of " + computer.getName());
+        computer.setChannel(session.getStdout(), session.getStdin(), listener, new Channel.Listener() {
+            @Override
+            public void onClosed(Channel channel, IOException cause) {
+                session.close();
+                ssh.close();
+            }
+        });
+    }
+    
+    /**
+     * Connects and authenticates, retrying until the startup timeout.
+     */
+    private Connection connect(FirecrackerAgent agent, SSHUserPrivateKey credentials, TaskListener listener) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(agent.getStartupTimeoutSeconds());
+        return retry("SSH to " + ipAddress, deadline, listener, () -> {
+            Connection ssh = new Connection(ipAddress, 22);
+            try {
+                ssh.connect(new NonVerifyingKeyVerificationStrategy().getVerifier(), 10000, 10000);
+                authenticate(ssh, credentials);
+                return ssh;
+            } catch (IOException e) {
+                ssh.close();
+                throw e;
+            }
+        });
+    }
+    
+    /**
+     * Runs {@code attempt} until it succeeds, doubling the delay between attempts from
+     * {@link #INITIAL_RETRY_DELAY_MILLIS} up to {@link #MAX_RETRY_DELAY_MILLIS}, and rethrows its
+     * last failure if the next attempt would start after {@code deadlineNanos}.
+     */
+    static <T> T retry(String what, long deadlineNanos, TaskListener listener, Attempt<T> attempt) throws IOException, InterruptedException {
+        long delayMillis = INITIAL_RETRY_DELAY_MILLIS;
+        while (true) {
+            try {
+                return attempt.run();
+            } catch (IOException e) {
+                if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis) > deadlineNanos) {
+                    throw e;
+                }
+                listener.getLogger().println(what + " failed, retrying in " + delayMillis + " ms: " + e.getMessage());
+                TimeUnit.MILLISECONDS.sleep(delayMillis);
+                delayMillis = Math.min(delayMillis * 2, MAX_RETRY_DELAY_MILLIS);
+            }
+        }
+    }
+    
+    private static void authenticate(Connection ssh, SSHUserPrivateKey credentials) throws IOException {
+        String passphrase = Secret.toString(credentials.getPassphrase());
+        for (String privateKey : credentials.getPrivateKeys()) {
+            if (ssh.authenticateWithPublicKey(credentials.getUsername(), privateKey.toCharArray(), passphrase)) {
+                return;
+            }
+        }
+        throw new IOException("SSH authentication failed for user " + credentials.getUsername());
+    }
+    
+    /**
+     * Returns the path of an agent JAR in the guest that matches the controller's, copying it
+     * into the remote FS root if neither the baked nor the cached copy does.
+     */
+    static String installAgentJar(Connection ssh, String remoteFS, AgentJar local, TaskListener listener) throws IOException, InterruptedException {
+        String cached = remoteFS + "/" + CACHED_AGENT_JAR;
+        
+        String output = exec(ssh, "mkdir -p " + quote(remoteFS) + " && sha256sum "
+                + quote(BAKED_AGENT_JAR) + " " + quote(cached) + " 2>/dev/null; true");
+        for (String line : output.split("\n")) {
+            String[] fields = line.trim().split("\\s+", 2);
+            if (fields.length == 2 && fields[0].equalsIgnoreCase(local.getSha256())) {
+                listener.getLogger().println("Using agent JAR " + fields[1] + ", it matches the controller's");
+                return fields[1];
+            }
+        }
+        
+        listener.getLogger().println("Copying agent JAR to " + cached);
+        new SCPClient(ssh).put(local.bytes, CACHED_AGENT_JAR, remoteFS, "0644");
+        return cached;
+    }
+    
+    private static String exec(Connection ssh, String command) throws IOException, InterruptedException {
+        Session session = ssh.openSession();
+        try {
+            session.execCommand(command);
+            String output = readFully(session.getStdout());
+            session.waitForCondition(ChannelCondition.EXIT_STATUS, 10000);
+            return output;
+        } finally {
+            session.close();
+        }
+    }
+    
+    private static AgentJar getAgentJar() throws IOException {
+        AgentJar jar = agentJar;
+        if (jar == null) {
+            // The JAR only changes when the controller is upgraded, which means a restart
+            jar = new AgentJar(Jenkins.get().getJnlpJars("agent.jar").readFully());
+            agentJar = jar;
+        }
+        return jar;
+    }
+    
+    private static void copyInBackground(InputStream in, OutputStream out, String name) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[8192];
+            try {
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Stopped copying " + name, e);
+            }
+        }, "Firecracker launcher: " + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+    
+    static String quote(String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+    
+    private void closeConnection() {
+        Connection ssh = connection;
+        connection = null;
+        if (ssh != null) {
+            ssh.close();
+        }
+    }
+    
+    /**
+     * The cloud that provisioned the agent, or the first Firecracker cloud for agents saved
+     * before agents recorded their cloud.
+     */
+    private static FirecrackerCloud findCloud(FirecrackerAgent agent) {
+        if (agent.getCloudName() != null) {
+            Cloud cloud = Jenkins.get().getCloud(agent.getCloudName());
+            if (cloud instanceof FirecrackerCloud) {
+                return (FirecrackerCloud) cloud;
+            }
+        }
         for (FirecrackerCloud cloud : Jenkins.get().clouds.getAll(FirecrackerCloud.class)) {
-            return cloud;  // Return the first one for now
+            return cloud;
         }
         return null;
     }
     
-    private void waitForSshReady(String host, TaskListener listener) throws InterruptedException {
-        listener.getLogger().println("Waiting for SSH to become available on " + host);
+    private void waitForSshReady(FirecrackerAgent agent, TaskListener listener) throws IOException, InterruptedException {
+        listener.getLogger().println("Waiting for SSH to become available on " + ipAddress);
+        
+        FirecrackerVM vm = agent.getVm();
+        if (vm != null) {
+            vm.waitForSsh(ipAddress, agent.getStartupTimeoutSeconds());
+        } else {
+            // The VM handle does not survive a controller restart; fall back to probing
+            SSHUtil.waitForSSHPort(ipAddress, 22, agent.getStartupTimeoutSeconds());
+        }
+        
+        listener.getLogger().println("SSH is available on " + ipAddress);
+    }
+    
+    interface Attempt<T> {
+        T run() throws IOException;
+    }
+    
+    /**
+     * The controller's agent JAR and its SHA-256.
+     */
+    static final class AgentJar {
+        private final byte[] bytes;
+        private final String sha256;
         
-        for (int i = 0; i < 60; i++) {
+        AgentJar(byte[] bytes) throws IOException {
+            this.bytes = bytes;
             try {
-                if (SSHUtil.checkSSHPort(host, 22)) {
-                    listener.getLogger().println("SSH is available on " + host);
-                    return;
+                StringBuilder hex = new StringBuilder();
+                for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+                    hex.append(String.format("%02x", b));
                 }
-            } catch (Exception e) {
-                LOGGER.log(Level.FINE, "SSH not yet available on " + host, e);
+                this.sha256 = hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
             }
-            
-            TimeUnit.SECONDS.sleep(1);
         }
         
-        throw new InterruptedException("Timed out waiting for SSH to become available on " + host);
+        String getSha256() {
+            return sha256;
+        }
     }
 }
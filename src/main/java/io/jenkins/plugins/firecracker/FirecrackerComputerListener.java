@@ -0,0 +1,35 @@
+package io.jenkins.plugins.firecracker;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+@Extension
+public class FirecrackerComputerListener extends ComputerListener {
+    private static final Logger LOGGER = Logger.getLogger(FirecrackerComputerListener.class.getName());
+    
+    @Override
+    public void onOnline(Computer c, TaskListener listener) {
+        if (!(c instanceof FirecrackerAgent.FirecrackerComputer)) {
+            return;
+        }
+        
+        FirecrackerAgent agent = ((FirecrackerAgent.FirecrackerComputer) c).getNode();
+        if (agent == null) {
+            return;
+        }
+        
+        // Only the first connection counts; reconnects are not provisioning latency
+        FirecrackerMetrics.BootPath bootPath = agent.getBootPath();
+        if (bootPath != null && agent.clearBootPath()) {
+            long millis = System.currentTimeMillis() - agent.getProvisioningStartMillis();
+            FirecrackerMetrics.recordTimeToAgent(bootPath, agent.getLaunchMode(), millis);
+            LOGGER.log(Level.INFO, "Agent {0} online {1} ms after provisioning started ({2} boot, {3} launch)",
+                    new Object[]{agent.getNodeName(), millis, bootPath, agent.getLaunchMode()});
+        }
+    }
+}
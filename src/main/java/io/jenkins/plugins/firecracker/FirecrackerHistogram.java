@@ -0,0 +1,94 @@
+package io.jenkins.plugins.firecracker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with fixed millisecond buckets, spaced roughly 1-2-5 from 1 ms
+ * to 10 minutes. Quantiles are interpolated within the bucket they fall in, which is accurate
+ * enough to tell a 200 ms phase from a 2 s one.
+ */
+public final class FirecrackerHistogram {
+    static final long[] BOUNDS_MILLIS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500,
+            1000, 2000, 5000, 10000, 20000, 30000, 60000, 120000, 300000, 600000
+    };
+
+    // One extra bucket for everything above the last bound
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS_MILLIS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long millis) {
+        long value = Math.max(0, millis);
+        counts.incrementAndGet(bucketOf(value));
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+        count.incrementAndGet();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSumMillis() {
+        return sum.get();
+    }
+
+    public long getMaxMillis() {
+        return max.get();
+    }
+
+    /**
+     * Number of samples at or below {@code BOUNDS_MILLIS[bucket]}, or all samples for the last bucket.
+     */
+    long getCumulativeCount(int bucket) {
+        long cumulative = 0;
+        for (int i = 0; i <= bucket; i++) {
+            cumulative += counts.get(i);
+        }
+        return cumulative;
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. {@code 0.95}
+     * @return the estimated value in milliseconds, or 0 if nothing was recorded
+     */
+    public double getQuantileMillis(double quantile) {
+        long total = 0;
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        double rank = quantile * total;
+        long cumulative = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            if (snapshot[i] == 0) {
+                continue;
+            }
+            if (cumulative + snapshot[i] >= rank) {
+                double lower = i == 0 ? 0 : BOUNDS_MILLIS[i - 1];
+                double upper = i < BOUNDS_MILLIS.length ? Math.min(BOUNDS_MILLIS[i], max.get()) : max.get();
+                double fraction = (rank - cumulative) / snapshot[i];
+                return lower + Math.max(0, upper - lower) * fraction;
+            }
+            cumulative += snapshot[i];
+        }
+        return max.get();
+    }
+
+    private static int bucketOf(long millis) {
+        for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+            if (millis <= BOUNDS_MILLIS[i]) {
+                return i;
+            }
+        }
+        return BOUNDS_MILLIS.length;
+    }
+}
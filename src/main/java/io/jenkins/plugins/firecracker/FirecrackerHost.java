@@ -0,0 +1,236 @@
+package io.jenkins.plugins.firecracker;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A machine that runs a cloud's VMs. Clouds without hosts run every VM on the controller, as
+ * {@link FirecrackerLocalHost} does; {@link FirecrackerRemoteHost} reaches a {@link FirecrackerHostDaemon} over HTTP.
+ *
+ * <p>Hosts are identified by name across clouds, so two clouds that list the same host share its
+ * accounting in {@link FirecrackerCapacity} and its health. A host that fails
+ * {@link #FAILURE_THRESHOLD} health checks in a row is draining: it gets no new VMs until a check
+ * succeeds again, while the VMs it already runs are left alone.
+ */
+public abstract class FirecrackerHost extends AbstractDescribableImpl<FirecrackerHost> {
+    private static final Logger LOGGER = Logger.getLogger(FirecrackerHost.class.getName());
+
+    /**
+     * Consecutive failed health checks after which a host is drained.
+     */
+    public static final int FAILURE_THRESHOLD = 3;
+
+    /**
+     * The KVM device whose presence makes a host healthy. Tests point this at a plain file.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static /* non-final for script console */ String KVM_DEVICE =
+            SystemProperties.getString(FirecrackerHost.class.getName() + ".kvmDevice", "/dev/kvm");
+
+    private static final Map<String, Health> HEALTH = new ConcurrentHashMap<>();
+
+    private final String name;
+    private long memoryMb;
+    private int vcpus;
+
+    protected FirecrackerHost(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Guest memory this host may run, in MB; 0 means what the host reports.
+     */
+    public long getMemoryMb() {
+        return memoryMb;
+    }
+
+    @DataBoundSetter
+    public void setMemoryMb(long memoryMb) {
+        this.memoryMb = Math.max(0, memoryMb);
+    }
+
+    /**
+     * Guest vCPUs this host may run; 0 means what the host reports.
+     */
+    public int getVcpus() {
+        return vcpus;
+    }
+
+    @DataBoundSetter
+    public void setVcpus(int vcpus) {
+        this.vcpus = Math.max(0, vcpus);
+    }
+
+    /**
+     * The configured memory, or else the reported one; 0 if neither is known, which the scheduler
+     * treats as unlimited.
+     */
+    long getMemoryCapacityMb() {
+        if (memoryMb > 0) {
+            return memoryMb;
+        }
+        Health health = HEALTH.get(name);
+        return health == null ? 0 : health.memoryMb;
+    }
+
+    int getVcpuCapacity() {
+        if (vcpus > 0) {
+            return vcpus;
+        }
+        Health health = HEALTH.get(name);
+        return health == null ? 0 : health.vcpus;
+    }
+
+    /**
+     * Whether this host has failed its last {@link #FAILURE_THRESHOLD} health checks.
+     */
+    public boolean isDraining() {
+        Health health = HEALTH.get(name);
+        return health != null && health.draining;
+    }
+
+    /**
+     * Why the last health check failed, or {@code null} if it passed.
+     */
+    public String getLastError() {
+        Health health = HEALTH.get(name);
+        return health == null ? null : health.lastError;
+    }
+
+    /**
+     * Creates a VM on this host, with an address from the network its guests live on.
+     */
+    abstract FirecrackerVM createVM(FirecrackerCloud cloud, String vmName, String vmImagePath, String kernelImagePath,
+                                    int memorySize, int vcpuCount) throws IOException;
+
+    /**
+     * Checks that this host can run VMs.
+     *
+     * @return the host's total memory in MB and vCPUs
+     * @throws IOException if it cannot
+     */
+    abstract Status probe() throws IOException, InterruptedException;
+
+    /**
+     * Probes this host and records the outcome, draining or restoring it as needed.
+     */
+    public void checkHealth() throws InterruptedException {
+        Health health = HEALTH.computeIfAbsent(name, key -> new Health());
+        try {
+            Status status = probe();
+            synchronized (health) {
+                if (health.draining) {
+                    LOGGER.log(Level.INFO, "Firecracker host {0} is healthy again", name);
+                }
+                health.failures = 0;
+                health.draining = false;
+                health.lastError = null;
+                health.memoryMb = status.memoryMb;
+                health.vcpus = status.vcpus;
+            }
+        } catch (IOException e) {
+            synchronized (health) {
+                health.failures++;
+                health.lastError = e.getMessage() != null ? e.getMessage() : e.toString();
+                if (!health.draining && health.failures >= FAILURE_THRESHOLD) {
+                    health.draining = true;
+                    LOGGER.log(Level.WARNING, "Draining Firecracker host " + name + " after "
+                            + health.failures + " failed health checks", e);
+                } else {
+                    LOGGER.log(Level.FINE, "Health check of Firecracker host " + name + " failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * What a host reports about itself.
+     */
+    static final class Status {
+        final long memoryMb;
+        final int vcpus;
+
+        Status(long memoryMb, int vcpus) {
+            this.memoryMb = memoryMb;
+            this.vcpus = vcpus;
+        }
+
+        /**
+         * The machine this JVM runs on, failing if it has no KVM.
+         */
+        static Status local() throws IOException {
+            if (!Files.exists(Paths.get(KVM_DEVICE))) {
+                throw new IOException(KVM_DEVICE + " does not exist");
+            }
+            long memory = ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                    .getTotalMemorySize();
+            return new Status(memory / (1024 * 1024), Runtime.getRuntime().availableProcessors());
+        }
+
+        JSONObject toJson() {
+            return new JSONObject().element("memoryMb", memoryMb).element("vcpus", vcpus);
+        }
+
+        static Status fromJson(JSONObject json) {
+            return new Status(json.optLong("memoryMb"), json.optInt("vcpus"));
+        }
+    }
+
+    private static final class Health {
+        private int failures;
+        private volatile boolean draining;
+        private volatile String lastError;
+        private volatile long memoryMb;
+        private volatile int vcpus;
+    }
+
+    /**
+     * Checks every host of every Firecracker cloud.
+     */
+    @Extension
+    public static class HealthCheck extends AsyncPeriodicWork {
+        public HealthCheck() {
+            super("Firecracker host health check");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.SECONDS.toMillis(15);
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws InterruptedException {
+            Set<String> checked = new HashSet<>();
+            for (FirecrackerCloud cloud : Jenkins.get().clouds.getAll(FirecrackerCloud.class)) {
+                for (FirecrackerHost host : cloud.getHosts()) {
+                    if (checked.add(host.getName())) {
+                        host.checkHealth();
+                    }
+                }
+            }
+        }
+    }
+}
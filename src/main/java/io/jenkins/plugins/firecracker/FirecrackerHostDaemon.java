@@ -0,0 +1,381 @@
+package io.jenkins.plugins.firecracker;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Runs Firecracker VMs on a host on behalf of a controller's {@link FirecrackerRemoteHost}.
+ *
+ * <p>The daemon is an HTTPS server speaking JSON, started with
+ * {@code java -cp <plugin and Jenkins core jars> io.jenkins.plugins.firecracker.FirecrackerHostDaemon}.
+ * Requests must carry {@code Authorization: Bearer <token>} with the token from the
+ * {@code FIRECRACKER_HOST_TOKEN} environment variable, without which the daemon does not start.
+ * It listens on the loopback interface unless told otherwise, and only boots kernels and attaches
+ * images that are regular files in its image directory.
+ *
+ * <p>The token, VM specs and guest metadata (which holds inbound agents' secrets) must not cross
+ * the network in cleartext, so the daemon serves TLS with the certificate in {@code --keystore},
+ * a PKCS#12 file whose password is in {@code FIRECRACKER_HOST_KEYSTORE_PASSWORD}. Without one it
+ * serves plain HTTP, and then only on a loopback address, such as the end of an SSH tunnel.
+ * <ul>
+ *   <li>{@code GET /health}: the host's memory and vCPUs, or 503 if it cannot run VMs</li>
+ *   <li>{@code PUT /vms/<id>}: creates and starts a VM from {@link FirecrackerVM#getSpec()}</li>
+ *   <li>{@code GET /vms/<id>}: whether the VM is alive</li>
+ *   <li>{@code GET /vms/<id>/ready?timeoutMillis=<n>}: waits for the guest's readiness signal</li>
+ *   <li>{@code PUT /vms/<id>/metadata}: replaces the guest's metadata document</li>
+ *   <li>{@code DELETE /vms/<id>}: terminates the VM and cleans up after it</li>
+ * </ul>
+ * VMs do not survive a restart of the daemon. The disk limits of VMs on the host follow its I/O
+ * pressure as described in {@link FirecrackerRateLimits}.
+ */
+public final class FirecrackerHostDaemon implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(FirecrackerHostDaemon.class.getName());
+
+    public static final String TOKEN_VARIABLE = "FIRECRACKER_HOST_TOKEN";
+
+    public static final String KEYSTORE_PASSWORD_VARIABLE = "FIRECRACKER_HOST_KEYSTORE_PASSWORD";
+
+    private static final String USAGE = "usage: --image-dir path [--listen host:port] [--bridge name] [--tap-pool-size n] "
+            + "[--keystore path]";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String bridge;
+    private final FirecrackerTapPool tapPool;
+    private final byte[] token;
+    private final Path imageDir;
+    private final Map<String, FirecrackerVM> vms = new ConcurrentHashMap<>();
+
+    /**
+     * Serves plain HTTP on a loopback address.
+     */
+    public FirecrackerHostDaemon(InetSocketAddress address, String bridge, int tapPoolSize, String token, Path imageDir) throws IOException {
+        this(address, bridge, tapPoolSize, token, imageDir, null);
+    }
+
+    /**
+     * @param token the bearer token requests must carry
+     * @param imageDir the directory kernel, rootfs and cache drive images must be in
+     * @param tls the context to serve HTTPS with, or {@code null} for plain HTTP on a loopback address
+     */
+    public FirecrackerHostDaemon(InetSocketAddress address, String bridge, int tapPoolSize, String token, Path imageDir,
+                                 SSLContext tls) throws IOException {
+        if (token == null || token.isEmpty()) {
+            throw new IllegalArgumentException("A token is required, set " + TOKEN_VARIABLE);
+        }
+        if (tls == null && (address.isUnresolved() || !address.getAddress().isLoopbackAddress())) {
+            throw new IllegalArgumentException("Refusing to serve plain HTTP on " + address
+                    + ", which is not a loopback address; give a --keystore");
+        }
+        this.token = ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
+        this.imageDir = imageDir.toRealPath();
+        this.bridge = bridge;
+        this.tapPool = FirecrackerTapPool.forCloud("daemon", bridge, tapPoolSize);
+        this.executor = Executors.newCachedThreadPool(
+                new NamingThreadFactory(new DaemonThreadFactory(), "FirecrackerHostDaemon"));
+        if (tls == null) {
+            this.server = HttpServer.create(address, 0);
+        } else {
+            HttpsServer https = HttpsServer.create(address, 0);
+            https.setHttpsConfigurator(new HttpsConfigurator(tls));
+            this.server = https;
+        }
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+    }
+
+    public static void main(String[] args) throws IOException {
+        String listen = "127.0.0.1:7420";
+        String bridge = "fcbr0";
+        int tapPoolSize = 8;
+        String imageDir = null;
+        String keystore = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--listen":
+                    listen = args[i + 1];
+                    break;
+                case "--bridge":
+                    bridge = args[i + 1];
+                    break;
+                case "--tap-pool-size":
+                    tapPoolSize = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--image-dir":
+                    imageDir = args[i + 1];
+                    break;
+                case "--keystore":
+                    keystore = args[i + 1];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i] + "; " + USAGE);
+            }
+        }
+        if (imageDir == null) {
+            throw new IllegalArgumentException("--image-dir is required; " + USAGE);
+        }
+        int colon = listen.lastIndexOf(':');
+        FirecrackerHostDaemon daemon = new FirecrackerHostDaemon(
+                new InetSocketAddress(listen.substring(0, colon), Integer.parseInt(listen.substring(colon + 1))),
+                bridge, tapPoolSize, System.getenv(TOKEN_VARIABLE), Paths.get(imageDir),
+                keystore == null ? null : tls(Paths.get(keystore), System.getenv(KEYSTORE_PASSWORD_VARIABLE)));
+        Runtime.getRuntime().addShutdownHook(new Thread(daemon::close, "FirecrackerHostDaemon shutdown"));
+        daemon.start();
+        // Without Jenkins there is no periodic work, so disk limits follow the host's I/O pressure from here
+        Executors.newSingleThreadScheduledExecutor(new NamingThreadFactory(new DaemonThreadFactory(), "FirecrackerHostDaemon.pressure"))
+                .scheduleWithFixedDelay(FirecrackerRateLimits::adjust, 10, 10, TimeUnit.SECONDS);
+        LOGGER.log(Level.INFO, "Firecracker host daemon listening on {0}, guests on bridge {1}", new Object[]{listen, bridge});
+    }
+
+    /**
+     * Loads a TLS context from a PKCS#12 keystore holding the daemon's key and certificate.
+     */
+    static SSLContext tls(Path keystore, String password) throws IOException {
+        char[] secret = password == null ? new char[0] : password.toCharArray();
+        try (InputStream in = Files.newInputStream(keystore)) {
+            KeyStore keys = KeyStore.getInstance("PKCS12");
+            keys.load(in, secret);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keys, secret);
+            SSLContext tls = SSLContext.getInstance("TLS");
+            tls.init(keyManagers.getKeyManagers(), null, null);
+            return tls;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot load TLS key and certificate from " + keystore, e);
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops serving and terminates every VM.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        List<FirecrackerVM> running = new ArrayList<>(vms.values());
+        vms.clear();
+        for (FirecrackerVM vm : running) {
+            vm.terminate();
+        }
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!MessageDigest.isEqual(token, String.valueOf(
+                    exchange.getRequestHeaders().getFirst("Authorization")).getBytes(StandardCharsets.UTF_8))) {
+                respond(exchange, 401, error("Unauthorized"));
+                return;
+            }
+            route(exchange);
+        } catch (JSONException | IllegalArgumentException e) {
+            respond(exchange, 400, error(e.getMessage()));
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to handle " + exchange.getRequestMethod() + " " + exchange.getRequestURI(), e);
+            respond(exchange, 500, error(String.valueOf(e.getMessage())));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void route(HttpExchange exchange) throws Exception {
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/");
+
+        if (path.length == 1 && path[0].equals("health") && method.equals("GET")) {
+            try {
+                respond(exchange, 200, FirecrackerHost.Status.local().toJson().element("vms", vms.size()));
+            } catch (IOException e) {
+                respond(exchange, 503, error(e.getMessage()));
+            }
+            return;
+        }
+        if (path.length < 2 || !path[0].equals("vms")) {
+            respond(exchange, 404, error("Not found"));
+            return;
+        }
+
+        String id = path[1];
+        if (path.length == 2 && method.equals("PUT")) {
+            create(exchange, id, JSONObject.fromObject(readBody(exchange)));
+            return;
+        }
+        FirecrackerVM vm = vms.get(id);
+        if (vm == null) {
+            respond(exchange, 404, error("No VM " + id));
+        } else if (path.length == 2 && method.equals("GET")) {
+            respond(exchange, 200, new JSONObject().element("alive", vm.isAlive()));
+        } else if (path.length == 2 && method.equals("DELETE")) {
+            vms.remove(id, vm);
+            vm.terminate();
+            respond(exchange, 200, new JSONObject());
+        } else if (path.length == 3 && path[2].equals("ready") && method.equals("GET")) {
+            respond(exchange, 200, awaitReady(vm, parseTimeout(exchange.getRequestURI().getQuery())));
+        } else if (path.length == 3 && path[2].equals("metadata") && method.equals("PUT")) {
+            vm.setMetadata(JSONObject.fromObject(readBody(exchange)));
+            respond(exchange, 200, new JSONObject());
+        } else {
+            respond(exchange, 404, error("Not found"));
+        }
+    }
+
+    private void create(HttpExchange exchange, String id, JSONObject spec) throws IOException, InterruptedException {
+        String vmImagePath = image(spec.getString("vmImagePath"));
+        String kernelImagePath = image(spec.getString("kernelImagePath"));
+        List<String> cacheDrives = new ArrayList<>();
+        JSONArray drives = spec.optJSONArray("cacheDrives");
+        if (drives != null) {
+            for (int i = 0; i < drives.size(); i++) {
+                cacheDrives.add(image(drives.getString(i)));
+            }
+        }
+        String bootArgs = spec.optString("bootArgs");
+        if (bootArgs.chars().anyMatch(Character::isISOControl)) {
+            throw new IllegalArgumentException("Boot arguments must not contain control characters");
+        }
+
+        FirecrackerVM vm = new FirecrackerVM(
+                spec.getString("name"),
+                vmImagePath,
+                kernelImagePath,
+                spec.getInt("memorySize"),
+                spec.getInt("vcpuCount"),
+                bridge,
+                FirecrackerAddressPool.forCidr(spec.getString("networkCidr")).claim(spec.getString("address")));
+        vm.setRootfsStrategy(FirecrackerRootfs.Strategy.valueOf(spec.optString("rootfsStrategy", "AUTO")));
+        vm.setTapPool(tapPool);
+        vm.setBootArgs(bootArgs.isEmpty() ? null : bootArgs);
+        vm.setCacheDrives(cacheDrives);
+        JSONObject rateLimits = spec.optJSONObject("rateLimits");
+        if (rateLimits != null) {
+            vm.setRateLimits(FirecrackerRateLimits.fromJson(rateLimits));
+        }
+        vm.setConfigFileBoot(spec.optBoolean("configFileBoot"));
+        vm.setMetadata(spec.optJSONObject("metadata"));
+
+        if (vms.putIfAbsent(id, vm) != null) {
+            vm.terminate();
+            respond(exchange, 409, error("VM " + id + " already exists"));
+            return;
+        }
+        try {
+            vm.start();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            vms.remove(id, vm);
+            vm.terminate();
+            throw e;
+        }
+        respond(exchange, 200, new JSONObject().element("address", vm.getIpAddress()));
+    }
+
+    /**
+     * Resolves an image path from a spec, relative paths against the image directory.
+     *
+     * @throws IllegalArgumentException if it is not a regular file in the image directory, after
+     *         following symbolic links
+     */
+    private String image(String path) throws IOException {
+        Path resolved;
+        try {
+            resolved = imageDir.resolve(path).toRealPath();
+        } catch (NoSuchFileException e) {
+            throw new IllegalArgumentException("No image " + path);
+        }
+        if (!resolved.startsWith(imageDir) || !Files.isRegularFile(resolved)) {
+            throw new IllegalArgumentException(path + " is not an image in " + imageDir);
+        }
+        return resolved.toString();
+    }
+
+    private static JSONObject awaitReady(FirecrackerVM vm, long timeoutMillis) throws InterruptedException {
+        try {
+            String address = vm.getReadyFuture().get(timeoutMillis, TimeUnit.MILLISECONDS);
+            JSONObject status = new JSONObject().element("ready", true);
+            return address != null ? status.element("address", address) : status;
+        } catch (TimeoutException e) {
+            return new JSONObject().element("ready", false);
+        } catch (ExecutionException e) {
+            return new JSONObject().element("ready", false).element("failed", true)
+                    .element("message", String.valueOf(e.getCause().getMessage()));
+        }
+    }
+
+    private static long parseTimeout(String query) {
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("timeoutMillis=")) {
+                    return Math.min(Long.parseLong(parameter.substring("timeoutMillis=".length())), TimeUnit.MINUTES.toMillis(1));
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static JSONObject error(String message) {
+        return new JSONObject().element("error", message);
+    }
+
+    private static void respond(HttpExchange exchange, int status, JSONObject body) throws IOException {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package io.jenkins.plugins.firecracker;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import jenkins.util.SystemProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs one VM's Firecracker process under the {@code jailer}: chrooted, with the controller's
+ * user and group, in a cgroup v2 group of its own whose {@code cpu.max} is the VM's vCPUs and
+ * whose {@code memory.max} is its memory plus {@link #MEMORY_OVERHEAD_MB} for Firecracker itself.
+ * Pinned VMs also get dedicated CPUs of one NUMA node from {@link FirecrackerTopology} through
+ * {@code cpuset.cpus}, with {@code cpuset.mems} set to that node so guest memory is allocated
+ * next to them.
+ *
+ * <p>The chroot is created in {@code <chroot base>/<firecracker binary name>/<vm id>/root}, by
+ * default in a {@code firecracker-jail} directory next to the VM image. The kernel and drives are
+ * hard-linked into it, which needs them on the same filesystem as the chroot base; a VM whose
+ * files cannot be linked fails to start rather than getting copies. The jailer, and removing the
+ * chroot and cgroup afterwards, need root, which is gained through {@link #SUDO_COMMAND}.
+ */
+public final class FirecrackerJail {
+    private static final Logger LOGGER = Logger.getLogger(FirecrackerJail.class.getName());
+
+    /**
+     * How a cloud's VMs are isolated from each other and from the host.
+     */
+    public enum Isolation {
+        /** A bare Firecracker process. */
+        NONE,
+        /** Under the jailer, with CPU and memory limits. */
+        JAILER,
+        /** Under the jailer, on dedicated CPUs and NUMA-local memory. */
+        JAILER_PINNED
+    }
+
+    /**
+     * The {@code jailer} binary.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static /* non-final for script console */ String JAILER_BINARY =
+            SystemProperties.getString(FirecrackerJail.class.getName() + ".jailerBinary", "jailer");
+
+    /**
+     * Prefix of commands that need root, split on whitespace; empty if Jenkins runs as root.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static /* non-final for script console */ String SUDO_COMMAND =
+            SystemProperties.getString(FirecrackerJail.class.getName() + ".sudoCommand", "sudo");
+
+    /**
+     * Where chroots are created, instead of next to the VM image.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static /* non-final for script console */ String CHROOT_BASE =
+            SystemProperties.getString(FirecrackerJail.class.getName() + ".chrootBase");
+
+    /**
+     * The cgroup under which each VM's cgroup is created.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static /* non-final for script console */ String PARENT_CGROUP =
+            SystemProperties.getString(FirecrackerJail.class.getName() + ".parentCgroup", "firecracker");
+
+    /**
+     * Memory allowed for Firecracker's own use on top of the guest's, in MB.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static /* non-final for script console */ int MEMORY_OVERHEAD_MB =
+            SystemProperties.getInteger(FirecrackerJail.class.getName() + ".memoryOverheadMb", 128);
+
+    static final String SOCKET = "/run/firecracker.socket";
+
+    private static final long CPU_PERIOD_MICROS = 100_000;
+    private static final Path CGROUP_ROOT = Paths.get("/sys/fs/cgroup");
+
+    private final String id;
+    private final String firecracker;
+    private final Path jailDir;
+    private final Path root;
+    private final int vcpus;
+    private final int memoryMb;
+    private final FirecrackerTopology.Allocation cpus;
+    // Host path of every file exposed in the chroot, by its path in the chroot
+    private final Map<Path, String> exposed = new ConcurrentHashMap<>();
+
+    FirecrackerJail(String id, String firecracker, Path chrootBase, int vcpus, int memoryMb, FirecrackerTopology.Allocation cpus) {
+        this.id = id;
+        this.firecracker = firecracker;
+        // Where the jailer puts the chroot
+        this.jailDir = chrootBase.resolve(Paths.get(firecracker).getFileName()).resolve(id);
+        this.root = jailDir.resolve("root");
+        this.vcpus = vcpus;
+        this.memoryMb = memoryMb;
+        this.cpus = cpus;
+    }
+
+    /**
+     * A jail for the VM with the given id and image; pinned if {@code isolation} asks for it and
+     * a NUMA node has enough free CPUs.
+     */
+    static FirecrackerJail create(String id, Path vmImage, int vcpus, int memoryMb, Isolation isolation) throws IOException {
+        String firecracker = resolveBinary(FirecrackerVM.FIRECRACKER_BINARY);
+        Path base = CHROOT_BASE != null
+                ? Paths.get(CHROOT_BASE)
+                : vmImage.toAbsolutePath().getParent().resolve("firecracker-jail");
+        FirecrackerTopology.Allocation cpus = null;
+        if (isolation == Isolation.JAILER_PINNED) {
+            cpus = FirecrackerTopology.get().allocate(vcpus);
+            if (cpus == null) {
+                LOGGER.log(Level.WARNING, "No NUMA node has {0} free CPUs, VM {1} runs unpinned", new Object[]{vcpus, id});
+            }
+        }
+        return new FirecrackerJail(id, firecracker, base, vcpus, memoryMb, cpus);
+    }
+
+    Path getRoot() {
+        return root;
+    }
+
+    /**
+     * The API socket as seen from the controller.
+     */
+    Path getSocketPath() {
+        return root.resolve(SOCKET.substring(1));
+    }
+
+    FirecrackerTopology.Allocation getCpus() {
+        return cpus;
+    }
+
+    /**
+     * The jailer command line that runs {@code firecracker} in this jail.
+     */
+    List<String> command() throws IOException {
+        List<String> command = new ArrayList<>(sudo());
+        command.addAll(Arrays.asList(
+                JAILER_BINARY,
+                "--id", id,
+                "--exec-file", firecracker,
+                "--uid", String.valueOf(Files.getAttribute(Paths.get("/proc/self"), "unix:uid")),
+                "--gid", String.valueOf(Files.getAttribute(Paths.get("/proc/self"), "unix:gid")),
+                "--chroot-base-dir", jailDir.getParent().getParent().toString(),
+                "--cgroup-version", "2",
+                "--parent-cgroup", PARENT_CGROUP,
+                "--cgroup", "cpu.max=" + (vcpus * CPU_PERIOD_MICROS) + " " + CPU_PERIOD_MICROS,
+                "--cgroup", "memory.max=" + (memoryMb + (long) MEMORY_OVERHEAD_MB) * 1024 * 1024));
+        if (cpus != null) {
+            command.addAll(Arrays.asList(
+                    "--cgroup", "cpuset.cpus=" + FirecrackerTopology.formatList(cpus.getCpus()),
+                    "--cgroup", "cpuset.mems=" + cpus.getNode()));
+        }
+        command.addAll(Arrays.asList("--", "--api-sock", SOCKET));
+        return command;
+    }
+
+    /**
+     * Creates the chroot, so files can be exposed in it before the jailer runs.
+     */
+    void prepare() throws IOException {
+        Files.createDirectories(getSocketPath().getParent());
+    }
+
+    /**
+     * Makes a host file visible in the chroot, under a name derived from {@code name}.
+     *
+     * @return the file's path in the chroot, for Firecracker's API
+     */
+    String expose(String name, Path file) throws IOException {
+        Path target = root.resolve(name);
+        String inJail = "/" + name;
+        if (file.toAbsolutePath().toString().equals(exposed.get(target))) {
+            return inJail;
+        }
+        try {
+            Files.createLink(target, file);
+        } catch (IOException | UnsupportedOperationException e) {
+            // Another filesystem, or protected_hardlinks and a file the controller does not own;
+            // copying instead would cost a full image copy per VM
+            throw new IOException("Cannot link " + file + " into " + root + "; the kernel, images and drives of"
+                    + " jailed VMs must be on the same filesystem as the chroot base (" + FirecrackerJail.class.getName()
+                    + ".chrootBase) and owned by the Jenkins user", e);
+        }
+        exposed.put(target, file.toAbsolutePath().toString());
+        return inJail;
+    }
+
+    /**
+     * Removes the chroot and cgroup, and gives the VM's CPUs back. The Firecracker process must
+     * have exited.
+     */
+    void delete() throws IOException, InterruptedException {
+        try {
+            run(jailDir, "rm", "-rf", "--one-file-system", jailDir.toString());
+            Path cgroup = CGROUP_ROOT.resolve(PARENT_CGROUP).resolve(id);
+            if (Files.isDirectory(cgroup)) {
+                run(cgroup, "rmdir", cgroup.toString());
+            }
+        } finally {
+            if (cpus != null) {
+                cpus.release();
+            }
+        }
+    }
+
+    private static void run(Path target, String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(sudo());
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+        if (!process.waitFor(30, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+            throw new IOException("Timed out removing " + target);
+        }
+        if (process.exitValue() != 0) {
+            throw new IOException("Could not remove " + target + ": " + output);
+        }
+    }
+
+    private static List<String> sudo() {
+        List<String> prefix = new ArrayList<>();
+        for (String word : SUDO_COMMAND.trim().split("\\s+")) {
+            if (!word.isEmpty()) {
+                prefix.add(word);
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * The jailer wants the Firecracker binary as a path.
+     */
+    private static String resolveBinary(String binary) throws IOException {
+        if (binary.contains(File.separator)) {
+            return Paths.get(binary).toAbsolutePath().toString();
+        }
+        String path = System.getenv("PATH");
+        if (path != null) {
+            for (String dir : path.split(File.pathSeparator)) {
+                Path candidate = Paths.get(dir, binary);
+                if (Files.isExecutable(candidate)) {
+                    return candidate.toAbsolutePath().toString();
+                }
+            }
+        }
+        throw new IOException("Cannot find " + binary + " on the PATH");
+    }
+}
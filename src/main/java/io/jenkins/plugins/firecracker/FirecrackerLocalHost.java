@@ -0,0 +1,40 @@
+package io.jenkins.plugins.firecracker;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Descriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.IOException;
+
+/**
+ * The controller itself, for clouds that spread VMs over the controller and remote hosts.
+ * Its guests use the cloud's bridge, address range and tap pool.
+ */
+public class FirecrackerLocalHost extends FirecrackerHost {
+    public static final String DEFAULT_NAME = "local";
+
+    @DataBoundConstructor
+    public FirecrackerLocalHost(String name) {
+        super(Util.fixEmptyAndTrim(name) == null ? DEFAULT_NAME : name.trim());
+    }
+
+    @Override
+    FirecrackerVM createVM(FirecrackerCloud cloud, String vmName, String vmImagePath, String kernelImagePath,
+                           int memorySize, int vcpuCount) throws IOException {
+        return cloud.createLocalVM(vmName, vmImagePath, kernelImagePath, memorySize, vcpuCount);
+    }
+
+    @Override
+    Status probe() throws IOException {
+        return Status.local();
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<FirecrackerHost> {
+        @Override
+        public String getDisplayName() {
+            return "This controller";
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package io.jenkins.plugins.firecracker;
+
+import hudson.model.Node;
+import jenkins.model.Jenkins;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process provisioning latency statistics, rendered in the Prometheus text format by
+ * {@link FirecrackerMetricsAction}.
+ */
+public final class FirecrackerMetrics {
+
+    /**
+     * How the VM behind an agent was brought up.
+     */
+    public enum BootPath {
+        /** Full kernel and userspace boot. */
+        COLD,
+        /** Restored from a golden snapshot. */
+        RESTORE,
+        /** Taken already booted from a warm pool. */
+        WARM
+    }
+
+    private static final double[] QUANTILES = {0.5, 0.95, 0.99};
+
+    private static final Map<BootPath, Map<FirecrackerCloud.LaunchMode, FirecrackerHistogram>> TIME_TO_AGENT = new EnumMap<>(BootPath.class);
+    private static final Map<String, Map<FirecrackerTimeline.Phase, FirecrackerHistogram>> PHASES = new ConcurrentHashMap<>();
+
+    static {
+        for (BootPath path : BootPath.values()) {
+            Map<FirecrackerCloud.LaunchMode, FirecrackerHistogram> modes = new EnumMap<>(FirecrackerCloud.LaunchMode.class);
+            for (FirecrackerCloud.LaunchMode mode : FirecrackerCloud.LaunchMode.values()) {
+                modes.put(mode, new FirecrackerHistogram());
+            }
+            TIME_TO_AGENT.put(path, modes);
+        }
+    }
+
+    private FirecrackerMetrics() {
+    }
+
+    /**
+     * Records the time from the start of provisioning until the agent came online.
+     */
+    public static void recordTimeToAgent(BootPath path, FirecrackerCloud.LaunchMode mode, long millis) {
+        getTimeToAgent(path, mode).record(millis);
+    }
+
+    public static FirecrackerHistogram getTimeToAgent(BootPath path, FirecrackerCloud.LaunchMode mode) {
+        return TIME_TO_AGENT.get(path).get(mode);
+    }
+
+    /**
+     * Records how long one provisioning phase took for a VM of the given template.
+     */
+    public static void recordPhase(String template, FirecrackerTimeline.Phase phase, long millis) {
+        getPhase(template, phase).record(millis);
+    }
+
+    public static FirecrackerHistogram getPhase(String template, FirecrackerTimeline.Phase phase) {
+        return PHASES.computeIfAbsent(template, t -> {
+            Map<FirecrackerTimeline.Phase, FirecrackerHistogram> histograms = new EnumMap<>(FirecrackerTimeline.Phase.class);
+            for (FirecrackerTimeline.Phase p : FirecrackerTimeline.Phase.values()) {
+                histograms.put(p, new FirecrackerHistogram());
+            }
+            return histograms;
+        }).get(phase);
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format, version 0.0.4.
+     */
+    public static String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+
+        out.append("# HELP firecracker_provisioning_phase_seconds Duration of each VM provisioning phase.\n");
+        out.append("# TYPE firecracker_provisioning_phase_seconds histogram\n");
+        Map<String, Map<FirecrackerTimeline.Phase, FirecrackerHistogram>> phases = new TreeMap<>(PHASES);
+        for (Map.Entry<String, Map<FirecrackerTimeline.Phase, FirecrackerHistogram>> template : phases.entrySet()) {
+            for (Map.Entry<FirecrackerTimeline.Phase, FirecrackerHistogram> phase : template.getValue().entrySet()) {
+                if (phase.getValue().getCount() > 0) {
+                    appendHistogram(out, "firecracker_provisioning_phase_seconds",
+                            labels(template.getKey(), phase.getKey()), phase.getValue());
+                }
+            }
+        }
+
+        out.append("# HELP firecracker_provisioning_phase_quantile_seconds Estimated quantiles of each VM provisioning phase.\n");
+        out.append("# TYPE firecracker_provisioning_phase_quantile_seconds gauge\n");
+        for (Map.Entry<String, Map<FirecrackerTimeline.Phase, FirecrackerHistogram>> template : phases.entrySet()) {
+            for (Map.Entry<FirecrackerTimeline.Phase, FirecrackerHistogram> phase : template.getValue().entrySet()) {
+                if (phase.getValue().getCount() > 0) {
+                    appendQuantiles(out, "firecracker_provisioning_phase_quantile_seconds",
+                            labels(template.getKey(), phase.getKey()), phase.getValue());
+                }
+            }
+        }
+
+        out.append("# HELP firecracker_time_to_agent_seconds Time from provisioning request until the agent is online.\n");
+        out.append("# TYPE firecracker_time_to_agent_seconds histogram\n");
+        for (BootPath path : BootPath.values()) {
+            for (FirecrackerCloud.LaunchMode mode : FirecrackerCloud.LaunchMode.values()) {
+                appendHistogram(out, "firecracker_time_to_agent_seconds",
+                        "boot_path=\"" + path.name().toLowerCase(Locale.ROOT)
+                                + "\",launch_mode=\"" + mode.name().toLowerCase(Locale.ROOT) + "\"",
+                        getTimeToAgent(path, mode));
+            }
+        }
+
+        appendCloudGauges(out);
+        appendBalloonGauges(out);
+        return out.toString();
+    }
+
+    private static void appendCloudGauges(StringBuilder out) {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return;
+        }
+        StringBuilder queued = new StringBuilder();
+        StringBuilder inFlight = new StringBuilder();
+        StringBuilder instances = new StringBuilder();
+        for (FirecrackerCloud cloud : jenkins.clouds.getAll(FirecrackerCloud.class)) {
+            String labels = "{cloud=\"" + escape(cloud.name) + "\"} ";
+            FirecrackerProvisioningExecutor executor = cloud.getProvisioningExecutor();
+            queued.append("firecracker_provisioning_queue_depth").append(labels).append(executor.getQueueDepth()).append('\n');
+            inFlight.append("firecracker_provisioning_in_flight").append(labels).append(executor.getInFlight()).append('\n');
+            instances.append("firecracker_instances").append(labels).append(cloud.getCapacity().getInstanceCount()).append('\n');
+        }
+        out.append("# HELP firecracker_provisioning_queue_depth VM boots waiting for a provisioning thread.\n");
+        out.append("# TYPE firecracker_provisioning_queue_depth gauge\n").append(queued);
+        out.append("# HELP firecracker_provisioning_in_flight VM boots in progress.\n");
+        out.append("# TYPE firecracker_provisioning_in_flight gauge\n").append(inFlight);
+        out.append("# HELP firecracker_instances VMs holding a capacity reservation, booting, warm or in use.\n");
+        out.append("# TYPE firecracker_instances gauge\n").append(instances);
+    }
+
+    private static void appendBalloonGauges(StringBuilder out) {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return;
+        }
+        StringBuilder balloon = new StringBuilder();
+        StringBuilder available = new StringBuilder();
+        StringBuilder faults = new StringBuilder();
+        for (Node node : jenkins.getNodes()) {
+            FirecrackerVM vm = node instanceof FirecrackerAgent ? ((FirecrackerAgent) node).getVm() : null;
+            FirecrackerBalloon.Statistics statistics = vm == null ? null : vm.getBalloonStatistics();
+            if (statistics == null) {
+                continue;
+            }
+            String labels = "{agent=\"" + escape(node.getNodeName()) + "\"} ";
+            balloon.append("firecracker_balloon_bytes").append(labels).append(statistics.getActualMb() * 1024L * 1024L).append('\n');
+            if (statistics.getAvailableMemoryBytes() >= 0) {
+                available.append("firecracker_guest_available_memory_bytes").append(labels).append(statistics.getAvailableMemoryBytes()).append('\n');
+            }
+            if (statistics.getMajorFaults() >= 0) {
+                faults.append("firecracker_guest_major_faults_total").append(labels).append(statistics.getMajorFaults()).append('\n');
+            }
+        }
+        out.append("# HELP firecracker_balloon_bytes Guest memory held by the balloon and free for other VMs.\n");
+        out.append("# TYPE firecracker_balloon_bytes gauge\n").append(balloon);
+        out.append("# HELP firecracker_guest_available_memory_bytes Memory the guest reports as available.\n");
+        out.append("# TYPE firecracker_guest_available_memory_bytes gauge\n").append(available);
+        out.append("# HELP firecracker_guest_major_faults_total Major page faults in the guest.\n");
+        out.append("# TYPE firecracker_guest_major_faults_total counter\n").append(faults);
+    }
+
+    private static void appendHistogram(StringBuilder out, String name, String labels, FirecrackerHistogram histogram) {
+        for (int i = 0; i < FirecrackerHistogram.BOUNDS_MILLIS.length; i++) {
+            out.append(name).append("_bucket{").append(labels).append(",le=\"")
+                    .append(seconds(FirecrackerHistogram.BOUNDS_MILLIS[i])).append("\"} ")
+                    .append(histogram.getCumulativeCount(i)).append('\n');
+        }
+        out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ")
+                .append(histogram.getCumulativeCount(FirecrackerHistogram.BOUNDS_MILLIS.length)).append('\n');
+        out.append(name).append("_sum{").append(labels).append("} ").append(seconds(histogram.getSumMillis())).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+
+    private static void appendQuantiles(StringBuilder out, String name, String labels, FirecrackerHistogram histogram) {
+        for (double quantile : QUANTILES) {
+            out.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(String.format(Locale.ROOT, "%.3f", histogram.getQuantileMillis(quantile) / 1000)).append('\n');
+        }
+    }
+
+    private static String labels(String template, FirecrackerTimeline.Phase phase) {
+        return "template=\"" + escape(template) + "\",phase=\"" + phase.name().toLowerCase(Locale.ROOT) + "\"";
+    }
+
+    private static String seconds(long millis) {
+        return String.format(Locale.ROOT, "%.3f", millis / 1000.0);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,37 @@
+package io.jenkins.plugins.firecracker;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+
+/**
+ * Serves {@code /firecracker/metrics} in the Prometheus text format. Requires the
+ * Overall/SystemRead permission, so scrapers authenticate with an API token.
+ */
+@Extension
+public class FirecrackerMetricsAction implements RootAction {
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+    
+    @Override
+    public String getDisplayName() {
+        return "Firecracker Metrics";
+    }
+    
+    @Override
+    public String getUrlName() {
+        return "firecracker";
+    }
+    
+    public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.SYSTEM_READ);
+        rsp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        rsp.getWriter().write(FirecrackerMetrics.toPrometheus());
+    }
+}
@@ -0,0 +1,234 @@
+package io.jenkins.plugins.firecracker;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs host network commands through one long-lived privileged {@code ip -force -batch -}
+ * process, so tap devices are created and removed over netlink without a {@code sudo} fork
+ * per command.
+ *
+ * <p>Each request is written to the helper's stdin followed by a sync command that is known
+ * to fail, {@code link show dev <unique name>}. {@code ip} reports every failed line on stderr
+ * as {@code Command failed -:<line>}, unbuffered and in order, so the report for the sync line
+ * marks the end of the request's results and any earlier reports name the commands that
+ * failed. If the helper dies it is restarted on the next request.
+ */
+public final class FirecrackerNetworkManager {
+    private static final Logger LOGGER = Logger.getLogger(FirecrackerNetworkManager.class.getName());
+
+    private static final Pattern FAILED = Pattern.compile("^Command failed -:(\\d+)$");
+    private static final String EOF = "\u0000EOF";
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private static FirecrackerNetworkManager instance;
+
+    private final List<String> command;
+    private Process helper;
+    private OutputStream stdin;
+    private BlockingQueue<String> stderr;
+    private long lineNumber;
+    private long syncCounter;
+
+    FirecrackerNetworkManager(List<String> command) {
+        this.command = command;
+    }
+
+    /**
+     * Returns the manager for the configured {@link FirecrackerVM#IP_COMMAND}, replacing it if the
+     * command was changed.
+     */
+    public static synchronized FirecrackerNetworkManager get() {
+        List<String> command = new ArrayList<>(Arrays.asList(FirecrackerVM.IP_COMMAND.trim().split("\\s+")));
+        command.addAll(Arrays.asList("-force", "-batch", "-"));
+        if (instance == null || !instance.command.equals(command)) {
+            if (instance != null) {
+                instance.close();
+            }
+            instance = new FirecrackerNetworkManager(command);
+        }
+        return instance;
+    }
+
+    /**
+     * Runs {@code ip} batch commands, such as {@code tuntap add tap0 mode tap}, in one round trip.
+     * Every command is attempted even if an earlier one fails.
+     *
+     * @throws IOException if the helper could not be started or stopped responding
+     */
+    public synchronized Result execute(List<String> commands) throws IOException, InterruptedException {
+        if (commands.isEmpty()) {
+            return new Result(commands, Collections.emptyList());
+        }
+        ensureStarted();
+
+        long first = lineNumber + 1;
+        String sync = "fcsync" + (++syncCounter % 1_000_000_000L);
+        StringBuilder request = new StringBuilder();
+        for (String line : commands) {
+            if (line.indexOf('\n') >= 0 || line.indexOf('\r') >= 0) {
+                throw new IllegalArgumentException("Command contains a line break: " + line);
+            }
+            request.append(line).append('\n');
+        }
+        request.append("link show dev ").append(sync).append('\n');
+        lineNumber += commands.size() + 1;
+        long syncLine = lineNumber;
+
+        try {
+            stdin.write(request.toString().getBytes(StandardCharsets.UTF_8));
+            stdin.flush();
+        } catch (IOException e) {
+            close();
+            throw new IOException("Network helper exited", e);
+        }
+
+        List<Failure> failures = new ArrayList<>();
+        StringBuilder message = new StringBuilder();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (true) {
+            String line = stderr.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (line == null || line.equals(EOF)) {
+                close();
+                throw new IOException(line == null ? "Network helper did not respond" : "Network helper exited");
+            }
+            Matcher matcher = FAILED.matcher(line);
+            if (!matcher.matches()) {
+                message.append(message.length() == 0 ? "" : "\n").append(line);
+                continue;
+            }
+            long failedLine = Long.parseLong(matcher.group(1));
+            if (failedLine == syncLine) {
+                return new Result(commands, failures);
+            }
+            if (failedLine >= first && failedLine < syncLine) {
+                failures.add(new Failure(commands.get((int) (failedLine - first)), message.toString()));
+            }
+            message.setLength(0);
+        }
+    }
+
+    /**
+     * Stops the helper. The next request starts a new one.
+     */
+    public synchronized void close() {
+        if (helper != null) {
+            try {
+                stdin.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error closing network helper input", e);
+            }
+            helper.destroy();
+            helper = null;
+        }
+    }
+
+    private void ensureStarted() throws IOException {
+        if (helper != null && helper.isAlive()) {
+            return;
+        }
+        LOGGER.log(Level.FINE, "Starting network helper: {0}", command);
+        Process process = new ProcessBuilder(command).start();
+        BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        pump(process.getErrorStream(), lines, "stderr");
+        pump(process.getInputStream(), null, "stdout");
+        helper = process;
+        stdin = process.getOutputStream();
+        stderr = lines;
+        lineNumber = 0;
+    }
+
+    private static void pump(InputStream stream, BlockingQueue<String> lines, String name) {
+        Thread thread = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (lines != null) {
+                        lines.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Network helper " + name + " closed", e);
+            }
+            if (lines != null) {
+                lines.add(EOF);
+            }
+        }, "Firecracker network helper " + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Outcome of one request.
+     */
+    public static final class Result {
+        private final List<String> commands;
+        private final List<Failure> failures;
+
+        Result(List<String> commands, List<Failure> failures) {
+            this.commands = commands;
+            this.failures = failures;
+        }
+
+        public List<String> getCommands() {
+            return commands;
+        }
+
+        public boolean isSuccessful() {
+            return failures.isEmpty();
+        }
+
+        public List<Failure> getFailures() {
+            return Collections.unmodifiableList(failures);
+        }
+
+        /**
+         * @throws IOException describing every failed command, if any failed
+         */
+        public void check() throws IOException {
+            if (!failures.isEmpty()) {
+                StringBuilder message = new StringBuilder("ip commands failed:");
+                for (Failure failure : failures) {
+                    message.append("\n  ").append(failure.getCommand()).append(": ").append(failure.getMessage());
+                }
+                throw new IOException(message.toString());
+            }
+        }
+    }
+
+    /**
+     * A command that failed, with what {@code ip} printed about it.
+     */
+    public static final class Failure {
+        private final String command;
+        private final String message;
+
+        Failure(String command, String message) {
+            this.command = command;
+            this.message = message;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
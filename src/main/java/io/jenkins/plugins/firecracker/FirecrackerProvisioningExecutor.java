@@ -0,0 +1,78 @@
+package io.jenkins.plugins.firecracker;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded thread pool that runs a cloud's provisioning work.
+ *
+ * <p>Provisioning blocks for as long as a VM takes to boot, so it is kept off
+ * {@code Computer.threadPoolForRemoting}, which also carries agent communication. Excess work
+ * queues up here instead. There is one executor per cloud name, resized when the cloud is
+ * reconfigured; idle threads time out.
+ */
+public final class FirecrackerProvisioningExecutor {
+    private static final Map<String, FirecrackerProvisioningExecutor> EXECUTORS = new ConcurrentHashMap<>();
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private FirecrackerProvisioningExecutor(String cloudName, int threads) {
+        int size = Math.max(1, threads);
+        executor = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "FirecrackerCloud.provision[" + cloudName + "]"));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static FirecrackerProvisioningExecutor forCloud(String cloudName, int threads) {
+        FirecrackerProvisioningExecutor provisioningExecutor =
+                EXECUTORS.computeIfAbsent(cloudName, name -> new FirecrackerProvisioningExecutor(name, threads));
+        provisioningExecutor.resize(threads);
+        return provisioningExecutor;
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(() -> {
+            inFlight.incrementAndGet();
+            try {
+                return task.call();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        });
+    }
+
+    /** Tasks waiting for a thread. */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /** Tasks currently running. */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    private synchronized void resize(int threads) {
+        int size = Math.max(1, threads);
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else if (size < executor.getMaximumPoolSize()) {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+}
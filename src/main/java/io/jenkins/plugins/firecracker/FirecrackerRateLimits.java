@@ -0,0 +1,237 @@
+package io.jenkins.plugins.firecracker;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.util.SystemProperties;
+import net.sf.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A template's disk and network limits, applied to its VMs as Firecracker token-bucket rate
+ * limiters. Every drive of a VM gets a bucket of its own with the disk limits, and {@code eth0}
+ * gets one each way with the network limit. Zero means unlimited.
+ *
+ * <p>While the host is short of I/O, as measured by the {@code some avg10} line of
+ * {@code /proc/pressure/io}, the disk limits of running VMs are cut to {@link #CONTENDED_SHARE}
+ * of their configured values through {@code PATCH /drives/<id>}, and raised again once the
+ * pressure falls below half of {@link #PRESSURE_THRESHOLD}. The kernel reports no pressure for
+ * the network, so network limits stay as configured. VMs without limits are left alone.
+ */
+public final class FirecrackerRateLimits {
+    private static final Logger LOGGER = Logger.getLogger(FirecrackerRateLimits.class.getName());
+
+    /**
+     * Percentage of time in which some task was stalled on I/O, averaged over 10 seconds, above
+     * which disk limits are tightened.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static /* non-final for script console */ double PRESSURE_THRESHOLD = Double.parseDouble(
+            SystemProperties.getString(FirecrackerRateLimits.class.getName() + ".pressureThreshold", "20"));
+
+    /**
+     * Fraction of their configured disk limits that VMs keep while the host is contended.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static /* non-final for script console */ double CONTENDED_SHARE = Double.parseDouble(
+            SystemProperties.getString(FirecrackerRateLimits.class.getName() + ".contendedShare", "0.5"));
+
+    /**
+     * The pressure stall file that is read. Tests point this at a plain file.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static /* non-final for script console */ String PRESSURE_FILE =
+            SystemProperties.getString(FirecrackerRateLimits.class.getName() + ".pressureFile", "/proc/pressure/io");
+
+    // Firecracker refills buckets over this period; sizes are per period
+    private static final long REFILL_MILLIS = 1000;
+
+    private static final Set<FirecrackerVM> LIMITED = ConcurrentHashMap.newKeySet();
+    private static volatile boolean contended;
+
+    private final long diskBytesPerSecond;
+    private final long diskOpsPerSecond;
+    private final long networkBytesPerSecond;
+
+    public FirecrackerRateLimits(long diskBytesPerSecond, long diskOpsPerSecond, long networkBytesPerSecond) {
+        this.diskBytesPerSecond = Math.max(0, diskBytesPerSecond);
+        this.diskOpsPerSecond = Math.max(0, diskOpsPerSecond);
+        this.networkBytesPerSecond = Math.max(0, networkBytesPerSecond);
+    }
+
+    public long getDiskBytesPerSecond() {
+        return diskBytesPerSecond;
+    }
+
+    public long getDiskOpsPerSecond() {
+        return diskOpsPerSecond;
+    }
+
+    public long getNetworkBytesPerSecond() {
+        return networkBytesPerSecond;
+    }
+
+    public boolean isUnlimited() {
+        return diskBytesPerSecond == 0 && diskOpsPerSecond == 0 && networkBytesPerSecond == 0;
+    }
+
+    /**
+     * These limits with the disk limits scaled by {@code share}; limited resources keep at least
+     * one byte or operation per second.
+     */
+    FirecrackerRateLimits withDiskShare(double share) {
+        return new FirecrackerRateLimits(scale(diskBytesPerSecond, share), scale(diskOpsPerSecond, share), networkBytesPerSecond);
+    }
+
+    private static long scale(long limit, double share) {
+        return limit == 0 ? 0 : Math.max(1, (long) (limit * share));
+    }
+
+    /**
+     * The {@code rate_limiter} of a drive.
+     */
+    JSONObject getDriveLimiter() {
+        return limiter(diskBytesPerSecond, diskOpsPerSecond);
+    }
+
+    /**
+     * The {@code rx_rate_limiter} and {@code tx_rate_limiter} of a network interface.
+     */
+    JSONObject getNetworkLimiter() {
+        return limiter(networkBytesPerSecond, 0);
+    }
+
+    /**
+     * A limiter whose buckets are all empty, which Firecracker takes as unlimited, so a PATCH
+     * with it lifts a limit.
+     */
+    private static JSONObject limiter(long bytes, long ops) {
+        return new JSONObject()
+                .element("bandwidth", bucket(bytes))
+                .element("ops", bucket(ops));
+    }
+
+    private static JSONObject bucket(long size) {
+        return new JSONObject().element("size", size).element("refill_time", size == 0 ? 0 : REFILL_MILLIS);
+    }
+
+    JSONObject toJson() {
+        return new JSONObject()
+                .element("diskBytesPerSecond", diskBytesPerSecond)
+                .element("diskOpsPerSecond", diskOpsPerSecond)
+                .element("networkBytesPerSecond", networkBytesPerSecond);
+    }
+
+    static FirecrackerRateLimits fromJson(JSONObject json) {
+        return new FirecrackerRateLimits(json.optLong("diskBytesPerSecond"), json.optLong("diskOpsPerSecond"),
+                json.optLong("networkBytesPerSecond"));
+    }
+
+    @Override
+    public String toString() {
+        return "disk " + diskBytesPerSecond + " B/s, " + diskOpsPerSecond + " ops/s; network " + networkBytesPerSecond + " B/s";
+    }
+
+    /**
+     * The limits a VM starting now gets: its template's, tightened if the host is contended.
+     */
+    static FirecrackerRateLimits current(FirecrackerRateLimits configured) {
+        return contended ? configured.withDiskShare(CONTENDED_SHARE) : configured;
+    }
+
+    /**
+     * Tracks a running VM so its limits follow the host's I/O pressure.
+     */
+    static void register(FirecrackerVM vm) {
+        LIMITED.add(vm);
+    }
+
+    static void unregister(FirecrackerVM vm) {
+        LIMITED.remove(vm);
+    }
+
+    static boolean isContended() {
+        return contended;
+    }
+
+    /**
+     * Reads the host's I/O pressure and, when it crosses the threshold either way, patches the
+     * limits of every tracked VM.
+     */
+    static void adjust() {
+        double pressure;
+        try {
+            pressure = readPressure(new String(Files.readAllBytes(Paths.get(PRESSURE_FILE)), StandardCharsets.UTF_8));
+        } catch (NoSuchFileException e) {
+            // Kernels before 4.20, or built without CONFIG_PSI
+            return;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not read " + PRESSURE_FILE, e);
+            return;
+        }
+        boolean wasContended = contended;
+        if (!wasContended && pressure >= PRESSURE_THRESHOLD) {
+            contended = true;
+        } else if (wasContended && pressure < PRESSURE_THRESHOLD / 2) {
+            contended = false;
+        } else {
+            return;
+        }
+        List<FirecrackerVM> vms = new ArrayList<>(LIMITED);
+        LOGGER.log(Level.INFO, "I/O pressure at {0}%, {1} disk limits of {2} VMs",
+                new Object[]{pressure, contended ? "tightening" : "restoring", vms.size()});
+        for (FirecrackerVM vm : vms) {
+            try {
+                vm.updateRateLimits(current(vm.getRateLimits()));
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not update the rate limits of VM " + vm.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * @return the {@code some avg10} percentage of a pressure stall file
+     */
+    static double readPressure(String content) throws IOException {
+        for (String line : content.split("\n")) {
+            if (line.startsWith("some ")) {
+                for (String field : line.split("\\s+")) {
+                    if (field.startsWith("avg10=")) {
+                        return Double.parseDouble(field.substring("avg10=".length()));
+                    }
+                }
+            }
+        }
+        throw new IOException("No \"some avg10\" in pressure file");
+    }
+
+    @Extension
+    public static class PressureCheck extends AsyncPeriodicWork {
+        public PressureCheck() {
+            super("Firecracker I/O pressure check");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.SECONDS.toMillis(10);
+        }
+
+        @Override
+        protected void execute(TaskListener listener) {
+            adjust();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package io.jenkins.plugins.firecracker;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import hudson.util.Secret;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+/**
+ * A machine running {@link FirecrackerHostDaemon}, which starts and stops VMs on the controller's
+ * behalf. Its guests get addresses from this host's own network CIDR, which the controller
+ * allocates from so that it knows every guest's address before boot; the range has to be routed
+ * to the host.
+ *
+ * <p>Requests carry the daemon's token and guests' secrets, so the daemon's URL must be
+ * {@code https://}; plain {@code http://} is only accepted to a loopback address, such as the
+ * controller's end of an SSH tunnel. The daemon's certificate has to be trusted by the controller's JVM.
+ */
+public class FirecrackerRemoteHost extends FirecrackerHost {
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+
+    private static final HttpClient CLIENT = HttpClient.newBuilder().connectTimeout(CONNECT_TIMEOUT).build();
+
+    private final String url;
+    private Secret token;
+    private String networkCidr;
+
+    @DataBoundConstructor
+    public FirecrackerRemoteHost(String name, String url) {
+        super(name);
+        this.url = url;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Secret getToken() {
+        return token;
+    }
+
+    @DataBoundSetter
+    public void setToken(Secret token) {
+        this.token = token;
+    }
+
+    public String getNetworkCidr() {
+        return networkCidr;
+    }
+
+    @DataBoundSetter
+    public void setNetworkCidr(String networkCidr) {
+        this.networkCidr = networkCidr;
+    }
+
+    @Override
+    FirecrackerVM createVM(FirecrackerCloud cloud, String vmName, String vmImagePath, String kernelImagePath,
+                           int memorySize, int vcpuCount) throws IOException {
+        if (Util.fixEmptyAndTrim(networkCidr) == null) {
+            throw new IOException("Firecracker host " + getName() + " has no guest network CIDR");
+        }
+        FirecrackerRemoteVM vm = new FirecrackerRemoteVM(this, vmName, vmImagePath, kernelImagePath, memorySize,
+                vcpuCount, FirecrackerAddressPool.forCidr(networkCidr).allocate());
+        vm.setRootfsStrategy(cloud.getRootfsStrategy());
+        return vm;
+    }
+
+    @Override
+    Status probe() throws IOException, InterruptedException {
+        return Status.fromJson(request("GET", "/health", null, CONNECT_TIMEOUT));
+    }
+
+    /**
+     * Boots a VM from its spec and returns once the Firecracker process has been told to start it.
+     */
+    void startVM(String id, JSONObject spec) throws IOException, InterruptedException {
+        request("PUT", "/vms/" + id, spec, Duration.ofMinutes(5));
+    }
+
+    /**
+     * Waits up to {@code timeoutMillis} on the host for the guest's readiness signal.
+     *
+     * @return {@code ready}, and the announced {@code address} if any, or {@code failed} and a
+     *         {@code message} if the VM exited first
+     */
+    JSONObject awaitReady(String id, long timeoutMillis) throws IOException, InterruptedException {
+        return request("GET", "/vms/" + id + "/ready?timeoutMillis=" + timeoutMillis, null,
+                Duration.ofMillis(timeoutMillis).plus(CONNECT_TIMEOUT));
+    }
+
+    boolean isAlive(String id) throws IOException, InterruptedException {
+        return request("GET", "/vms/" + id, null, CONNECT_TIMEOUT).optBoolean("alive");
+    }
+
+    void putMetadata(String id, JSONObject metadata) throws IOException, InterruptedException {
+        request("PUT", "/vms/" + id + "/metadata", metadata, CONNECT_TIMEOUT);
+    }
+
+    /**
+     * Terminates a VM and returns once the host has cleaned up after it.
+     */
+    void deleteVM(String id) throws IOException, InterruptedException {
+        request("DELETE", "/vms/" + id, null, Duration.ofMinutes(1));
+    }
+
+    /**
+     * Rejects URLs that would send requests in cleartext over the network.
+     */
+    static void checkUrl(String url) {
+        URI uri;
+        try {
+            uri = new URI(Util.fixNull(url).trim());
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Malformed URL " + url, e);
+        }
+        if ("https".equalsIgnoreCase(uri.getScheme())) {
+            return;
+        }
+        if (!"http".equalsIgnoreCase(uri.getScheme()) || !isLoopback(uri.getHost())) {
+            throw new IllegalArgumentException("The daemon URL must be https://, or http:// to a loopback address "
+                    + "such as the end of an SSH tunnel");
+        }
+    }
+
+    private static boolean isLoopback(String host) {
+        return host != null && (host.equalsIgnoreCase("localhost") || host.matches("127(\\.\\d{1,3}){3}") || host.equals("[::1]"));
+    }
+
+    private JSONObject request(String method, String path, JSONObject body, Duration timeout) throws IOException, InterruptedException {
+        try {
+            checkUrl(url);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Firecracker host " + getName() + ": " + e.getMessage(), e);
+        }
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url.replaceAll("/+$", "") + path))
+                .timeout(timeout)
+                .method(method, body == null
+                        ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofString(body.toString(), StandardCharsets.UTF_8));
+        if (body != null) {
+            request.header("Content-Type", "application/json");
+        }
+        String secret = Secret.toString(token);
+        if (!secret.isEmpty()) {
+            request.header("Authorization", "Bearer " + secret);
+        }
+
+        HttpResponse<String> response = CLIENT.send(request.build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException(method + " " + path + " on Firecracker host " + getName() + " failed with "
+                    + response.statusCode() + ": " + response.body());
+        }
+        try {
+            return response.body().isEmpty() ? new JSONObject() : JSONObject.fromObject(response.body());
+        } catch (JSONException e) {
+            throw new IOException("Unexpected response from Firecracker host " + getName() + ": " + response.body(), e);
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<FirecrackerHost> {
+        @Override
+        public String getDisplayName() {
+            return "Remote host";
+        }
+
+        public FormValidation doCheckUrl(@QueryParameter String value) {
+            try {
+                checkUrl(value);
+                return FormValidation.ok();
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
+        public FormValidation doCheckNetworkCidr(@QueryParameter String value) {
+            try {
+                new FirecrackerAddressPool(value);
+                return FormValidation.ok();
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package io.jenkins.plugins.firecracker;
+
+import net.sf.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A VM run by the {@link FirecrackerHostDaemon} of a {@link FirecrackerRemoteHost}. The daemon
+ * owns the Firecracker process, tap and drives; this side keeps the address lease and capacity
+ * reservation, and learns that the guest is ready by long-polling the daemon.
+ *
+ * <p>Remote VMs are always booted cold: snapshots live on the controller.
+ */
+final class FirecrackerRemoteVM extends FirecrackerVM {
+    private static final Logger LOGGER = Logger.getLogger(FirecrackerRemoteVM.class.getName());
+
+    private static final long READY_POLL_MILLIS = 10000;
+    // Consecutive failed polls after which the VM is given up on
+    private static final int MAX_POLL_FAILURES = 5;
+
+    private final FirecrackerRemoteHost host;
+    private volatile boolean started;
+
+    FirecrackerRemoteVM(FirecrackerRemoteHost host, String name, String vmImagePath, String kernelImagePath,
+                        int memorySize, int vcpuCount, FirecrackerAddressPool.Lease lease) {
+        super(name, vmImagePath, kernelImagePath, memorySize, vcpuCount, null, lease);
+        this.host = host;
+    }
+
+    FirecrackerRemoteHost getHost() {
+        return host;
+    }
+
+    @Override
+    public boolean isAlive() {
+        if (!started) {
+            return false;
+        }
+        try {
+            return host.isAlive(getId());
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not reach Firecracker host " + host.getName(), e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public void start() throws IOException, InterruptedException {
+        LOGGER.log(Level.INFO, "Starting Firecracker VM {0} on {1}", new Object[]{getName(), host.getName()});
+
+        // The host sets up, launches and configures the VM in one request
+        try (FirecrackerTimeline.Span span = getTimeline().begin(FirecrackerTimeline.Phase.API_CONFIG)) {
+            host.startVM(getId(), getSpec());
+        }
+        started = true;
+        markBootStarted();
+        pollReadiness();
+    }
+
+    @Override
+    public void restore(FirecrackerSnapshotStore.Snapshot snapshot) throws IOException {
+        throw new IOException("VMs on remote hosts cannot be restored from snapshots");
+    }
+
+    @Override
+    public void createSnapshot(Path statePath, Path memoryPath) throws IOException {
+        throw new IOException("VMs on remote hosts cannot be snapshotted");
+    }
+
+    @Override
+    public void setMetadata(JSONObject metadata) throws IOException {
+        super.setMetadata(metadata);
+        if (started) {
+            try {
+                host.putMetadata(getId(), metadata);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted updating the metadata of " + getName(), e);
+            }
+        }
+    }
+
+    @Override
+    CompletableFuture<Void> stopProcess() {
+        if (!started) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.runAsync(() -> {
+            try {
+                host.deleteVM(getId());
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not terminate " + getName() + " on " + host.getName(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, TERMINATION_EXECUTOR);
+    }
+
+    /**
+     * Completes the ready future from the host's readiness signal, in the background.
+     */
+    private void pollReadiness() {
+        Thread poller = new Thread(() -> {
+            CompletableFuture<String> ready = getReadyFuture();
+            int failures = 0;
+            while (!ready.isDone()) {
+                try {
+                    JSONObject status = host.awaitReady(getId(), READY_POLL_MILLIS);
+                    failures = 0;
+                    if (status.optBoolean("ready")) {
+                        markReady(status.optString("address", null));
+                    } else if (status.optBoolean("failed")) {
+                        ready.completeExceptionally(new IOException(status.optString("message")));
+                    }
+                } catch (IOException e) {
+                    if (++failures >= MAX_POLL_FAILURES) {
+                        ready.completeExceptionally(e);
+                    } else {
+                        LOGGER.log(Level.FINE, "Readiness poll for " + getName() + " failed", e);
+                        sleep();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "Firecracker readiness " + getName());
+        poller.setDaemon(true);
+        poller.start();
+    }
+
+    private static void sleep() {
+        try {
+            TimeUnit.SECONDS.sleep(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -6,59 +6,177 @@ import hudson.slaves.OfflineCause;
 import hudson.slaves.RetentionStrategy;
 import jenkins.model.Jenkins;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Terminates agents that have been idle for longer than their template allows, except for the
+ * template's minimum number of idle agents, which stay up so bursts reuse them instead of
+ * booting new VMs.
+ *
+ * <p>{@link #check} returns the number of minutes until the agent could next be due, rather than
+ * one, so Jenkins does not re-examine every agent every minute. The idle timeout is parsed once.
+ */
 public class FirecrackerRetentionStrategy extends RetentionStrategy<FirecrackerAgent.FirecrackerComputer> {
     private static final Logger LOGGER = Logger.getLogger(FirecrackerRetentionStrategy.class.getName());
     
+    // How often agents that can never time out, or are not online, are looked at
+    private static final long DISABLED_CHECK_MINUTES = 60;
+    
+    // Longer than one pass over every agent takes, shorter than the minute between passes
+    private static final long IDLE_COUNT_MAX_AGE_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    
+    private static Map<List<String>, Integer> idleCounts;
+    private static long idleCountedMillis;
+    
     private final String idleTerminationMinutes;
+    private final int minIdleAgents;
+    private transient long idleTimeoutMillis;
     
     public FirecrackerRetentionStrategy(String idleTerminationMinutes) {
+        this(idleTerminationMinutes, 0);
+    }
+    
+    public FirecrackerRetentionStrategy(String idleTerminationMinutes, int minIdleAgents) {
         this.idleTerminationMinutes = idleTerminationMinutes;
+        this.minIdleAgents = Math.max(0, minIdleAgents);
+        this.idleTimeoutMillis = parseIdleTimeout(idleTerminationMinutes);
+    }
+    
+    protected Object readResolve() {
+        idleTimeoutMillis = parseIdleTimeout(idleTerminationMinutes);
+        return this;
     }
     
     public String getIdleTerminationMinutes() {
         return idleTerminationMinutes;
     }
     
+    public int getMinIdleAgents() {
+        return minIdleAgents;
+    }
+    
     @Override
     public long check(FirecrackerAgent.FirecrackerComputer computer) {
-        if (computer.isIdle() && !computer.isOffline() && !computer.isConnecting() && computer.isAcceptingTasks()) {
-            final long idleMilliseconds = System.currentTimeMillis() - computer.getIdleStartMilliseconds();
-            
-            try {
-                int idleMinutes = Integer.parseInt(idleTerminationMinutes);
-                if (idleMinutes > 0) {
-                    final long idleTimeout = idleMinutes * 60 * 1000;
-                    if (idleMilliseconds > idleTimeout) {
-                        LOGGER.log(Level.INFO, "Disconnecting {0} after {1} idle minutes", 
-                                new Object[]{computer.getName(), idleMinutes});
-                        
-                        computer.setTemporarilyOffline(true, new OfflineCause.IdleOfflineCause());
-                        
-                        Jenkins.get().getQueue().maintain();
-                        
-                        FirecrackerAgent node = computer.getNode();
-                        if (node != null) {
-                            LOGGER.log(Level.INFO, "Terminating {0} after idle timeout", computer.getName());
-                            computer.setAcceptingTasks(false);
-                            node.terminate();
-                        }
-                    }
-                }
-            } catch (NumberFormatException e) {
-                LOGGER.log(Level.WARNING, "Invalid idle termination minutes value: " + idleTerminationMinutes, e);
-            } catch (Exception e) {
-                LOGGER.log(Level.WARNING, "Failed to terminate " + computer.getName(), e);
+        FirecrackerAgent node = computer.getNode();
+        if (node != null && computer.isOffline() && node.isAwaitingLaunch()) {
+            // Checked every minute whatever the idle timeout, so the startup timeout is enforced
+            if (node.isLaunchOverdue()) {
+                LOGGER.log(Level.WARNING, "Terminating {0}, its guest did not connect within {1} seconds",
+                        new Object[]{computer.getName(), node.getStartupTimeoutSeconds()});
+                terminate(computer, node);
             }
+            return 1;
+        }
+        if (idleTimeoutMillis <= 0) {
+            return DISABLED_CHECK_MINUTES;
+        }
+        if (!computer.isIdle()) {
+            // Idle time starts no earlier than now
+            return toMinutes(idleTimeoutMillis);
+        }
+        if (computer.isOffline() || computer.isConnecting() || !computer.isAcceptingTasks()) {
+            return 1;
         }
         
+        long remaining = idleTimeoutMillis - (System.currentTimeMillis() - computer.getIdleStartMilliseconds());
+        if (remaining > 0) {
+            return toMinutes(remaining);
+        }
+        
+        if (node == null) {
+            return 1;
+        }
+        if (minIdleAgents > 0 && !takeIdlePeer(node, minIdleAgents, Jenkins.get().getNodes())) {
+            LOGGER.log(Level.FINE, "Keeping idle agent {0} as one of the {1} its template keeps",
+                    new Object[]{computer.getName(), minIdleAgents});
+            return toMinutes(idleTimeoutMillis);
+        }
+        
+        LOGGER.log(Level.INFO, "Terminating {0} after {1} idle minutes",
+                new Object[]{computer.getName(), idleTerminationMinutes});
+        terminate(computer, node);
         return 1;
     }
     
+    private static void terminate(FirecrackerAgent.FirecrackerComputer computer, FirecrackerAgent node) {
+        try {
+            computer.setAcceptingTasks(false);
+            computer.setTemporarilyOffline(true, new OfflineCause.IdleOfflineCause());
+            // Coalesced by the queue, so many terminations in one pass cause one maintenance run
+            Jenkins.get().getQueue().scheduleMaintenance();
+            node.terminate();
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to terminate " + computer.getName(), e);
+        }
+    }
+    
     @Override
     public void start(FirecrackerAgent.FirecrackerComputer computer) {
         computer.connect(false);
     }
+    
+    /**
+     * Takes {@code node} off the count of idle, online agents of its cloud and template, unless
+     * that would leave fewer than {@code minIdleAgents}.
+     *
+     * <p>Jenkins checks every agent in one pass, so the count is taken once per pass instead of
+     * walking every node for each expired agent; agents terminated during the pass come off it.
+     *
+     * @return whether {@code node} may be terminated
+     */
+    static synchronized boolean takeIdlePeer(FirecrackerAgent node, int minIdleAgents, Collection<Node> nodes) {
+        long now = System.currentTimeMillis();
+        if (idleCounts == null || now - idleCountedMillis > IDLE_COUNT_MAX_AGE_MILLIS) {
+            idleCounts = countIdle(nodes);
+            idleCountedMillis = now;
+        }
+        List<String> key = templateKey(node);
+        int idle = idleCounts.getOrDefault(key, 0);
+        if (idle <= minIdleAgents) {
+            return false;
+        }
+        idleCounts.put(key, idle - 1);
+        return true;
+    }
+    
+    private static Map<List<String>, Integer> countIdle(Collection<Node> nodes) {
+        Map<List<String>, Integer> counts = new HashMap<>();
+        for (Node peer : nodes) {
+            if (!(peer instanceof FirecrackerAgent)) {
+                continue;
+            }
+            Computer computer = peer.toComputer();
+            if (computer != null && computer.isIdle() && computer.isOnline() && computer.isAcceptingTasks()) {
+                counts.merge(templateKey((FirecrackerAgent) peer), 1, Integer::sum);
+            }
+        }
+        return counts;
+    }
+    
+    private static List<String> templateKey(FirecrackerAgent node) {
+        return Arrays.asList(node.getCloudName(), node.getLabelString());
+    }
+    
+    private static long toMinutes(long millis) {
+        return Math.max(1, (millis + TimeUnit.MINUTES.toMillis(1) - 1) / TimeUnit.MINUTES.toMillis(1));
+    }
+    
+    static long parseIdleTimeout(String minutes) {
+        if (minutes == null || minutes.trim().isEmpty()) {
+            return 0;
+        }
+        try {
+            return TimeUnit.MINUTES.toMillis(Integer.parseInt(minutes.trim()));
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid idle termination minutes value: {0}", minutes);
+            return 0;
+        }
+    }
 }
@@ -0,0 +1,269 @@
+package io.jenkins.plugins.firecracker;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The root filesystem drives of one VM.
+ *
+ * <p>Every VM gets its own writable view of the template rootfs, so concurrent agents never
+ * write to the same file. Clones are placed in a {@code firecracker-clones} directory next to
+ * the base image, which keeps them on the same filesystem as the base so reflinks can work.
+ */
+public final class FirecrackerRootfs {
+    private static final Logger LOGGER = Logger.getLogger(FirecrackerRootfs.class.getName());
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final long DEFAULT_SCRATCH_SIZE = 4L * 1024 * 1024 * 1024;
+
+    /** Whether reflinks worked in a clone directory, so unsupported filesystems are only probed once. */
+    private static final Map<Path, Boolean> REFLINK_SUPPORT = new ConcurrentHashMap<>();
+
+    /**
+     * How {@code cp} reports that the filesystem cannot share extents: {@code EOPNOTSUPP},
+     * {@code EXDEV}, {@code ENOTTY} from kernels without {@code FICLONE}, and {@code ENOSYS}.
+     */
+    private static final String[] REFLINK_UNSUPPORTED = {
+            "Operation not supported", "Invalid cross-device link", "Inappropriate ioctl for device",
+            "Function not implemented"};
+
+    public enum Strategy {
+        /** Reflink if the filesystem supports it, sparse copy otherwise. */
+        AUTO,
+        /** {@code FICLONE} clone sharing extents with the base until written. */
+        REFLINK,
+        /** Full copy that skips zero blocks, leaving holes in the clone. */
+        SPARSE_COPY,
+        /**
+         * The base image attached read-only plus an empty sparse scratch drive. The guest's
+         * init has to mount an overlay of the scratch drive ({@code /dev/vdb}) over the root.
+         */
+        OVERLAY
+    }
+
+    private final Path rootPath;
+    private final boolean readOnly;
+    private final Path scratchPath;
+    private final Strategy strategy;
+
+    private FirecrackerRootfs(Path rootPath, boolean readOnly, Path scratchPath, Strategy strategy) {
+        this.rootPath = rootPath;
+        this.readOnly = readOnly;
+        this.scratchPath = scratchPath;
+        this.strategy = strategy;
+    }
+
+    /**
+     * Provisions the drives for one VM from the base image.
+     */
+    public static FirecrackerRootfs create(Path baseImage, String vmId, Strategy strategy) throws IOException, InterruptedException {
+        Path dir = cloneDir(baseImage);
+        if (strategy == Strategy.OVERLAY) {
+            Path scratch = dir.resolve(vmId + "-scratch.ext4");
+            try (RandomAccessFile file = new RandomAccessFile(scratch.toFile(), "rw")) {
+                file.setLength(DEFAULT_SCRATCH_SIZE);
+            }
+            return new FirecrackerRootfs(baseImage, true, scratch, strategy);
+        }
+
+        Path clone = dir.resolve(vmId + "-rootfs.ext4");
+        return new FirecrackerRootfs(clone, false, null, copy(baseImage, clone, strategy));
+    }
+
+    /**
+     * Drives that already exist on disk, such as those a golden VM was snapshotted with.
+     */
+    static FirecrackerRootfs existing(Path rootPath, boolean readOnly, Path scratchPath, Strategy strategy) {
+        return new FirecrackerRootfs(rootPath, readOnly, scratchPath, strategy);
+    }
+
+    /**
+     * Provisions drives for another VM holding the same disk contents as these, so that a VM
+     * restored from a snapshot of this VM's memory sees the filesystem its page cache expects.
+     * A read-only base is shared and only the writable drive is cloned.
+     */
+    public FirecrackerRootfs cloneFor(String vmId, Strategy strategy) throws IOException, InterruptedException {
+        Strategy copyStrategy = strategy == Strategy.OVERLAY ? Strategy.AUTO : strategy;
+        if (scratchPath != null) {
+            Path scratch = cloneDir(scratchPath).resolve(vmId + "-scratch.ext4");
+            copy(scratchPath, scratch, copyStrategy);
+            return new FirecrackerRootfs(rootPath, true, scratch, Strategy.OVERLAY);
+        }
+        Path clone = cloneDir(rootPath).resolve(vmId + "-rootfs.ext4");
+        return new FirecrackerRootfs(clone, readOnly, null, copy(rootPath, clone, copyStrategy));
+    }
+
+    public Path getRootPath() {
+        return rootPath;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return the scratch drive for {@link Strategy#OVERLAY}, or {@code null}
+     */
+    public Path getScratchPath() {
+        return scratchPath;
+    }
+
+    /**
+     * @return the strategy actually used, never {@link Strategy#AUTO}
+     */
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Deletes the per-VM files. The base image is never touched.
+     */
+    public void delete() throws IOException {
+        if (strategy != Strategy.OVERLAY) {
+            Files.deleteIfExists(rootPath);
+        }
+        if (scratchPath != null) {
+            Files.deleteIfExists(scratchPath);
+        }
+    }
+
+    private static Path cloneDir(Path image) throws IOException {
+        Path dir = image.toAbsolutePath().getParent();
+        if (!dir.getFileName().toString().equals("firecracker-clones")) {
+            dir = dir.resolve("firecracker-clones");
+        }
+        Files.createDirectories(dir);
+        return dir;
+    }
+
+    /**
+     * Copies an image with the cheapest strategy that works in the target directory.
+     *
+     * @return {@link Strategy#REFLINK} or {@link Strategy#SPARSE_COPY}
+     */
+    private static Strategy copy(Path source, Path target, Strategy strategy) throws IOException, InterruptedException {
+        Path dir = target.getParent();
+        if (strategy != Strategy.SPARSE_COPY && REFLINK_SUPPORT.getOrDefault(dir, true)) {
+            try {
+                reflink(source, target);
+                REFLINK_SUPPORT.put(dir, true);
+                return Strategy.REFLINK;
+            } catch (IOException e) {
+                Files.deleteIfExists(target);
+                // Anything but the filesystem lacking reflinks, such as a full disk, fails this clone only
+                if (strategy == Strategy.REFLINK || !isReflinkUnsupported(e.getMessage())) {
+                    throw e;
+                }
+                LOGGER.log(Level.INFO, "Reflinks are not supported in {0}, falling back to sparse copies", dir);
+                REFLINK_SUPPORT.put(dir, false);
+            }
+        }
+
+        try {
+            // cp finds the holes with SEEK_DATA instead of reading them; copy in-process if it is unavailable
+            try {
+                run("cp", "--sparse=always", source.toString(), target.toString());
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "cp --sparse failed, copying " + source + " in-process", e);
+                sparseCopy(source, target);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+        return Strategy.SPARSE_COPY;
+    }
+
+    private static void reflink(Path source, Path target) throws IOException, InterruptedException {
+        // cp issues the FICLONE ioctl and fails instead of copying when the filesystem cannot share extents
+        run("cp", "--reflink=always", source.toString(), target.toString());
+    }
+
+    static boolean isReflinkUnsupported(String message) {
+        if (message != null) {
+            for (String error : REFLINK_UNSUPPORTED) {
+                if (message.contains(error)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void run(String... command) throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+        // Errors are matched against REFLINK_UNSUPPORTED, which is untranslated
+        builder.environment().put("LC_ALL", "C");
+        Process process = builder.start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        if (!process.waitFor(10, TimeUnit.MINUTES)) {
+            process.destroyForcibly();
+            throw new IOException("Timed out: " + String.join(" ", command));
+        }
+        if (process.exitValue() != 0) {
+            throw new IOException(String.join(" ", command) + " failed: " + output.trim());
+        }
+    }
+
+    /**
+     * Copies {@code source} to {@code target}, seeking over all-zero blocks instead of writing them.
+     */
+    static void sparseCopy(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256 * BLOCK_SIZE);
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                buffer.clear();
+                int read = in.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                for (int offset = 0; offset < read; offset += BLOCK_SIZE) {
+                    int length = Math.min(BLOCK_SIZE, read - offset);
+                    if (!isZero(buffer, offset, length)) {
+                        ByteBuffer block = buffer.duplicate();
+                        block.limit(offset + length).position(offset);
+                        while (block.hasRemaining()) {
+                            out.write(block, position + block.position());
+                        }
+                    }
+                }
+                position += read;
+            }
+            // Extend over a trailing hole, which the loop never wrote
+            if (out.size() < size) {
+                out.write(ByteBuffer.allocate(1), size - 1);
+            }
+        }
+    }
+
+    private static boolean isZero(ByteBuffer buffer, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        for (; i + Long.BYTES <= end; i += Long.BYTES) {
+            if (buffer.getLong(i) != 0) {
+                return false;
+            }
+        }
+        for (; i < end; i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
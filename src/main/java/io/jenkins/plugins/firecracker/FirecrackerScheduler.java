@@ -0,0 +1,90 @@
+package io.jenkins.plugins.firecracker;
+
+import java.util.List;
+
+/**
+ * Picks the host a new VM runs on from the hosts that have room for it.
+ *
+ * <p>A host's fullness is the mean of its used memory and vCPU fractions once the VM is placed,
+ * with resources of unknown capacity left out. Ties, which include every host whose capacity is
+ * unknown, go to the host with the fewest VMs, so equal hosts take turns.
+ */
+public final class FirecrackerScheduler {
+
+    /**
+     * How VMs are spread over a cloud's hosts.
+     */
+    public enum Placement {
+        /**
+         * Best fit: the fullest host that still has room, which keeps whole hosts free for
+         * large VMs and lets idle hosts be switched off.
+         */
+        PACK,
+        /** Worst fit: the emptiest host, which keeps noisy neighbours apart. */
+        SPREAD
+    }
+
+    private FirecrackerScheduler() {
+    }
+
+    /**
+     * @return the chosen candidate, or {@code null} if no host has room
+     */
+    static Candidate choose(List<Candidate> candidates, long memoryMb, int vcpus, Placement placement) {
+        Candidate best = null;
+        double bestFullness = 0;
+        for (Candidate candidate : candidates) {
+            if (!candidate.fits(memoryMb, vcpus)) {
+                continue;
+            }
+            double fullness = candidate.fullnessWith(memoryMb, vcpus);
+            if (best == null
+                    || (placement == Placement.PACK ? fullness > bestFullness : fullness < bestFullness)
+                    || (fullness == bestFullness && candidate.instances < best.instances)) {
+                best = candidate;
+                bestFullness = fullness;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * A host's capacity and what is already reserved on it. Capacities of zero mean unknown.
+     */
+    static final class Candidate {
+        final String name;
+        final long memoryCapacityMb;
+        final int vcpuCapacity;
+        final long memoryMb;
+        final int vcpus;
+        final int instances;
+
+        Candidate(String name, long memoryCapacityMb, int vcpuCapacity, long memoryMb, int vcpus, int instances) {
+            this.name = name;
+            this.memoryCapacityMb = memoryCapacityMb;
+            this.vcpuCapacity = vcpuCapacity;
+            this.memoryMb = memoryMb;
+            this.vcpus = vcpus;
+            this.instances = instances;
+        }
+
+        boolean fits(long memoryMb, int vcpus) {
+            return (memoryCapacityMb <= 0 || this.memoryMb + memoryMb <= memoryCapacityMb)
+                    && (vcpuCapacity <= 0 || this.vcpus + vcpus <= vcpuCapacity);
+        }
+
+        double fullnessWith(long memoryMb, int vcpus) {
+            double sum = 0;
+            int resources = 0;
+            if (memoryCapacityMb > 0) {
+                sum += (double) (this.memoryMb + memoryMb) / memoryCapacityMb;
+                resources++;
+            }
+            if (vcpuCapacity > 0) {
+                sum += (double) (this.vcpus + vcpus) / vcpuCapacity;
+                resources++;
+            }
+            return resources == 0 ? 0 : sum / resources;
+        }
+    }
+}
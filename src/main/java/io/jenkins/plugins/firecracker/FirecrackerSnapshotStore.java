@@ -0,0 +1,308 @@
+package io.jenkins.plugins.firecracker;
+
+import hudson.Util;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Golden VM snapshots used by templates that boot from a snapshot.
+ *
+ * <p>A golden VM is cold-booted once per VM shape, in the background, paused once SSH is up and
+ * written out as a full snapshot under {@code $JENKINS_HOME/firecracker-snapshots}; VMs
+ * provisioned in the meantime boot cold. Snapshots are keyed by a
+ * fingerprint of the kernel and rootfs files (path, size and modification time) and the machine
+ * shape, so replacing either image builds a fresh golden VM on the next provision and the old
+ * snapshot is deleted. VMs still running from a deleted snapshot keep their private mapping of
+ * the unlinked memory file.
+ *
+ * <p>Restored guests resume with the golden VM's address and MAC until they move to their own,
+ * so the golden VM's address stays allocated for as long as its snapshot is in use.
+ */
+public class FirecrackerSnapshotStore {
+    private static final Logger LOGGER = Logger.getLogger(FirecrackerSnapshotStore.class.getName());
+
+    private static final String COMPLETE_MARKER = "complete";
+    private static final String DRIVES_FILE = "drives.properties";
+
+    private static final Map<String, CompletableFuture<Snapshot>> SNAPSHOTS = new ConcurrentHashMap<>();
+    private static final Map<String, String> CURRENT_FINGERPRINTS = new ConcurrentHashMap<>();
+
+    private static final ExecutorService BUILD_EXECUTOR = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "FirecrackerSnapshotStore.build"));
+
+    private FirecrackerSnapshotStore() {
+    }
+
+    /**
+     * Returns the golden snapshot for the template's VM shape if it is ready, and otherwise starts
+     * building it in the background, unless that is already under way, and returns {@code null}.
+     * A build that fails is started again by the next call.
+     */
+    public static Snapshot getIfReady(FirecrackerCloud cloud, FirecrackerAgentTemplate template) throws IOException {
+        String shape = cloud.getKernelImagePath(template) + "|" + cloud.getVmImagePath(template) + "|"
+                + cloud.getMemorySize(template) + "|" + cloud.getVcpuCount(template) + "|" + cloud.getRootfsStrategy()
+                + "|" + template.getBootArgs() + "|" + template.getCacheDrivePaths();
+        List<String> images = new ArrayList<>(template.getCacheDrivePaths());
+        images.add(cloud.getKernelImagePath(template));
+        images.add(cloud.getVmImagePath(template));
+        String fingerprint = fingerprint(shape, images);
+
+        String previous = CURRENT_FINGERPRINTS.put(shape, fingerprint);
+        if (previous != null && !previous.equals(fingerprint)) {
+            invalidate(previous);
+        }
+
+        CompletableFuture<Snapshot> created = new CompletableFuture<>();
+        CompletableFuture<Snapshot> existing = SNAPSHOTS.putIfAbsent(fingerprint, created);
+        if (existing == null) {
+            BUILD_EXECUTOR.submit(() -> build(cloud, template, fingerprint, created));
+            return null;
+        }
+        return existing.isDone() && !existing.isCompletedExceptionally() ? existing.join() : null;
+    }
+
+    private static void build(FirecrackerCloud cloud, FirecrackerAgentTemplate template, String fingerprint,
+                              CompletableFuture<Snapshot> created) {
+        try {
+            Snapshot snapshot = loadOrBuild(cloud, template, fingerprint);
+            created.complete(snapshot);
+            // The images changed while it was built
+            if (SNAPSHOTS.get(fingerprint) != created) {
+                snapshot.getAddress().release();
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to build golden snapshot " + fingerprint + ", VMs boot cold until it is", e);
+            SNAPSHOTS.remove(fingerprint, created);
+            created.completeExceptionally(e);
+        }
+    }
+
+    private static Snapshot loadOrBuild(FirecrackerCloud cloud, FirecrackerAgentTemplate template, String fingerprint) throws IOException, InterruptedException {
+        Path root = getRootDir();
+        Path dir = root.resolve(fingerprint);
+        if (Files.isRegularFile(dir.resolve(COMPLETE_MARKER)) && Files.isRegularFile(dir.resolve(DRIVES_FILE))) {
+            FirecrackerAddressPool.Lease address = claimAddress(dir);
+            if (address != null) {
+                return new Snapshot(fingerprint, dir.resolve("vmstate"), dir.resolve("memory"), readDrives(dir), address);
+            }
+        }
+        if (Files.exists(dir)) {
+            deleteSnapshotDir(dir);
+        }
+
+        // The golden VM runs on the controller like any other, so it counts against its budget
+        FirecrackerCapacity.Reservation reservation = cloud.getCapacity().tryReserveOnController(cloud, template);
+        if (reservation == null) {
+            throw new IOException("The controller's memory or vCPU budget has no room to build golden snapshot " + fingerprint);
+        }
+        LOGGER.log(Level.INFO, "Building golden snapshot {0}", fingerprint);
+        long started = System.currentTimeMillis();
+        Path staging;
+        try {
+            Files.createDirectories(root);
+            staging = Files.createTempDirectory(root, fingerprint + ".");
+        } catch (IOException e) {
+            reservation.release();
+            throw e;
+        }
+        FirecrackerVM golden = cloud.createVM(template, "firecracker-golden-" + UUID.randomUUID().toString().substring(0, 8), reservation);
+        FirecrackerRootfs drives = null;
+        FirecrackerAddressPool.Lease address = null;
+        try {
+            golden.start();
+            String ipAddress = golden.getIpAddress();
+            golden.waitForSsh(ipAddress, template.getStartupTimeoutSeconds());
+            golden.createSnapshot(staging.resolve("vmstate"), staging.resolve("memory"));
+            // The snapshot refers to the golden VM's drives by path, so they live as long as it does
+            drives = golden.detachRootfs();
+            address = golden.detachLease();
+            writeDrives(staging, drives, address);
+            Files.createFile(staging.resolve(COMPLETE_MARKER));
+            Files.move(staging, dir, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            Util.deleteRecursive(staging.toFile());
+            if (drives != null) {
+                drives.delete();
+            }
+            if (address != null) {
+                address.release();
+            }
+            throw e;
+        } finally {
+            golden.terminate();
+        }
+
+        LOGGER.log(Level.INFO, "Golden snapshot {0} built in {1} ms",
+                new Object[]{fingerprint, System.currentTimeMillis() - started});
+        return new Snapshot(fingerprint, dir.resolve("vmstate"), dir.resolve("memory"), drives, address);
+    }
+
+    /**
+     * Allocates the address of the golden VM a snapshot on disk was taken from again.
+     *
+     * @return the lease, or {@code null} if the snapshot has to be rebuilt
+     */
+    private static FirecrackerAddressPool.Lease claimAddress(Path dir) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(dir.resolve(DRIVES_FILE))) {
+            properties.load(in);
+        }
+        String cidr = properties.getProperty("cidr");
+        String address = properties.getProperty("address");
+        if (cidr == null || address == null) {
+            return null;
+        }
+        try {
+            return FirecrackerAddressPool.forCidr(cidr).claim(address);
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.log(Level.INFO, "Rebuilding golden snapshot " + dir.getFileName() + ", its address is taken", e);
+            return null;
+        }
+    }
+
+    private static void writeDrives(Path dir, FirecrackerRootfs drives, FirecrackerAddressPool.Lease address) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("rootfs", drives.getRootPath().toString());
+        properties.setProperty("readOnly", Boolean.toString(drives.isReadOnly()));
+        properties.setProperty("strategy", drives.getStrategy().name());
+        if (drives.getScratchPath() != null) {
+            properties.setProperty("scratch", drives.getScratchPath().toString());
+        }
+        properties.setProperty("cidr", address.getCidr());
+        properties.setProperty("address", address.getAddress());
+        try (OutputStream out = Files.newOutputStream(dir.resolve(DRIVES_FILE))) {
+            properties.store(out, null);
+        }
+    }
+
+    private static FirecrackerRootfs readDrives(Path dir) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(dir.resolve(DRIVES_FILE))) {
+            properties.load(in);
+        }
+        String scratch = properties.getProperty("scratch");
+        return FirecrackerRootfs.existing(
+                Paths.get(properties.getProperty("rootfs")),
+                Boolean.parseBoolean(properties.getProperty("readOnly")),
+                scratch == null ? null : Paths.get(scratch),
+                FirecrackerRootfs.Strategy.valueOf(properties.getProperty("strategy")));
+    }
+
+    private static void deleteSnapshotDir(Path dir) throws IOException {
+        if (Files.isRegularFile(dir.resolve(DRIVES_FILE))) {
+            try {
+                readDrives(dir).delete();
+            } catch (IOException | IllegalArgumentException e) {
+                LOGGER.log(Level.WARNING, "Failed to delete the drives of golden snapshot " + dir, e);
+            }
+        }
+        Util.deleteRecursive(dir.toFile());
+    }
+
+    private static void invalidate(String fingerprint) {
+        LOGGER.log(Level.INFO, "Kernel or rootfs changed, discarding golden snapshot {0}", fingerprint);
+        CompletableFuture<Snapshot> removed = SNAPSHOTS.remove(fingerprint);
+        if (removed != null && removed.isDone() && !removed.isCompletedExceptionally()) {
+            removed.join().getAddress().release();
+        }
+        try {
+            deleteSnapshotDir(getRootDir().resolve(fingerprint));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete golden snapshot " + fingerprint, e);
+        }
+    }
+
+    private static Path getRootDir() {
+        return new File(Jenkins.get().getRootDir(), "firecracker-snapshots").toPath();
+    }
+
+    private static String fingerprint(String shape, List<String> images) throws IOException {
+        StringBuilder key = new StringBuilder(shape);
+        for (String path : images) {
+            File file = new File(path);
+            if (!file.isFile()) {
+                throw new IOException("Image not found: " + path);
+            }
+            key.append('|').append(file.length()).append('|').append(file.lastModified());
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A complete snapshot on disk.
+     */
+    public static final class Snapshot {
+        private final String fingerprint;
+        private final Path statePath;
+        private final Path memoryPath;
+        private final FirecrackerRootfs rootfs;
+        private final FirecrackerAddressPool.Lease address;
+
+        Snapshot(String fingerprint, Path statePath, Path memoryPath, FirecrackerRootfs rootfs, FirecrackerAddressPool.Lease address) {
+            this.fingerprint = fingerprint;
+            this.statePath = statePath;
+            this.memoryPath = memoryPath;
+            this.rootfs = rootfs;
+            this.address = address;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public Path getStatePath() {
+            return statePath;
+        }
+
+        public Path getMemoryPath() {
+            return memoryPath;
+        }
+
+        /**
+         * The golden VM's drives, which restored VMs clone.
+         */
+        public FirecrackerRootfs getRootfs() {
+            return rootfs;
+        }
+
+        /**
+         * The golden VM's address, which restored guests have until they move to their own.
+         */
+        public FirecrackerAddressPool.Lease getAddress() {
+            return address;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package io.jenkins.plugins.firecracker;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Tap devices kept attached to a cloud's bridge between VMs, so a VM usually gets a tap that
+ * already exists instead of creating and deleting its own.
+ *
+ * <p>Taps are named {@code fc<hash>t<n>}, where the hash identifies the cloud and bridge, so
+ * a new pool adopts the idle taps a previous controller process left behind. On first use the
+ * pool reconciles against {@code /sys/class/net}: idle taps are reattached and kept up to the
+ * pool size, the rest are deleted, taps that still have a carrier belong to a running VM and
+ * are left alone, and missing taps are created. Released taps are flushed and kept while the
+ * pool is below its size, and deleted otherwise; a size of 0 gives every VM a fresh tap.
+ */
+public final class FirecrackerTapPool {
+    private static final Logger LOGGER = Logger.getLogger(FirecrackerTapPool.class.getName());
+
+    private static final Map<String, FirecrackerTapPool> POOLS = new ConcurrentHashMap<>();
+
+    private final String prefix;
+    private final String bridge;
+    private final Path sysClassNet;
+    private volatile int size;
+    // Guarded by this
+    private final Deque<String> idle = new ArrayDeque<>();
+    private final Set<String> owned = new HashSet<>();
+    private int next;
+    private final CountDownLatch reconciled = new CountDownLatch(1);
+
+    FirecrackerTapPool(String key, String bridge, int size, Path sysClassNet) {
+        this.prefix = String.format(Locale.ROOT, "fc%05xt", key.hashCode() & 0xFFFFF);
+        this.bridge = bridge;
+        this.size = Math.max(0, size);
+        this.sysClassNet = sysClassNet;
+    }
+
+    /**
+     * Returns the pool for a cloud and bridge, reconciling it with the host on first use.
+     */
+    public static FirecrackerTapPool forCloud(String cloudName, String bridge, int size) {
+        String key = cloudName + "@" + bridge;
+        FirecrackerTapPool pool = POOLS.get(key);
+        if (pool == null) {
+            FirecrackerTapPool created = new FirecrackerTapPool(key, bridge, size, Paths.get("/sys/class/net"));
+            pool = POOLS.putIfAbsent(key, created);
+            if (pool == null) {
+                // Reconciling runs ip, so it happens outside the map, and only in the thread that added the pool
+                try {
+                    created.reconcile();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not reconcile tap devices on " + bridge, e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    created.reconciled.countDown();
+                }
+                pool = created;
+            }
+        }
+        try {
+            // Until then the pool does not know which tap names the host already has
+            pool.reconciled.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pool.size = Math.max(0, size);
+        return pool;
+    }
+
+    String getPrefix() {
+        return prefix;
+    }
+
+    public String getBridge() {
+        return bridge;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Hands out an idle tap, or the name of a new one that the caller creates with
+     * {@link Lease#getSetupCommands()}.
+     */
+    public synchronized Lease lease() {
+        String name = idle.pollFirst();
+        if (name != null) {
+            return new Lease(name, true);
+        }
+        return new Lease(newName(), false);
+    }
+
+    /**
+     * Brings the pool in line with the taps that exist on the host.
+     */
+    void reconcile() throws IOException, InterruptedException {
+        List<String> commands = new ArrayList<>();
+        synchronized (this) {
+            List<String> existing = new ArrayList<>();
+            if (Files.isDirectory(sysClassNet)) {
+                try (Stream<Path> devices = Files.list(sysClassNet)) {
+                    devices.map(p -> p.getFileName().toString()).filter(n -> n.startsWith(prefix)).sorted().forEach(existing::add);
+                }
+            }
+            for (String name : existing) {
+                owned.add(name);
+                if (hasCarrier(name)) {
+                    LOGGER.log(Level.INFO, "Tap device {0} is still in use, leaving it alone", name);
+                } else if (idle.size() < size) {
+                    if (!bridge.equals(masterOf(name))) {
+                        commands.add("link set " + name + " master " + bridge);
+                    }
+                    commands.add("link set " + name + " up");
+                    idle.add(name);
+                } else {
+                    commands.add(teardownCommand(name));
+                    owned.remove(name);
+                }
+            }
+            while (idle.size() < size) {
+                String name = newName();
+                commands.addAll(setupCommands(name, bridge));
+                idle.add(name);
+            }
+        }
+        if (!commands.isEmpty()) {
+            LOGGER.log(Level.FINE, "Reconciling tap devices on {0}: {1}", new Object[]{bridge, commands});
+            dropFailed(FirecrackerNetworkManager.get().execute(commands));
+        }
+    }
+
+    private synchronized void dropFailed(FirecrackerNetworkManager.Result result) {
+        for (FirecrackerNetworkManager.Failure failure : result.getFailures()) {
+            LOGGER.log(Level.WARNING, "Tap device command failed: {0}: {1}",
+                    new Object[]{failure.getCommand(), failure.getMessage()});
+            for (String token : failure.getCommand().split(" ")) {
+                if (token.startsWith(prefix) && idle.remove(token)) {
+                    owned.remove(token);
+                }
+            }
+        }
+    }
+
+    private String newName() {
+        String name;
+        do {
+            name = prefix + (next++ % 100_000);
+        } while (owned.contains(name));
+        owned.add(name);
+        return name;
+    }
+
+    private boolean hasCarrier(String name) {
+        try {
+            return new String(Files.readAllBytes(sysClassNet.resolve(name).resolve("carrier")), StandardCharsets.US_ASCII)
+                    .trim().equals("1");
+        } catch (IOException e) {
+            // Reading carrier fails with EINVAL while the device is down
+            return false;
+        }
+    }
+
+    private String masterOf(String name) {
+        try {
+            return Files.readSymbolicLink(sysClassNet.resolve(name).resolve("master")).getFileName().toString();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static List<String> setupCommands(String name, String bridge) {
+        return Arrays.asList(
+                "tuntap add " + name + " mode tap",
+                "link set " + name + " up",
+                "link set " + name + " master " + bridge);
+    }
+
+    static String teardownCommand(String name) {
+        return "tuntap del " + name + " mode tap";
+    }
+
+    /**
+     * A tap device handed out to one VM. Releasing it more than once is harmless.
+     */
+    public final class Lease {
+        private final String name;
+        private volatile boolean created;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(String name, boolean created) {
+            this.name = name;
+            this.created = created;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Commands creating the tap and attaching it to the bridge, empty if it came from the pool.
+         * Call {@link #markCreated()} once they succeeded.
+         */
+        public List<String> getSetupCommands() {
+            return created ? new ArrayList<>() : setupCommands(name, bridge);
+        }
+
+        public void markCreated() {
+            created = true;
+        }
+
+        /**
+         * Returns the tap to the pool after bringing it down and up again, which drops the bridge
+         * forwarding entries learned from the previous guest, and flushing its addresses and
+         * neighbours. Deletes it instead if the pool is full or the tap was never created.
+         */
+        public void release() throws IOException, InterruptedException {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            boolean keep;
+            synchronized (FirecrackerTapPool.this) {
+                keep = created && idle.size() < size;
+            }
+            if (keep) {
+                FirecrackerNetworkManager.Result result = FirecrackerNetworkManager.get().execute(Arrays.asList(
+                        "link set " + name + " down",
+                        "addr flush dev " + name,
+                        "neigh flush dev " + name,
+                        "link set " + name + " up"));
+                if (result.isSuccessful()) {
+                    // Other taps may have been returned while this one was flushed
+                    synchronized (FirecrackerTapPool.this) {
+                        if (idle.size() < size) {
+                            idle.addLast(name);
+                            return;
+                        }
+                    }
+                } else {
+                    LOGGER.log(Level.FINE, "Could not recycle tap device {0}, deleting it", name);
+                }
+            }
+            try {
+                FirecrackerNetworkManager.Result result = FirecrackerNetworkManager.get().execute(
+                        Arrays.asList(teardownCommand(name)));
+                if (created) {
+                    result.check();
+                }
+            } finally {
+                synchronized (FirecrackerTapPool.this) {
+                    owned.remove(name);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package io.jenkins.plugins.firecracker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Phases one VM went through on its way to becoming an agent. Every finished phase is also
+ * recorded in the per-template histograms of {@link FirecrackerMetrics}, unless the VM does
+ * not belong to a template (the golden snapshot VM).
+ */
+public final class FirecrackerTimeline {
+
+    public enum Phase {
+        /** From the provisioning request until a thread and the batched host setup were available. */
+        QUEUE("Queued"),
+        /** Rootfs clone, socket directory and tap device. */
+        HOST_SETUP("Host setup"),
+        /** Forking the Firecracker process. */
+        PROCESS_LAUNCH("Process launch"),
+        /** Until the API socket exists. */
+        SOCKET_WAIT("API socket wait"),
+        /** Machine configuration and start, or snapshot load and resume. */
+        API_CONFIG("API configuration"),
+        /** From instance start until the guest announces itself, or until SSH is up if it never does. */
+        GUEST_BOOT("Guest boot"),
+        /** Determining the guest address. */
+        IP_DISCOVERY("IP discovery"),
+        /** From the readiness announcement until sshd accepts connections. */
+        SSH_WAIT("SSH wait"),
+        /** Copying the agent jar and starting remoting over SSH. */
+        REMOTING_LAUNCH("Remoting launch");
+
+        private final String displayName;
+
+        Phase(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    private final List<Entry> entries = new CopyOnWriteArrayList<>();
+    private volatile String template;
+
+    /**
+     * Sets the template label the phases are attributed to in the histograms.
+     */
+    void setTemplate(String template) {
+        this.template = template == null ? "" : template;
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    public Span begin(Phase phase) {
+        return new Span(phase);
+    }
+
+    public void record(Phase phase, long startMillis, long durationMillis) {
+        entries.add(new Entry(phase, startMillis, durationMillis));
+        String key = template;
+        if (key != null) {
+            FirecrackerMetrics.recordPhase(key, phase, durationMillis);
+        }
+    }
+
+    /**
+     * Finished phases in the order they started.
+     */
+    public List<Entry> getEntries() {
+        List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort((a, b) -> Long.compare(a.startMillis, b.startMillis));
+        return Collections.unmodifiableList(sorted);
+    }
+
+    public long getStartMillis() {
+        long start = Long.MAX_VALUE;
+        for (Entry entry : entries) {
+            start = Math.min(start, entry.startMillis);
+        }
+        return start == Long.MAX_VALUE ? 0 : start;
+    }
+
+    /**
+     * A running phase, recorded when closed. Closing more than once records it once.
+     */
+    public final class Span implements AutoCloseable {
+        private final Phase phase;
+        private final long startMillis = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Span(Phase phase) {
+            this.phase = phase;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                record(phase, startMillis, (System.nanoTime() - startNanos) / 1_000_000);
+            }
+        }
+    }
+
+    public static final class Entry {
+        private final Phase phase;
+        private final long startMillis;
+        private final long durationMillis;
+
+        Entry(Phase phase, long startMillis, long durationMillis) {
+            this.phase = phase;
+            this.startMillis = startMillis;
+            this.durationMillis = durationMillis;
+        }
+
+        public Phase getPhase() {
+            return phase;
+        }
+
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+    }
+}
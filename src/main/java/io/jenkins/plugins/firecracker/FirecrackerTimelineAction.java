@@ -0,0 +1,74 @@
+package io.jenkins.plugins.firecracker;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Computer;
+import hudson.model.TransientComputerActionFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * "Provisioning Timeline" page of a Firecracker agent, listing how long each phase of
+ * bringing its VM up took.
+ */
+public class FirecrackerTimelineAction implements Action {
+    private final FirecrackerAgent.FirecrackerComputer computer;
+    
+    public FirecrackerTimelineAction(FirecrackerAgent.FirecrackerComputer computer) {
+        this.computer = computer;
+    }
+    
+    @Override
+    public String getIconFileName() {
+        return getTimeline() == null ? null : "symbol-time";
+    }
+    
+    @Override
+    public String getDisplayName() {
+        return "Provisioning Timeline";
+    }
+    
+    @Override
+    public String getUrlName() {
+        return "firecracker-timeline";
+    }
+    
+    public FirecrackerAgent.FirecrackerComputer getComputer() {
+        return computer;
+    }
+    
+    /**
+     * @return the timeline, or {@code null} if the VM handle did not survive a controller restart
+     */
+    public FirecrackerTimeline getTimeline() {
+        FirecrackerAgent agent = computer.getNode();
+        FirecrackerVM vm = agent == null ? null : agent.getVm();
+        return vm == null ? null : vm.getTimeline();
+    }
+    
+    public List<FirecrackerTimeline.Entry> getEntries() {
+        FirecrackerTimeline timeline = getTimeline();
+        return timeline == null ? Collections.emptyList() : timeline.getEntries();
+    }
+    
+    /**
+     * Milliseconds from the first phase to the start of this one.
+     */
+    public long getOffsetMillis(FirecrackerTimeline.Entry entry) {
+        FirecrackerTimeline timeline = getTimeline();
+        return timeline == null ? 0 : entry.getStartMillis() - timeline.getStartMillis();
+    }
+    
+    @Extension
+    public static class Factory extends TransientComputerActionFactory {
+        @Override
+        public Collection<? extends Action> createFor(Computer target) {
+            if (target instanceof FirecrackerAgent.FirecrackerComputer) {
+                return Collections.singletonList(new FirecrackerTimelineAction((FirecrackerAgent.FirecrackerComputer) target));
+            }
+            return Collections.emptyList();
+        }
+    }
+}
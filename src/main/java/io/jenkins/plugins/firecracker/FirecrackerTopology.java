@@ -0,0 +1,267 @@
+package io.jenkins.plugins.firecracker;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import jenkins.util.SystemProperties;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The controller's CPUs grouped by NUMA node, handed out to pinned VMs so that no two VMs share
+ * a CPU and each VM's CPUs and memory are on one node.
+ *
+ * <p>A VM goes to the node with the fewest free CPUs that still has enough, which leaves whole
+ * nodes free for large VMs. On that node it gets whole cores, all of their SMT siblings, as far
+ * as its vCPU count allows, and what is left over from the core with the fewest free siblings
+ * that has enough, so VMs share a core only when their sizes leave no choice.
+ * {@link #RESERVED_CPUS} are never handed out, leaving them to the host and Jenkins.
+ */
+final class FirecrackerTopology {
+    private static final Logger LOGGER = Logger.getLogger(FirecrackerTopology.class.getName());
+
+    /**
+     * CPUs kept for the host, in the kernel's list format (e.g. {@code 0-1}).
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static /* non-final for script console */ String RESERVED_CPUS =
+            SystemProperties.getString(FirecrackerTopology.class.getName() + ".reservedCpus", "0");
+
+    private static FirecrackerTopology instance;
+
+    // Free CPUs per node
+    private final Map<Integer, TreeSet<Integer>> free = new TreeMap<>();
+    // Each CPU's core, named by its lowest SMT sibling
+    private final Map<Integer, Integer> cores = new HashMap<>();
+
+    FirecrackerTopology(Map<Integer, ? extends Set<Integer>> nodes, Set<Integer> reserved) {
+        this(nodes, Collections.emptyMap(), reserved);
+    }
+
+    /**
+     * @param siblings each CPU's SMT siblings, including itself; CPUs not in it are cores of their own
+     */
+    FirecrackerTopology(Map<Integer, ? extends Set<Integer>> nodes, Map<Integer, ? extends Set<Integer>> siblings,
+                        Set<Integer> reserved) {
+        for (Map.Entry<Integer, ? extends Set<Integer>> cpu : siblings.entrySet()) {
+            cores.put(cpu.getKey(), Collections.min(cpu.getValue()));
+        }
+        for (Map.Entry<Integer, ? extends Set<Integer>> node : nodes.entrySet()) {
+            TreeSet<Integer> cpus = new TreeSet<>(node.getValue());
+            cpus.removeAll(reserved);
+            free.put(node.getKey(), cpus);
+        }
+    }
+
+    /**
+     * The controller's topology, read from sysfs the first time it is needed.
+     */
+    static synchronized FirecrackerTopology get() {
+        if (instance == null) {
+            Path sys = Paths.get("/sys/devices/system");
+            Map<Integer, Set<Integer>> nodes;
+            Map<Integer, Set<Integer>> siblings;
+            try {
+                nodes = read(sys);
+                siblings = readSiblings(sys, nodes);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not read the CPU topology, pinned VMs will run unpinned", e);
+                nodes = Collections.emptyMap();
+                siblings = Collections.emptyMap();
+            }
+            instance = new FirecrackerTopology(nodes, siblings, parseList(RESERVED_CPUS));
+        }
+        return instance;
+    }
+
+    /**
+     * Reads each NUMA node's CPUs; machines without NUMA nodes in sysfs are one node 0 with
+     * every online CPU.
+     */
+    static Map<Integer, Set<Integer>> read(Path sysDevicesSystem) throws IOException {
+        Map<Integer, Set<Integer>> nodes = new TreeMap<>();
+        Path nodeDir = sysDevicesSystem.resolve("node");
+        if (Files.isDirectory(nodeDir)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(nodeDir, "node[0-9]*")) {
+                for (Path node : entries) {
+                    Set<Integer> cpus = parseList(readLine(node.resolve("cpulist")));
+                    if (!cpus.isEmpty()) {
+                        nodes.put(Integer.parseInt(node.getFileName().toString().substring("node".length())), cpus);
+                    }
+                }
+            }
+        }
+        if (nodes.isEmpty()) {
+            nodes.put(0, parseList(readLine(sysDevicesSystem.resolve("cpu/online"))));
+        }
+        return nodes;
+    }
+
+    /**
+     * Reads the SMT siblings of each of the nodes' CPUs; CPUs whose topology sysfs does not show
+     * are left out.
+     */
+    static Map<Integer, Set<Integer>> readSiblings(Path sysDevicesSystem, Map<Integer, Set<Integer>> nodes) throws IOException {
+        Map<Integer, Set<Integer>> siblings = new TreeMap<>();
+        for (Set<Integer> cpus : nodes.values()) {
+            for (int cpu : cpus) {
+                Path list = sysDevicesSystem.resolve("cpu/cpu" + cpu + "/topology/thread_siblings_list");
+                if (Files.isRegularFile(list)) {
+                    siblings.put(cpu, parseList(readLine(list)));
+                }
+            }
+        }
+        return siblings;
+    }
+
+    private static String readLine(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * Takes {@code vcpus} CPUs on one node.
+     *
+     * @return the allocation, or {@code null} if no node has that many free CPUs
+     */
+    synchronized Allocation allocate(int vcpus) {
+        Integer best = null;
+        for (Map.Entry<Integer, TreeSet<Integer>> node : free.entrySet()) {
+            int available = node.getValue().size();
+            if (available >= vcpus && (best == null || available < free.get(best).size())) {
+                best = node.getKey();
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        TreeSet<Integer> cpus = new TreeSet<>();
+        List<TreeSet<Integer>> freeCores = new ArrayList<>(freeCores(free.get(best)));
+        while (cpus.size() < vcpus) {
+            int remaining = vcpus - cpus.size();
+            // The largest core that fits whole, or else the smallest one that has enough
+            TreeSet<Integer> whole = null;
+            TreeSet<Integer> part = null;
+            for (TreeSet<Integer> core : freeCores) {
+                if (core.size() <= remaining) {
+                    if (whole == null || core.size() > whole.size()) {
+                        whole = core;
+                    }
+                } else if (part == null || core.size() < part.size()) {
+                    part = core;
+                }
+            }
+            TreeSet<Integer> core = whole != null ? whole : part;
+            freeCores.remove(core);
+            for (int cpu : core) {
+                if (cpus.size() < vcpus) {
+                    cpus.add(cpu);
+                }
+            }
+        }
+        free.get(best).removeAll(cpus);
+        return new Allocation(best, cpus);
+    }
+
+    private Collection<TreeSet<Integer>> freeCores(Set<Integer> cpus) {
+        Map<Integer, TreeSet<Integer>> byCore = new TreeMap<>();
+        for (int cpu : cpus) {
+            byCore.computeIfAbsent(cores.getOrDefault(cpu, cpu), core -> new TreeSet<>()).add(cpu);
+        }
+        return byCore.values();
+    }
+
+    synchronized int getFreeCpuCount() {
+        int count = 0;
+        for (Set<Integer> cpus : free.values()) {
+            count += cpus.size();
+        }
+        return count;
+    }
+
+    private synchronized void release(Allocation allocation) {
+        free.get(allocation.node).addAll(allocation.cpus);
+    }
+
+    /**
+     * Parses the kernel's CPU and node list format, such as {@code 0-3,8,10-11}.
+     */
+    static Set<Integer> parseList(String list) {
+        Set<Integer> values = new TreeSet<>();
+        for (String range : list.trim().split(",")) {
+            if (range.isEmpty()) {
+                continue;
+            }
+            int dash = range.indexOf('-');
+            int first = Integer.parseInt(range.substring(0, dash < 0 ? range.length() : dash).trim());
+            int last = dash < 0 ? first : Integer.parseInt(range.substring(dash + 1).trim());
+            for (int i = first; i <= last; i++) {
+                values.add(i);
+            }
+        }
+        return values;
+    }
+
+    static String formatList(Set<Integer> values) {
+        List<String> ranges = new ArrayList<>();
+        Integer first = null;
+        Integer last = null;
+        for (int value : new TreeSet<>(values)) {
+            if (last != null && value == last + 1) {
+                last = value;
+                continue;
+            }
+            if (first != null) {
+                ranges.add(first.equals(last) ? String.valueOf(first) : first + "-" + last);
+            }
+            first = value;
+            last = value;
+        }
+        if (first != null) {
+            ranges.add(first.equals(last) ? String.valueOf(first) : first + "-" + last);
+        }
+        return String.join(",", ranges);
+    }
+
+    /**
+     * CPUs of one node held by a VM until it is released.
+     */
+    final class Allocation {
+        private final int node;
+        private final Set<Integer> cpus;
+        private boolean released;
+
+        private Allocation(int node, Set<Integer> cpus) {
+            this.node = node;
+            this.cpus = Collections.unmodifiableSet(cpus);
+        }
+
+        int getNode() {
+            return node;
+        }
+
+        Set<Integer> getCpus() {
+            return cpus;
+        }
+
+        synchronized void release() {
+            if (!released) {
+                released = true;
+                FirecrackerTopology.this.release(this);
+            }
+        }
+    }
+}
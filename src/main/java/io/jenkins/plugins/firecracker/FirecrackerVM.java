@@ -1,22 +1,88 @@
 package io.jenkins.plugins.firecracker;
 
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class FirecrackerVM {
     private static final Logger LOGGER = Logger.getLogger(FirecrackerVM.class.getName());
     
+    /**
+     * Line the guest writes to its serial console once sshd is accepting connections,
+     * optionally followed by {@code ip=<address>}.
+     */
+    public static final String READY_MARKER = "FIRECRACKER_AGENT_READY";
+    
+    /**
+     * Link-local address at which the guest reaches its metadata (MMDS) over eth0.
+     */
+    public static final String MMDS_ADDRESS = "169.254.169.254";
+    
+    /**
+     * The Firecracker binary. Tests and benchmarks point this at a fake.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static /* non-final for script console */ String FIRECRACKER_BINARY =
+            SystemProperties.getString(FirecrackerVM.class.getName() + ".firecrackerBinary", "firecracker");
+    
+    /**
+     * The privileged {@code ip} command, split on whitespace.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static /* non-final for script console */ String IP_COMMAND =
+            SystemProperties.getString(FirecrackerVM.class.getName() + ".ipCommand", "sudo ip");
+    
+    /**
+     * How long a guest gets to shut down after {@code SendCtrlAltDel} before it is killed.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static /* non-final for script console */ long TERMINATION_GRACE_MILLIS =
+            SystemProperties.getLong(FirecrackerVM.class.getName() + ".terminationGraceMillis", 3000L);
+    
+    /**
+     * Where VMs booted from a config file have it written, unless they are jailed. Falls back
+     * to the API socket's directory if it is missing.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+    public static /* non-final for script console */ String CONFIG_DIR =
+            SystemProperties.getString(FirecrackerVM.class.getName() + ".configDir", "/dev/shm");
+    
+    static final ThreadPoolExecutor TERMINATION_EXECUTOR = new ThreadPoolExecutor(8, 8, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), new NamingThreadFactory(new DaemonThreadFactory(), "FirecrackerVM.terminate"));
+    
+    static {
+        TERMINATION_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+    
     private final String id;
     private final String name;
     private final String vmImagePath;
@@ -24,9 +90,43 @@ public class FirecrackerVM {
     private final int memorySize;
     private final int vcpuCount;
     private final String networkInterface;
+    private final FirecrackerAddressPool.Lease lease;
+    private volatile FirecrackerCapacity.Reservation reservation;
+    private FirecrackerRootfs.Strategy rootfsStrategy = FirecrackerRootfs.Strategy.AUTO;
+    private FirecrackerJail.Isolation isolation = FirecrackerJail.Isolation.NONE;
+    private volatile FirecrackerJail jail;
+    private boolean configFileBoot;
+    private volatile List<Path> configFiles;
+    private volatile boolean leaseDetached;
+    // A restored guest that has not yet moved to its leased address
+    private volatile boolean readdressing;
+    // A cold-booted guest of a snapshot-boot template, offered the address it already has
+    private volatile boolean readdressOffered;
+    private volatile FirecrackerRootfs rootfs;
     private Process firecrackerProcess;
     private String socketPath;
+    private FirecrackerApiClient apiClient;
+    private FirecrackerTapPool tapPool;
+    private FirecrackerTapPool.Lease tap;
     private String tapDevice;
+    private String bootArgs;
+    private List<String> cacheDrives = new ArrayList<>();
+    private FirecrackerBuildCache buildCache;
+    private int buildCacheOverlaySizeMb;
+    private volatile FirecrackerBuildCache.Lease buildCacheLease;
+    private FirecrackerRateLimits rateLimits;
+    private int balloonReclaimPercent;
+    private volatile int balloonTargetMb;
+    private volatile FirecrackerBalloon.Statistics balloonStatistics;
+    private volatile JSONObject metadata;
+    private volatile boolean configured;
+    private volatile boolean hostPrepared;
+    private final CompletableFuture<String> ready = new CompletableFuture<>();
+    private final FirecrackerTimeline timeline = new FirecrackerTimeline();
+    private volatile long bootStartedMillis;
+    private volatile long readyMillis;
+    private final AtomicBoolean sshRecorded = new AtomicBoolean();
+    private final AtomicReference<CompletableFuture<Void>> termination = new AtomicReference<>();
     
     public FirecrackerVM(
             String name,
@@ -34,7 +134,8 @@ public class FirecrackerVM {
             String kernelImagePath,
             int memorySize,
             int vcpuCount,
-            String networkInterface) {
+            String networkInterface,
+            FirecrackerAddressPool.Lease lease) {
         
         this.id = UUID.randomUUID().toString();
         this.name = name;
@@ -43,6 +144,7 @@ public class FirecrackerVM {
         this.memorySize = memorySize;
         this.vcpuCount = vcpuCount;
         this.networkInterface = networkInterface;
+        this.lease = lease;
     }
     
     public String getId() {
@@ -53,97 +155,704 @@ public class FirecrackerVM {
         return name;
     }
     
+    /**
+     * Completes when the guest announces on its console that it is up, with the address it
+     * announced, if any, or {@code null}. Completes exceptionally if the Firecracker process exits first.
+     * Restored VMs complete once the guest has moved to its leased address and announced it,
+     * since until then it still answers on the golden VM's address.
+     */
+    public CompletableFuture<String> getReadyFuture() {
+        return ready;
+    }
+    
+    public FirecrackerTimeline getTimeline() {
+        return timeline;
+    }
+    
+    void setReservation(FirecrackerCapacity.Reservation reservation) {
+        this.reservation = reservation;
+    }
+    
+    FirecrackerCapacity.Reservation getReservation() {
+        return reservation;
+    }
+    
+    void setReaddressOffered(boolean readdressOffered) {
+        this.readdressOffered = readdressOffered;
+    }
+    
+    void setTapPool(FirecrackerTapPool tapPool) {
+        this.tapPool = tapPool;
+    }
+    
+    /**
+     * The network settings of this VM, as served to the guest by the metadata service under
+     * {@code /jenkins}.
+     */
+    public JSONObject createMetadata() {
+        JSONObject metadata = new JSONObject()
+                .element("hostname", name)
+                .element("address", lease.getAddress())
+                .element("gateway", lease.getGateway())
+                .element("netmask", lease.getNetmask())
+                .element("mac", lease.getMacAddress());
+        if (buildCache != null) {
+            // Drives appear in the order they are configured: rootfs, scratch, cache drives, build cache
+            int index = 1 + (rootfsStrategy == FirecrackerRootfs.Strategy.OVERLAY ? 1 : 0) + cacheDrives.size();
+            metadata.element("buildCache", new JSONObject()
+                    .element("lower", "/dev/vd" + (char) ('a' + index))
+                    .element("upper", "/dev/vd" + (char) ('a' + index + 1)));
+        }
+        return metadata;
+    }
+    
+    /**
+     * Sets the document the guest reads from its metadata service. Set before boot, it is in
+     * place when the guest starts; on a running VM it replaces the current document, for
+     * example when a warm VM is handed to an agent.
+     */
+    public void setMetadata(JSONObject metadata) throws IOException {
+        this.metadata = metadata;
+        if (configured) {
+            putMetadata();
+        }
+    }
+    
+    /**
+     * Kernel arguments appended to the ones every VM gets, or {@code null}.
+     */
+    void setBootArgs(String bootArgs) {
+        this.bootArgs = bootArgs;
+    }
+    
+    /**
+     * Images attached read-only after the root filesystem and scratch drive. They are shared
+     * by every VM that uses them and are never cloned.
+     */
+    void setCacheDrives(List<String> cacheDrives) {
+        this.cacheDrives = new ArrayList<>(cacheDrives);
+    }
+    
+    /**
+     * Everything a {@link FirecrackerHostDaemon} needs to create this VM on its host, including
+     * the address leased to it.
+     */
+    JSONObject getSpec() {
+        return new JSONObject()
+                .element("name", name)
+                .element("vmImagePath", vmImagePath)
+                .element("kernelImagePath", kernelImagePath)
+                .element("memorySize", memorySize)
+                .element("vcpuCount", vcpuCount)
+                .element("networkCidr", lease.getCidr())
+                .element("address", lease.getAddress())
+                .element("rootfsStrategy", rootfsStrategy.name())
+                .element("bootArgs", bootArgs != null ? bootArgs : "")
+                .element("cacheDrives", cacheDrives)
+                .element("rateLimits", rateLimits != null ? rateLimits.toJson() : new JSONObject())
+                .element("configFileBoot", configFileBoot)
+                .element("metadata", metadata != null ? metadata : createMetadata());
+    }
+    
+    /**
+     * Attaches the current generation of a build cache read-only, plus a writable overlay of the
+     * given size that is merged back into the cache after this VM terminates.
+     */
+    void setBuildCache(FirecrackerBuildCache buildCache, int overlaySizeMb) {
+        this.buildCache = buildCache;
+        this.buildCacheOverlaySizeMb = overlaySizeMb;
+    }
+    
+    /**
+     * Limits disk and network I/O, or lifts the limits for {@code null}; applies from the next
+     * start.
+     */
+    public void setRateLimits(FirecrackerRateLimits rateLimits) {
+        this.rateLimits = rateLimits == null || rateLimits.isUnlimited() ? null : rateLimits;
+    }
+    
+    public FirecrackerRateLimits getRateLimits() {
+        return rateLimits;
+    }
+    
+    /**
+     * Attaches a balloon device that {@link FirecrackerBalloon.Policy} inflates by up to this
+     * percentage of the VM's memory while its agent is idle; 0 attaches none.
+     */
+    public void setBalloonReclaimPercent(int balloonReclaimPercent) {
+        this.balloonReclaimPercent = Math.max(0, Math.min(100, balloonReclaimPercent));
+    }
+    
+    public int getBalloonReclaimPercent() {
+        return balloonReclaimPercent;
+    }
+    
+    public int getMemorySize() {
+        return memorySize;
+    }
+    
+    /**
+     * The guest's last balloon statistics, or {@code null} if none were read yet.
+     */
+    public FirecrackerBalloon.Statistics getBalloonStatistics() {
+        return balloonStatistics;
+    }
+    
+    FirecrackerBalloon.Statistics refreshBalloonStatistics() throws IOException {
+        FirecrackerApiClient client = apiClient;
+        if (client == null) {
+            return null;
+        }
+        balloonStatistics = FirecrackerBalloon.Statistics.fromJson(
+                JSONObject.fromObject(client.request("GET", "/balloon/statistics", null).getBody()));
+        return balloonStatistics;
+    }
+    
+    /**
+     * Inflates or deflates the balloon to {@code targetMb}; the guest gets there in its own time.
+     */
+    synchronized void setBalloonTarget(int targetMb) throws IOException {
+        if (balloonReclaimPercent == 0 || apiClient == null || !isAlive() || targetMb == balloonTargetMb) {
+            return;
+        }
+        executeFirecrackerCmd("PATCH", "/balloon", "{\"amount_mib\": " + targetMb + "}");
+        LOGGER.log(Level.FINE, "Balloon of VM {0} set to {1} MB", new Object[]{name, targetMb});
+        balloonTargetMb = targetMb;
+    }
+    
+    /**
+     * Inflates the balloon to {@code targetMb} if the agent is still idle. Idleness is checked
+     * under the lock deflating takes, so a build accepted meanwhile always finds the balloon
+     * deflated after its own {@code setBalloonTarget(0)}.
+     */
+    synchronized void inflateBalloonIfIdle(int targetMb, BooleanSupplier idle) throws IOException {
+        if (idle.getAsBoolean()) {
+            setBalloonTarget(targetMb);
+        }
+    }
+    
+    /**
+     * Boots the VM from a {@code --config-file} instead of configuring it through the API, which
+     * is kept for later control.
+     */
+    public void setConfigFileBoot(boolean configFileBoot) {
+        this.configFileBoot = configFileBoot;
+    }
+    
+    /**
+     * Runs the Firecracker process under the jailer, see {@link FirecrackerJail}.
+     */
+    void setIsolation(FirecrackerJail.Isolation isolation) {
+        this.isolation = isolation;
+    }
+    
+    void setRootfsStrategy(FirecrackerRootfs.Strategy rootfsStrategy) {
+        this.rootfsStrategy = rootfsStrategy;
+    }
+    
+    /**
+     * Hands this VM's drives over to the caller, who becomes responsible for deleting them;
+     * {@link #terminate()} leaves them in place.
+     */
+    FirecrackerRootfs detachRootfs() {
+        FirecrackerRootfs detached = rootfs;
+        rootfs = null;
+        return detached;
+    }
+    
+    /**
+     * Hands this VM's address over to the caller, who becomes responsible for releasing it;
+     * {@link #terminate()} keeps it allocated.
+     */
+    FirecrackerAddressPool.Lease detachLease() {
+        leaseDetached = true;
+        return lease;
+    }
+    
+    public boolean isAlive() {
+        return firecrackerProcess != null && firecrackerProcess.isAlive();
+    }
+    
     public void start() throws IOException, InterruptedException {
         LOGGER.log(Level.INFO, "Starting Firecracker VM: {0}", name);
         
-        // Create socket path
-        Path tempDir = Files.createTempDirectory("firecracker-" + id);
-        socketPath = tempDir.resolve("firecracker.socket").toString();
-        
-        // Create tap device for networking
-        tapDevice = "tap" + id.substring(0, 8);
-        setupNetworking(tapDevice, networkInterface);
+        try (FirecrackerTimeline.Span span = timeline.begin(FirecrackerTimeline.Phase.HOST_SETUP)) {
+            rootfs = FirecrackerRootfs.create(Paths.get(vmImagePath), id, rootfsStrategy);
+            if (buildCache != null) {
+                buildCacheLease = buildCache.lease(id, buildCacheOverlaySizeMb);
+            }
+            prepareHost();
+        }
         
-        // Start Firecracker process
-        List<String> command = new ArrayList<>();
-        command.add("firecracker");
-        command.add("--api-sock");
-        command.add(socketPath);
+        if (configFileBoot) {
+            // The guest boots as soon as Firecracker has read the file
+            List<String> configArguments;
+            try (FirecrackerTimeline.Span span = timeline.begin(FirecrackerTimeline.Phase.API_CONFIG)) {
+                configArguments = writeConfigFiles();
+            }
+            markBootStarted();
+            launch(configArguments);
+            configured = true;
+            if (rateLimits != null) {
+                FirecrackerRateLimits.register(this);
+            }
+        } else {
+            launch(Collections.emptyList());
+            
+            // Configure VM
+            try (FirecrackerTimeline.Span span = timeline.begin(FirecrackerTimeline.Phase.API_CONFIG)) {
+                configureVM();
+            }
+        }
         
-        ProcessBuilder pb = new ProcessBuilder(command);
-        pb.redirectErrorStream(true);
-        firecrackerProcess = pb.start();
+        LOGGER.log(Level.INFO, "Firecracker VM started: {0}", name);
+    }
+    
+    /**
+     * Starts this VM from a snapshot instead of booting it. Guest memory is mapped
+     * privately from the snapshot's memory file, so the restore only pays for the pages
+     * the guest touches and the file itself is never written.
+     *
+     * <p>The restored guest resumes with the golden VM's MAC and kernel {@code ip=} address,
+     * which stays allocated to the snapshot. Its metadata offers this VM's own address under
+     * {@code readdress}; the guest moves to it and announces it with the readiness signal, and
+     * only then is the VM ready and its address published at the top of its metadata. Its
+     * drives are clones of the golden VM's, swapped in before the vCPUs resume.
+     */
+    public void restore(FirecrackerSnapshotStore.Snapshot snapshot) throws IOException, InterruptedException {
+        LOGGER.log(Level.INFO, "Restoring Firecracker VM {0} from snapshot {1}",
+                new Object[]{name, snapshot.getFingerprint()});
         
-        // Wait for socket to be available
-        waitForSocket(socketPath);
+        try (FirecrackerTimeline.Span span = timeline.begin(FirecrackerTimeline.Phase.HOST_SETUP)) {
+            rootfs = snapshot.getRootfs().cloneFor(id, rootfsStrategy);
+            prepareHost();
+        }
+        launch(Collections.emptyList());
         
-        // Configure VM
-        configureVM();
+        try (FirecrackerTimeline.Span span = timeline.begin(FirecrackerTimeline.Phase.API_CONFIG)) {
+            // The snapshot still names the golden VM's tap device; point eth0 at ours
+            JSONObject loadConfig = new JSONObject()
+                    .element("snapshot_path", snapshot.getStatePath().toString())
+                    .element("mem_backend", new JSONObject()
+                            .element("backend_type", "File")
+                            .element("backend_path", snapshot.getMemoryPath().toString()))
+                    .element("resume_vm", false)
+                    .element("network_overrides", new JSONArray().element(new JSONObject()
+                            .element("iface_id", "eth0")
+                            .element("host_dev_name", tapDevice)));
+            
+            executeFirecrackerCmd("PUT", "/snapshot/load", loadConfig.toString());
+            
+            // The snapshot also names the golden VM's drives, which must never be written
+            executeFirecrackerCmd("PATCH", "/drives/rootfs", new JSONObject()
+                    .element("drive_id", "rootfs")
+                    .element("path_on_host", rootfs.getRootPath().toString()).toString());
+            if (rootfs.getScratchPath() != null) {
+                executeFirecrackerCmd("PATCH", "/drives/scratch", new JSONObject()
+                        .element("drive_id", "scratch")
+                        .element("path_on_host", rootfs.getScratchPath().toString()).toString());
+            }
+            // So are the golden VM's rate limiters
+            if (rateLimits != null) {
+                updateRateLimits(FirecrackerRateLimits.current(rateLimits));
+            }
+            // The metadata service configuration is part of the snapshot, its contents are not
+            readdressing = true;
+            putMetadata();
+            markBootStarted();
+            executeFirecrackerCmd("PATCH", "/vm", "{\"state\": \"Resumed\"}");
+            if (rateLimits != null) {
+                FirecrackerRateLimits.register(this);
+            }
+        }
         
-        LOGGER.log(Level.INFO, "Firecracker VM started: {0}", name);
+        LOGGER.log(Level.INFO, "Firecracker VM restored: {0}", name);
     }
     
-    public void terminate() {
-        LOGGER.log(Level.INFO, "Terminating Firecracker VM: {0}", name);
+    /**
+     * Pauses this VM and writes a full snapshot of its memory and device state.
+     */
+    public void createSnapshot(Path statePath, Path memoryPath) throws IOException {
+        executeFirecrackerCmd("PATCH", "/vm", "{\"state\": \"Paused\"}");
+        
+        JSONObject snapshotConfig = new JSONObject()
+                .element("snapshot_type", "Full")
+                .element("snapshot_path", statePath.toString())
+                .element("mem_file_path", memoryPath.toString());
         
+        executeFirecrackerCmd("PUT", "/snapshot/create", snapshotConfig.toString());
+    }
+    
+    /**
+     * Sets up the host side for a batch of VMs: socket directories and tap leases, then every
+     * tap that did not come from the pool in a single request to the {@link FirecrackerNetworkManager}.
+     * If any command fails the batch's new taps are removed again and each VM falls back to
+     * setting up its own host side in {@link #start()}.
+     */
+    static void prepareHosts(List<FirecrackerVM> vms) {
+        List<String> setup = new ArrayList<>();
+        List<String> teardown = new ArrayList<>();
         try {
-            if (firecrackerProcess != null && firecrackerProcess.isAlive()) {
-                firecrackerProcess.destroy();
-                firecrackerProcess.waitFor(30, TimeUnit.SECONDS);
-                if (firecrackerProcess.isAlive()) {
-                    firecrackerProcess.destroyForcibly();
+            for (FirecrackerVM vm : vms) {
+                vm.allocateHostResources();
+                List<String> commands = vm.tap.getSetupCommands();
+                if (!commands.isEmpty()) {
+                    setup.addAll(commands);
+                    teardown.add(FirecrackerTapPool.teardownCommand(vm.tapDevice));
                 }
             }
-        } catch (Exception e) {
-            LOGGER.log(Level.WARNING, "Error terminating Firecracker process", e);
+            FirecrackerNetworkManager.get().execute(setup).check();
+            for (FirecrackerVM vm : vms) {
+                vm.tap.markCreated();
+                vm.hostPrepared = true;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Batched host setup for " + vms.size() + " VMs failed, setting up individually", e);
+            try {
+                FirecrackerNetworkManager.get().execute(teardown);
+            } catch (IOException cleanup) {
+                LOGGER.log(Level.FINE, "Error removing partially created tap devices", cleanup);
+            } catch (InterruptedException cleanup) {
+                Thread.currentThread().interrupt();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void prepareHost() throws IOException, InterruptedException {
+        if (hostPrepared) {
+            return;
         }
+        allocateHostResources();
+        setupNetworking();
+        hostPrepared = true;
+    }
+    
+    private synchronized void allocateHostResources() throws IOException {
+        if (socketPath != null) {
+            return;
+        }
+        // Create socket path, inside the chroot for jailed VMs
+        if (isolation != FirecrackerJail.Isolation.NONE) {
+            jail = FirecrackerJail.create(id, Paths.get(vmImagePath), vcpuCount, memorySize, isolation);
+            jail.prepare();
+            socketPath = jail.getSocketPath().toString();
+        } else {
+            Path tempDir = Files.createTempDirectory("firecracker-" + id);
+            socketPath = tempDir.resolve("firecracker.socket").toString();
+        }
+        
+        // Tap device for networking, usually one that already exists
+        if (tapPool == null) {
+            tapPool = FirecrackerTapPool.forCloud("", networkInterface, 0);
+        }
+        tap = tapPool.lease();
+        tapDevice = tap.getName();
+    }
+    
+    private void launch(List<String> arguments) throws IOException, InterruptedException {
+        // Start Firecracker process
+        List<String> command = new ArrayList<>();
+        if (jail != null) {
+            command.addAll(jail.command());
+        } else {
+            command.add(FIRECRACKER_BINARY);
+            command.add("--api-sock");
+            command.add(socketPath);
+        }
+        command.addAll(arguments);
         
+        try (FirecrackerTimeline.Span span = timeline.begin(FirecrackerTimeline.Phase.PROCESS_LAUNCH)) {
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectErrorStream(true);
+            firecrackerProcess = pb.start();
+            startConsoleReader(firecrackerProcess);
+        }
+        
+        // Wait for socket to be available
+        try (FirecrackerTimeline.Span span = timeline.begin(FirecrackerTimeline.Phase.SOCKET_WAIT)) {
+            waitForSocket(socketPath);
+        }
+        apiClient = new FirecrackerApiClient(Paths.get(socketPath));
+    }
+    
+    /**
+     * Terminates this VM and waits until its host resources are released.
+     */
+    public void terminate() {
         try {
-            if (tapDevice != null) {
-                cleanupNetworking(tapDevice);
-            }
-        } catch (Exception e) {
-            LOGGER.log(Level.WARNING, "Error cleaning up network", e);
+            terminateAsync().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Error terminating Firecracker VM " + name, e.getCause());
+        }
+    }
+    
+    /**
+     * Terminates this VM without blocking the caller. The guest is sent {@code SendCtrlAltDel},
+     * which makes Firecracker exit under {@code reboot=k}, and is killed if it is still running
+     * after {@link #TERMINATION_GRACE_MILLIS}. The tap, drives and socket are then cleaned up in
+     * parallel, and the address and capacity reservation released once they are. Calling this
+     * again returns the same future.
+     */
+    public CompletableFuture<Void> terminateAsync() {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (!termination.compareAndSet(null, done)) {
+            return termination.get();
         }
+        LOGGER.log(Level.INFO, "Terminating Firecracker VM: {0}", name);
+        FirecrackerRateLimits.unregister(this);
         
+        stopProcess()
+                .exceptionally(e -> {
+                    LOGGER.log(Level.WARNING, "Error terminating Firecracker process", e);
+                    return null;
+                })
+                .thenCompose(v -> releaseHostResources())
+                .whenComplete((v, e) -> {
+                    LOGGER.log(Level.INFO, "Firecracker VM terminated: {0}", name);
+                    done.complete(null);
+                });
+        return done;
+    }
+    
+    /**
+     * Stops the guest, leaving the host resources in place.
+     */
+    CompletableFuture<Void> stopProcess() {
+        Process process = firecrackerProcess;
+        if (process == null || !process.isAlive()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.supplyAsync(this::sendCtrlAltDel, TERMINATION_EXECUTOR)
+                .thenCompose(sent -> sent
+                        ? process.onExit().completeOnTimeout(process, TERMINATION_GRACE_MILLIS, TimeUnit.MILLISECONDS)
+                        : CompletableFuture.completedFuture(process))
+                .thenCompose(p -> {
+                    if (!p.isAlive()) {
+                        return CompletableFuture.completedFuture(p);
+                    }
+                    LOGGER.log(Level.FINE, "Killing Firecracker VM {0}", name);
+                    // A jailed Firecracker runs under sudo, which cannot pass SIGKILL on
+                    p.descendants().forEach(ProcessHandle::destroyForcibly);
+                    p.destroyForcibly();
+                    return p.onExit();
+                })
+                .thenApply(p -> null);
+    }
+    
+    private boolean sendCtrlAltDel() {
+        FirecrackerApiClient client = apiClient;
+        if (client == null) {
+            return false;
+        }
         try {
-            if (socketPath != null) {
+            client.request("PUT", "/actions", "{\"action_type\": \"SendCtrlAltDel\"}");
+            return true;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "SendCtrlAltDel failed for " + name + ", killing it", e);
+            return false;
+        }
+    }
+    
+    private CompletableFuture<Void> releaseHostResources() {
+        if (apiClient != null) {
+            apiClient.close();
+        }
+        
+        CompletableFuture<Void> network = cleanup("Error cleaning up network", () -> {
+            if (tap != null) {
+                tap.release();
+            }
+        });
+        CompletableFuture<Void> drives = cleanup("Error deleting rootfs clone", () -> {
+            FirecrackerRootfs detached = rootfs;
+            if (detached != null) {
+                detached.delete();
+            }
+        });
+        CompletableFuture<Void> cache = cleanup("Error releasing build cache overlay", () -> {
+            FirecrackerBuildCache.Lease held = buildCacheLease;
+            if (held != null) {
+                // Only a guest that ran can have written anything worth keeping
+                held.release(configured);
+            }
+        });
+        CompletableFuture<Void> socket = cleanup("Error cleaning up socket or jail", () -> {
+            FirecrackerJail held = jail;
+            if (held != null) {
+                held.delete();
+            } else if (socketPath != null) {
+                List<Path> written = configFiles;
+                if (written != null) {
+                    for (Path file : written) {
+                        Files.deleteIfExists(file);
+                    }
+                }
                 Files.deleteIfExists(Paths.get(socketPath));
                 Files.deleteIfExists(Paths.get(socketPath).getParent());
             }
-        } catch (Exception e) {
-            LOGGER.log(Level.WARNING, "Error cleaning up socket", e);
-        }
+        });
         
-        LOGGER.log(Level.INFO, "Firecracker VM terminated: {0}", name);
+        return CompletableFuture.allOf(network, drives, cache, socket).whenComplete((v, e) -> {
+            if (!leaseDetached) {
+                lease.release();
+            }
+            if (reservation != null) {
+                reservation.release();
+            }
+        });
+    }
+    
+    private static CompletableFuture<Void> cleanup(String failureMessage, Cleanup task) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, failureMessage, e);
+            }
+        }, TERMINATION_EXECUTOR);
+    }
+    
+    private interface Cleanup {
+        void run() throws Exception;
+    }
+    
+    /**
+     * Returns the address leased to this VM, which the guest is configured with through the
+     * kernel {@code ip=} argument and is therefore known before boot. A restored guest only
+     * has it once it is ready, see {@link #restore}.
+     */
+    public String getIpAddress() {
+        return lease.getAddress();
     }
     
-    public String getIpAddress() throws IOException, InterruptedException {
-        // Wait for VM to boot and get IP address
-        for (int i = 0; i < 60; i++) {
-            String ip = getVMIpAddress();
-            if (ip != null && !ip.isEmpty()) {
-                return ip;
+    /**
+     * Waits until SSH accepts connections on the guest. The wait between probes is spent on
+     * the readiness signal, so a guest that announces itself is probed straight away.
+     */
+    public void waitForSsh(String host, int timeoutSeconds) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        while (!SSHUtil.checkSSHPort(host, 22)) {
+            if (System.nanoTime() > deadline) {
+                throw new InterruptedException("Timed out waiting for SSH to become available on " + host);
+            }
+            if (ready.isDone()) {
+                // Announced, but sshd is not accepting yet
+                awaitReady(0);
+                TimeUnit.MILLISECONDS.sleep(100);
+            } else {
+                awaitReady(1000);
             }
-            TimeUnit.SECONDS.sleep(1);
         }
-        
-        throw new IOException("Failed to get IP address for VM: " + name);
+        // Answering on the leased address is as good as announcing it
+        confirmAddress();
+        recordSshUp();
     }
     
-    private void setupNetworking(String tapDevice, String hostInterface) throws IOException, InterruptedException {
-        // Create tap device
-        executeCommand("sudo", "ip", "tuntap", "add", tapDevice, "mode", "tap");
-        
-        // Set tap device up
-        executeCommand("sudo", "ip", "link", "set", tapDevice, "up");
-        
-        // Add tap device to bridge
-        executeCommand("sudo", "ip", "link", "set", tapDevice, "master", hostInterface);
+    /**
+     * Publishes a restored guest's own address once it has moved to it.
+     */
+    private void confirmAddress() {
+        if (!readdressing) {
+            return;
+        }
+        readdressing = false;
+        try {
+            putMetadata();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not update the metadata of VM " + name, e);
+        }
+    }
+    
+    private void recordSshUp() {
+        if (!sshRecorded.compareAndSet(false, true)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (readyMillis > 0) {
+            timeline.record(FirecrackerTimeline.Phase.SSH_WAIT, readyMillis, now - readyMillis);
+        } else if (bootStartedMillis > 0) {
+            // The guest never announced itself, so SSH coming up is the end of the boot
+            timeline.record(FirecrackerTimeline.Phase.GUEST_BOOT, bootStartedMillis, now - bootStartedMillis);
+        }
+    }
+    
+    void markBootStarted() {
+        bootStartedMillis = System.currentTimeMillis();
     }
     
-    private void cleanupNetworking(String tapDevice) throws IOException, InterruptedException {
-        executeCommand("sudo", "ip", "tuntap", "del", tapDevice, "mode", "tap");
+    void markReady(String announcedAddress) {
+        long now = System.currentTimeMillis();
+        if (ready.complete(announcedAddress)) {
+            readyMillis = now;
+            if (bootStartedMillis > 0) {
+                timeline.record(FirecrackerTimeline.Phase.GUEST_BOOT, bootStartedMillis, now - bootStartedMillis);
+            }
+        }
+    }
+    
+    /**
+     * Waits up to {@code timeoutMillis} for the readiness signal.
+     *
+     * @return the announced address, or {@code null} if there is none (yet)
+     * @throws IOException if the Firecracker process exited before the guest came up
+     */
+    private String awaitReady(long timeoutMillis) throws IOException, InterruptedException {
+        try {
+            return ready.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (ExecutionException e) {
+            throw new IOException("VM " + name + " did not come up", e.getCause());
+        }
+    }
+    
+    private void startConsoleReader(Process process) {
+        Thread reader = new Thread(() -> {
+            try (BufferedReader console = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = console.readLine()) != null) {
+                    LOGGER.log(Level.FINEST, "[{0}] {1}", new Object[]{name, line});
+                    int marker = line.indexOf(READY_MARKER);
+                    if (marker >= 0 && !ready.isDone()) {
+                        String announced = parseAnnouncedAddress(line.substring(marker + READY_MARKER.length()));
+                        if (readdressing && !lease.getAddress().equals(announced)) {
+                            LOGGER.log(Level.FINE, "VM {0} announced {1} before moving to {2}",
+                                    new Object[]{name, announced, lease.getAddress()});
+                            continue;
+                        }
+                        confirmAddress();
+                        markReady(announced);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Console of VM " + name + " closed", e);
+            }
+            ready.completeExceptionally(new IOException("Firecracker process for VM " + name + " exited"));
+        }, "Firecracker console " + name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+    
+    static String parseAnnouncedAddress(String rest) {
+        for (String token : rest.trim().split("\\s+")) {
+            if (token.startsWith("ip=") && token.length() > 3) {
+                return token.substring(3);
+            }
+        }
+        return null;
+    }
+    
+    private void setupNetworking() throws IOException, InterruptedException {
+        List<String> commands = tap.getSetupCommands();
+        if (!commands.isEmpty()) {
+            FirecrackerNetworkManager.get().execute(commands).check();
+        }
+        tap.markCreated();
     }
     
     private void waitForSocket(String socketPath) throws InterruptedException {
@@ -159,95 +868,229 @@ public class FirecrackerVM {
     }
     
     private void configureVM() throws IOException, InterruptedException {
-        // Configure boot source
-        String bootSourceConfig = String.format(
-                "{\"kernel_image_path\": \"%s\", \"boot_args\": \"console=ttyS0 reboot=k panic=1 pci=off\"}",
-                kernelImagePath);
-        
-        executeFirecrackerCmd("PUT", "/boot-source", bootSourceConfig);
+        FirecrackerRateLimits limits = rateLimits != null ? FirecrackerRateLimits.current(rateLimits) : null;
+        JSONObject config = renderConfig(limits);
         
-        // Configure root filesystem
-        String rootFsConfig = String.format(
-                "{\"drive_id\": \"rootfs\", \"path_on_host\": \"%s\", \"is_root_device\": true, \"is_read_only\": false}",
-                vmImagePath);
+        executeFirecrackerCmd("PUT", "/boot-source", config.getJSONObject("boot-source").toString());
         
-        executeFirecrackerCmd("PUT", "/drives/rootfs", rootFsConfig);
+        JSONArray drives = config.getJSONArray("drives");
+        for (int i = 0; i < drives.size(); i++) {
+            JSONObject drive = drives.getJSONObject(i);
+            executeFirecrackerCmd("PUT", "/drives/" + drive.getString("drive_id"), drive.toString());
+        }
         
-        // Configure machine resources
-        String machineConfig = String.format(
-                "{\"vcpu_count\": %d, \"mem_size_mib\": %d, \"ht_enabled\": false}",
-                vcpuCount, memorySize);
+        executeFirecrackerCmd("PUT", "/machine-config", config.getJSONObject("machine-config").toString());
         
-        executeFirecrackerCmd("PUT", "/machine-config", machineConfig);
+        if (config.has("balloon")) {
+            executeFirecrackerCmd("PUT", "/balloon", config.getJSONObject("balloon").toString());
+        }
         
-        // Configure network interface
-        String networkConfig = String.format(
-                "{\"iface_id\": \"eth0\", \"guest_mac\": \"AA:FC:00:00:00:01\", \"host_dev_name\": \"%s\"}",
-                tapDevice);
+        JSONArray interfaces = config.getJSONArray("network-interfaces");
+        for (int i = 0; i < interfaces.size(); i++) {
+            JSONObject iface = interfaces.getJSONObject(i);
+            executeFirecrackerCmd("PUT", "/network-interfaces/" + iface.getString("iface_id"), iface.toString());
+        }
         
-        executeFirecrackerCmd("PUT", "/network-interfaces/eth0", networkConfig);
+        // Metadata service on eth0, filled in before the guest starts so init can read it straight away
+        executeFirecrackerCmd("PUT", "/mmds/config", config.getJSONObject("mmds-config").toString());
+        putMetadata();
         
         // Start VM
+        markBootStarted();
         executeFirecrackerCmd("PUT", "/actions", "{\"action_type\": \"InstanceStart\"}");
+        if (limits != null) {
+            FirecrackerRateLimits.register(this);
+        }
     }
     
-    private void executeFirecrackerCmd(String method, String path, String body) throws IOException, InterruptedException {
-        List<String> command = new ArrayList<>();
-        command.add("curl");
-        command.add("--unix-socket");
-        command.add(socketPath);
-        command.add("-X");
-        command.add(method);
-        command.add("-H");
-        command.add("Accept: application/json");
-        command.add("-H");
-        command.add("Content-Type: application/json");
-        command.add("-d");
-        command.add(body);
-        command.add("http://localhost" + path);
-        
-        executeCommand(command.toArray(new String[0]));
-    }
-    
-    private String getVMIpAddress() throws IOException, InterruptedException {
-        // This is a simplified approach - in a real implementation, you would need
-        // a more robust way to determine the VM's IP address, possibly by querying
-        // the DHCP server or using a predefined IP allocation
-        
-        ProcessBuilder pb = new ProcessBuilder("sudo", "arp", "-n");
-        Process process = pb.start();
-        
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.contains("AA:FC:00:00:00:01")) {
-                    String[] parts = line.trim().split("\\s+");
-                    if (parts.length >= 1) {
-                        return parts[0];
-                    }
-                }
+    /**
+     * Renders everything this VM is configured with before the guest starts, in the layout of
+     * Firecracker's {@code --config-file}.
+     */
+    JSONObject renderConfig(FirecrackerRateLimits limits) throws IOException {
+        JSONObject config = new JSONObject();
+        // overlay-init mounts the scratch drive over a read-only root
+        config.element("boot-source", new JSONObject()
+                .element("kernel_image_path", exposed("vmlinux", kernelImagePath))
+                .element("boot_args", "console=ttyS0 reboot=k panic=1 pci=off " + lease.getKernelBootArg()
+                        + (rootfs.getScratchPath() != null ? " init=/sbin/overlay-init overlay_root=vdb" : "")
+                        + (bootArgs != null ? " " + bootArgs : "")));
+        
+        // Each drive gets its own token buckets if the template limits disk I/O
+        JSONArray driveConfigs = new JSONArray();
+        for (Drive drive : getDrives()) {
+            JSONObject driveConfig = new JSONObject()
+                    .element("drive_id", drive.id)
+                    .element("path_on_host", exposed(drive.id, drive.path))
+                    .element("is_root_device", drive.root)
+                    .element("is_read_only", drive.readOnly);
+            if (limits != null) {
+                driveConfig.element("rate_limiter", limits.getDriveLimiter());
             }
+            driveConfigs.add(driveConfig);
         }
+        config.element("drives", driveConfigs);
         
-        process.waitFor();
-        return null;
+        config.element("machine-config", new JSONObject()
+                .element("vcpu_count", vcpuCount)
+                .element("mem_size_mib", memorySize)
+                .element("ht_enabled", false));
+        
+        // Balloon starts deflated and gives pages back to a guest running out of memory
+        if (balloonReclaimPercent > 0) {
+            config.element("balloon", new JSONObject()
+                    .element("amount_mib", 0)
+                    .element("deflate_on_oom", true)
+                    .element("stats_polling_interval_s", FirecrackerBalloon.STATS_INTERVAL_SECONDS));
+        }
+        
+        JSONObject iface = new JSONObject()
+                .element("iface_id", "eth0")
+                .element("guest_mac", lease.getMacAddress())
+                .element("host_dev_name", tapDevice);
+        if (limits != null) {
+            iface.element("rx_rate_limiter", limits.getNetworkLimiter())
+                    .element("tx_rate_limiter", limits.getNetworkLimiter());
+        }
+        config.element("network-interfaces", new JSONArray().element(iface));
+        
+        config.element("mmds-config", new JSONObject()
+                .element("version", "V2")
+                .element("ipv4_address", MMDS_ADDRESS)
+                .element("network_interfaces", new JSONArray().element("eth0")));
+        return config;
     }
     
-    private void executeCommand(String... command) throws IOException, InterruptedException {
-        ProcessBuilder pb = new ProcessBuilder(command);
-        Process process = pb.start();
+    /**
+     * Writes the rendered configuration and the metadata document for Firecracker's
+     * {@code --config-file} and {@code --metadata}, readable by the controller only since the
+     * metadata can hold an agent's secret.
+     *
+     * @return the Firecracker arguments naming them
+     */
+    private List<String> writeConfigFiles() throws IOException {
+        FirecrackerRateLimits limits = rateLimits != null ? FirecrackerRateLimits.current(rateLimits) : null;
+        String config = renderConfig(limits).toString();
+        String document = metadataDocument().toString();
         
-        int exitCode = process.waitFor();
-        if (exitCode != 0) {
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
-                StringBuilder error = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    error.append(line).append("\n");
+        FirecrackerJail held = jail;
+        if (held != null) {
+            writePrivate(held.getRoot().resolve("vm-config.json"), config);
+            writePrivate(held.getRoot().resolve("vm-metadata.json"), document);
+            return Arrays.asList("--config-file", "/vm-config.json", "--metadata", "/vm-metadata.json");
+        }
+        Path dir = Paths.get(CONFIG_DIR);
+        if (!Files.isDirectory(dir) || !Files.isWritable(dir)) {
+            dir = Paths.get(socketPath).getParent();
+        }
+        Path configFile = dir.resolve("firecracker-" + id + ".json");
+        Path metadataFile = dir.resolve("firecracker-" + id + "-metadata.json");
+        configFiles = Arrays.asList(configFile, metadataFile);
+        writePrivate(configFile, config);
+        writePrivate(metadataFile, document);
+        return Arrays.asList("--config-file", configFile.toString(), "--metadata", metadataFile.toString());
+    }
+    
+    private static void writePrivate(Path file, String content) throws IOException {
+        Files.deleteIfExists(file);
+        Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * The path Firecracker knows a host file by: the file itself, or for jailed VMs its link in
+     * the chroot.
+     */
+    private String exposed(String name, Object path) throws IOException {
+        FirecrackerJail held = jail;
+        return held == null ? path.toString() : held.expose(name, Paths.get(path.toString()));
+    }
+    
+    /**
+     * This VM's drives, in the order they are attached.
+     */
+    private List<Drive> getDrives() {
+        List<Drive> drives = new ArrayList<>();
+        FirecrackerRootfs current = rootfs;
+        if (current != null) {
+            drives.add(new Drive("rootfs", current.getRootPath(), true, current.isReadOnly()));
+            if (current.getScratchPath() != null) {
+                drives.add(new Drive("scratch", current.getScratchPath(), false, false));
+            }
+        }
+        for (int i = 0; i < cacheDrives.size(); i++) {
+            drives.add(new Drive("cache" + i, cacheDrives.get(i), false, true));
+        }
+        FirecrackerBuildCache.Lease cache = buildCacheLease;
+        if (cache != null) {
+            drives.add(new Drive("buildcache", cache.getImage(), false, true));
+            drives.add(new Drive("buildcache-overlay", cache.getOverlay(), false, false));
+        }
+        return drives;
+    }
+    
+    private static final class Drive {
+        final String id;
+        final Object path;
+        final boolean root;
+        final boolean readOnly;
+        
+        Drive(String id, Object path, boolean root, boolean readOnly) {
+            this.id = id;
+            this.path = path;
+            this.root = root;
+            this.readOnly = readOnly;
+        }
+    }
+    
+    /**
+     * Replaces the rate limiters of a running VM's drives and network interface.
+     */
+    void updateRateLimits(FirecrackerRateLimits limits) throws IOException {
+        if (apiClient == null || !isAlive()) {
+            return;
+        }
+        for (Drive drive : getDrives()) {
+            executeFirecrackerCmd("PATCH", "/drives/" + drive.id, new JSONObject()
+                    .element("drive_id", drive.id)
+                    .element("rate_limiter", limits.getDriveLimiter())
+                    .toString());
+        }
+        executeFirecrackerCmd("PATCH", "/network-interfaces/eth0", new JSONObject()
+                .element("iface_id", "eth0")
+                .element("rx_rate_limiter", limits.getNetworkLimiter())
+                .element("tx_rate_limiter", limits.getNetworkLimiter())
+                .toString());
+    }
+    
+    private void putMetadata() throws IOException {
+        executeFirecrackerCmd("PUT", "/mmds", metadataDocument().toString());
+        configured = true;
+    }
+    
+    /**
+     * The document the metadata service serves. Until a restored guest has moved to this VM's
+     * address, the network settings are only offered under {@code readdress}, since the guest
+     * does not have them yet. Cold-booted guests of snapshot images get them there as well.
+     */
+    private JSONObject metadataDocument() {
+        JSONObject jenkins = JSONObject.fromObject(metadata != null ? metadata : createMetadata());
+        if (readdressing || readdressOffered) {
+            if (readdressing) {
+                for (String key : new String[]{"address", "gateway", "netmask", "mac"}) {
+                    jenkins.remove(key);
                 }
-                
-                throw new IOException("Command failed with exit code " + exitCode + ": " + error.toString());
             }
+            jenkins.element("readdress", new JSONObject()
+                    .element("address", lease.getAddress())
+                    .element("gateway", lease.getGateway())
+                    .element("netmask", lease.getNetmask())
+                    .element("mac", lease.getMacAddress()));
         }
+        return new JSONObject().element("jenkins", jenkins);
+    }
+    
+    private void executeFirecrackerCmd(String method, String path, String body) throws IOException {
+        apiClient.request(method, path, body);
     }
 }
@@ -0,0 +1,289 @@
+package io.jenkins.plugins.firecracker;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of booted, SSH-ready VMs kept idle for one agent template.
+ *
+ * <p>Provisioning takes a VM from the pool when one is available and falls back to a cold
+ * boot otherwise. Every take schedules an asynchronous refill back up to the template's
+ * minimum idle count; {@link Maintenance} also tops pools up periodically and drains the
+ * pools of templates that are no longer configured.
+ *
+ * <p>Single-use templates also {@link #prewarm()} a replacement whenever one of their agents
+ * finishes its task. Each replacement raises the pool's idle limit by one until a provision
+ * takes a VM, or until the oldest idle VM has waited longer than the template's idle timeout.
+ */
+public class FirecrackerWarmPool {
+    private static final Logger LOGGER = Logger.getLogger(FirecrackerWarmPool.class.getName());
+
+    private static final Map<FirecrackerAgentTemplate, FirecrackerWarmPool> POOLS = new ConcurrentHashMap<>();
+
+    private static final ExecutorService REFILL_EXECUTOR = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "FirecrackerWarmPool.refill"));
+
+    private final FirecrackerCloud cloud;
+    private final FirecrackerAgentTemplate template;
+    private final ConcurrentLinkedDeque<WarmVM> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger booting = new AtomicInteger();
+    private final AtomicInteger replacements = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile boolean drained;
+
+    private FirecrackerWarmPool(FirecrackerCloud cloud, FirecrackerAgentTemplate template) {
+        this.cloud = cloud;
+        this.template = template;
+    }
+
+    public static FirecrackerWarmPool get(FirecrackerCloud cloud, FirecrackerAgentTemplate template) {
+        return POOLS.computeIfAbsent(template, t -> new FirecrackerWarmPool(cloud, t));
+    }
+
+    public FirecrackerAgentTemplate getTemplate() {
+        return template;
+    }
+
+    public boolean isEnabled() {
+        return template.getWarmPoolMaxIdle() > 0 || template.isOneShot();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getBootingCount() {
+        return booting.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Takes a booted VM out of the pool and schedules a refill.
+     *
+     * @return the VM, or {@code null} if the pool is empty and the caller has to boot one itself
+     */
+    public WarmVM take() {
+        WarmVM warm;
+        while ((warm = idle.pollFirst()) != null) {
+            if (warm.getVm().isAlive()) {
+                break;
+            }
+            LOGGER.log(Level.WARNING, "Discarding dead warm VM {0}", warm.getVm().getName());
+            warm.getVm().terminateAsync();
+        }
+
+        if (warm != null) {
+            replacements.updateAndGet(n -> Math.max(0, n - 1));
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        refill();
+        return warm;
+    }
+
+    /**
+     * Starts as many background boots as needed, and allowed, to reach the minimum idle count.
+     */
+    public void refill() {
+        if (drained) {
+            return;
+        }
+        int minIdle = template.getWarmPoolMinIdle();
+        int concurrency = Math.max(1, template.getWarmPoolRefillConcurrency());
+        while (true) {
+            int inFlight = booting.get();
+            if (idle.size() + inFlight >= minIdle || inFlight >= concurrency) {
+                return;
+            }
+            if (booting.compareAndSet(inFlight, inFlight + 1)) {
+                REFILL_EXECUTOR.submit(() -> boot(false));
+            }
+        }
+    }
+
+    /**
+     * Boots one VM in the background on top of the template's maximum idle count, to stand in
+     * for a single-use agent that is going away.
+     */
+    public void prewarm() {
+        if (drained) {
+            return;
+        }
+        replacements.incrementAndGet();
+        booting.incrementAndGet();
+        REFILL_EXECUTOR.submit(() -> boot(true));
+    }
+
+    /**
+     * Terminates idle VMs above the template's maximum idle count, plus any outstanding
+     * replacements that have not been taken within the idle timeout.
+     */
+    public void trim() {
+        WarmVM oldest = idle.peekFirst();
+        long idleTimeout = template.getIdleTerminationMillis();
+        if (oldest != null && replacements.get() > 0 && idleTimeout > 0
+                && System.currentTimeMillis() - oldest.getReadyMillis() > idleTimeout) {
+            replacements.updateAndGet(n -> Math.max(0, n - 1));
+        }
+        WarmVM warm;
+        while (idle.size() > getMaxIdle() && (warm = idle.pollLast()) != null) {
+            warm.getVm().terminateAsync();
+        }
+    }
+
+    /**
+     * Terminates every idle VM and stops refilling.
+     */
+    public void drain() {
+        drained = true;
+        WarmVM warm;
+        while ((warm = idle.pollFirst()) != null) {
+            warm.getVm().terminateAsync();
+        }
+    }
+
+    /**
+     * Boots one VM into the pool. A replacement that fails to boot gives back the idle slot
+     * {@link #prewarm()} added for it.
+     */
+    private void boot(boolean replacement) {
+        FirecrackerVM vm = null;
+        boolean pooled = false;
+        try {
+            FirecrackerCapacity.Reservation reservation = cloud.getCapacity().tryReserve(cloud, template);
+            if (reservation == null) {
+                LOGGER.log(Level.FINE, "No capacity left to warm a VM for template {0}", template.getLabelString());
+                return;
+            }
+            vm = cloud.bootVM(template, "firecracker-pool-" + UUID.randomUUID().toString().substring(0, 8), reservation);
+            String ipAddress = vm.getIpAddress();
+            vm.waitForSsh(ipAddress, template.getStartupTimeoutSeconds());
+
+            if (drained || idle.size() >= getMaxIdle()) {
+                vm.terminateAsync();
+            } else {
+                idle.offerLast(new WarmVM(vm, ipAddress));
+                pooled = true;
+                LOGGER.log(Level.FINE, "Warm VM {0} ready at {1}", new Object[]{vm.getName(), ipAddress});
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (vm != null) {
+                vm.terminateAsync();
+            }
+        } catch (Exception e) {
+            // Leave the retry to the next take or maintenance run rather than spinning on a broken host
+            LOGGER.log(Level.WARNING, "Failed to boot warm VM for template " + template.getLabelString(), e);
+            if (vm != null) {
+                vm.terminateAsync();
+            }
+            return;
+        } finally {
+            if (replacement && !pooled) {
+                replacements.updateAndGet(n -> Math.max(0, n - 1));
+            }
+            booting.decrementAndGet();
+        }
+        refill();
+    }
+
+    int getMaxIdle() {
+        return template.getWarmPoolMaxIdle() + replacements.get();
+    }
+
+    /**
+     * A booted VM waiting in the pool, with the address it was reached at.
+     */
+    public static final class WarmVM {
+        private final FirecrackerVM vm;
+        private final String ipAddress;
+        private final long readyMillis = System.currentTimeMillis();
+
+        WarmVM(FirecrackerVM vm, String ipAddress) {
+            this.vm = vm;
+            this.ipAddress = ipAddress;
+        }
+
+        public long getReadyMillis() {
+            return readyMillis;
+        }
+
+        public FirecrackerVM getVm() {
+            return vm;
+        }
+
+        public String getIpAddress() {
+            return ipAddress;
+        }
+    }
+
+    @Extension
+    public static class Maintenance extends AsyncPeriodicWork {
+        public Maintenance() {
+            super("Firecracker warm pool maintenance");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) {
+            Set<FirecrackerAgentTemplate> active = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (FirecrackerCloud cloud : Jenkins.get().clouds.getAll(FirecrackerCloud.class)) {
+                for (FirecrackerAgentTemplate template : cloud.getTemplates()) {
+                    active.add(template);
+                    if (template.getWarmPoolMaxIdle() > 0 || template.isOneShot()) {
+                        FirecrackerWarmPool pool = get(cloud, template);
+                        pool.trim();
+                        pool.refill();
+                    }
+                }
+            }
+
+            // Templates are replaced whenever the cloud is reconfigured; release what the old ones held
+            List<FirecrackerAgentTemplate> stale = new ArrayList<>();
+            for (FirecrackerAgentTemplate template : POOLS.keySet()) {
+                if (!active.contains(template)) {
+                    stale.add(template);
+                }
+            }
+            for (FirecrackerAgentTemplate template : stale) {
+                FirecrackerWarmPool pool = POOLS.remove(template);
+                if (pool != null) {
+                    pool.drain();
+                }
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package io.jenkins.plugins.firecracker;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.concurrent.TimeUnit;
 
 public class SSHUtil {
     
@@ -14,4 +15,14 @@ public class SSHUtil {
             return false;
         }
     }
+    
+    public static void waitForSSHPort(String host, int port, int timeoutSeconds) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        while (!checkSSHPort(host, port)) {
+            if (System.nanoTime() > deadline) {
+                throw new InterruptedException("Timed out waiting for SSH to become available on " + host);
+            }
+            TimeUnit.SECONDS.sleep(1);
+        }
+    }
 }
@@ -0,0 +1,158 @@
+package io.jenkins.plugins.firecracker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in for the Firecracker API socket. Answers every request with 204 unless a
+ * response has been registered for its method and path.
+ */
+public class FakeFirecrackerApiServer implements Closeable {
+    private final Path socketPath;
+    private final ServerSocketChannel server;
+    private final Map<String, String[]> responses = new ConcurrentHashMap<>();
+    private final Set<String> drops = ConcurrentHashMap.newKeySet();
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private final List<SocketChannel> clients = new CopyOnWriteArrayList<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Thread acceptor;
+
+    public FakeFirecrackerApiServer(Path socketPath) throws IOException {
+        this.socketPath = socketPath;
+        Files.deleteIfExists(socketPath);
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socketPath));
+        acceptor = new Thread(this::acceptLoop, "fake-firecracker-api");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public Path getSocketPath() {
+        return socketPath;
+    }
+
+    /**
+     * Registers the raw status line suffix (e.g. {@code "400 Bad Request"}) and body to answer with.
+     */
+    public void respond(String method, String path, String status, String body) {
+        responses.put(method + " " + path, new String[]{status, body});
+    }
+
+    /**
+     * Closes the connection instead of answering the next request for the method and path,
+     * after recording it.
+     */
+    public void dropAfter(String method, String path) {
+        drops.add(method + " " + path);
+    }
+
+    /** Requests seen so far, as {@code "METHOD path body"}. */
+    public List<String> getRequests() {
+        return requests;
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (SocketChannel client : clients) {
+            client.close();
+        }
+        Files.deleteIfExists(socketPath);
+    }
+
+    private void acceptLoop() {
+        while (server.isOpen()) {
+            try {
+                SocketChannel client = server.accept();
+                connections.incrementAndGet();
+                clients.add(client);
+                Thread handler = new Thread(() -> serve(client), "fake-firecracker-api-conn");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(SocketChannel client) {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        try (SocketChannel c = client) {
+            while (true) {
+                byte[] data = pending.toByteArray();
+                String text = new String(data, StandardCharsets.ISO_8859_1);
+                int headerEnd = text.indexOf("\r\n\r\n");
+                if (headerEnd >= 0) {
+                    int contentLength = contentLength(text.substring(0, headerEnd));
+                    int total = headerEnd + 4 + contentLength;
+                    if (data.length >= total) {
+                        String requestLine = text.substring(0, text.indexOf("\r\n"));
+                        String[] parts = requestLine.split(" ");
+                        String body = new String(data, headerEnd + 4, contentLength, StandardCharsets.UTF_8);
+                        requests.add(parts[0] + " " + parts[1] + " " + body);
+                        if (drops.remove(parts[0] + " " + parts[1])) {
+                            return;
+                        }
+                        c.write(ByteBuffer.wrap(render(parts[0] + " " + parts[1])));
+                        pending.reset();
+                        pending.write(data, total, data.length - total);
+                        continue;
+                    }
+                }
+                buffer.clear();
+                int n = c.read(buffer);
+                if (n < 0) {
+                    return;
+                }
+                pending.write(buffer.array(), 0, n);
+            }
+        } catch (IOException e) {
+            // client went away
+        }
+    }
+
+    private byte[] render(String key) {
+        String[] response = responses.getOrDefault(key, new String[]{"204 No Content", ""});
+        byte[] body = response[1].getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + response[0] + "\r\n"
+                + "Server: Firecracker API\r\n"
+                + "Connection: keep-alive\r\n"
+                + (body.length > 0 ? "Content-Type: application/json\r\nContent-Length: " + body.length + "\r\n" : "")
+                + "\r\n";
+        byte[] headBytes = head.getBytes(StandardCharsets.US_ASCII);
+        byte[] out = new byte[headBytes.length + body.length];
+        System.arraycopy(headBytes, 0, out, 0, headBytes.length);
+        System.arraycopy(body, 0, out, headBytes.length, body.length);
+        return out;
+    }
+
+    private static int contentLength(String head) {
+        for (String line : head.split("\r\n")) {
+            if (line.toLowerCase(Locale.ROOT).startsWith("content-length:")) {
+                return Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,105 @@
+package io.jenkins.plugins.firecracker;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class FirecrackerAddressPoolTest {
+
+    @Test
+    public void testLeaseDerivesAddressMacAndBootArg() throws Exception {
+        FirecrackerAddressPool pool = new FirecrackerAddressPool("172.16.0.0/24");
+        FirecrackerAddressPool.Lease lease = pool.allocate();
+
+        assertEquals("172.16.0.1", pool.getGateway());
+        assertEquals("172.16.0.2", lease.getAddress());
+        assertEquals("AA:FC:AC:10:00:02", lease.getMacAddress());
+        assertEquals("ip=172.16.0.2::172.16.0.1:255.255.255.0::eth0:off", lease.getKernelBootArg());
+    }
+
+    @Test
+    public void testExhaustionAndRelease() throws Exception {
+        FirecrackerAddressPool pool = new FirecrackerAddressPool("10.0.0.0/29");
+        assertEquals(5, pool.getSize());
+
+        List<FirecrackerAddressPool.Lease> leases = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            leases.add(pool.allocate());
+        }
+        try {
+            pool.allocate();
+            fail("Expected the pool to be exhausted");
+        } catch (IOException e) {
+            // expected
+        }
+
+        leases.get(2).release();
+        leases.get(2).release();
+        assertEquals(4, pool.getAllocatedCount());
+        assertEquals(leases.get(2).getAddress(), pool.allocate().getAddress());
+    }
+
+    @Test
+    public void testReservedAddressesAreSkipped() throws Exception {
+        FirecrackerAddressPool pool = new FirecrackerAddressPool("10.0.0.0/29");
+        pool.reserve("10.0.0.2");
+        pool.reserve("192.168.1.1");
+
+        assertEquals("10.0.0.3", pool.allocate().getAddress());
+        assertEquals(2, pool.getAllocatedCount());
+    }
+
+    @Test
+    public void testConcurrentAllocationsAreUnique() throws Exception {
+        FirecrackerAddressPool pool = new FirecrackerAddressPool("10.1.0.0/22");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < pool.getSize(); i++) {
+                futures.add(executor.submit(() -> pool.allocate().getAddress()));
+            }
+            Set<String> addresses = new HashSet<>();
+            for (Future<String> future : futures) {
+                assertTrue(addresses.add(future.get()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPoolsAreSharedByNetwork() throws Exception {
+        FirecrackerAddressPool pool = FirecrackerAddressPool.forCidr("10.246.0.0/24");
+        assertSame(pool, FirecrackerAddressPool.forCidr(" 10.246.0.5/24"));
+        try {
+            FirecrackerAddressPool.forCidr("10.246.0.0/16");
+            fail("Expected the overlapping range to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("10.246.0.0/24"));
+        }
+        try {
+            FirecrackerAddressPool.forCidr("10.246.0.128/25");
+            fail("Expected the overlapping range to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        FirecrackerAddressPool.Lease lease = pool.allocate();
+        FirecrackerAddressPool.releaseAddress(lease.getAddress());
+        assertEquals(0, pool.getAllocatedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsMalformedCidr() {
+        new FirecrackerAddressPool("172.16.0.0");
+    }
+}
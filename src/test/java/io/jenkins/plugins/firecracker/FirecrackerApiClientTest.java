@@ -0,0 +1,111 @@
+package io.jenkins.plugins.firecracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class FirecrackerApiClientTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FakeFirecrackerApiServer server;
+    private FirecrackerApiClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeFirecrackerApiServer(tmp.getRoot().toPath().resolve("api.socket"));
+        client = new FirecrackerApiClient(server.getSocketPath());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void testRequestsShareOneConnection() throws Exception {
+        client.request("PUT", "/boot-source", "{\"kernel_image_path\": \"/vmlinux\"}");
+        client.request("PUT", "/machine-config", "{\"vcpu_count\": 1}");
+        client.request("PUT", "/actions", "{\"action_type\": \"InstanceStart\"}");
+
+        assertEquals(1, server.getConnectionCount());
+        assertEquals(3, server.getRequests().size());
+        assertEquals("PUT /boot-source {\"kernel_image_path\": \"/vmlinux\"}", server.getRequests().get(0));
+    }
+
+    @Test
+    public void testResponseBodyIsReturned() throws Exception {
+        server.respond("GET", "/", "200 OK", "{\"id\": \"vm\", \"state\": \"Running\"}");
+
+        FirecrackerApiClient.Response response = client.request("GET", "/", null);
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals("{\"id\": \"vm\", \"state\": \"Running\"}", response.getBody());
+    }
+
+    @Test
+    public void testErrorStatusCarriesFaultMessage() throws Exception {
+        server.respond("PUT", "/drives/rootfs", "400 Bad Request",
+                "{\"fault_message\": \"Unable to open the \\\"rootfs\\\" image\"}");
+
+        try {
+            client.request("PUT", "/drives/rootfs", "{}");
+            fail("Expected a FirecrackerApiException");
+        } catch (FirecrackerApiClient.FirecrackerApiException e) {
+            assertEquals(400, e.getStatusCode());
+            assertEquals("Unable to open the \"rootfs\" image", e.getFaultMessage());
+        }
+
+        // The connection stays usable after an API error
+        client.request("PUT", "/machine-config", "{}");
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void testReconnectsAfterServerDropsConnection() throws Exception {
+        client.request("PUT", "/boot-source", "{}");
+        server.close();
+        server = new FakeFirecrackerApiServer(client.getSocketPath());
+
+        client.request("PUT", "/machine-config", "{}");
+
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void testIdempotentRequestIsResentAfterConnectionClosesUnanswered() throws Exception {
+        client.request("PUT", "/boot-source", "{}");
+        server.dropAfter("PUT", "/machine-config");
+
+        client.request("PUT", "/machine-config", "{}");
+
+        assertEquals(3, server.getRequests().size());
+        assertEquals(2, server.getConnectionCount());
+    }
+
+    @Test
+    public void testActionIsNotResentAfterConnectionClosesUnanswered() throws Exception {
+        client.request("PUT", "/boot-source", "{}");
+        server.dropAfter("PUT", "/actions");
+
+        try {
+            client.request("PUT", "/actions", "{\"action_type\": \"InstanceStart\"}");
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertFalse(e instanceof FirecrackerApiClient.FirecrackerApiException);
+        }
+        assertEquals("InstanceStart must not be sent twice", 2, server.getRequests().size());
+
+        // The next request gets a new connection
+        client.request("GET", "/", null);
+        assertEquals(2, server.getConnectionCount());
+    }
+}
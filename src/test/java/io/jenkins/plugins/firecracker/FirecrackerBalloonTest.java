@@ -0,0 +1,96 @@
+package io.jenkins.plugins.firecracker;
+
+import io.jenkins.plugins.firecracker.benchmark.FakeFirecracker;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FirecrackerBalloonTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void testIdleTargetKeepsHeadroom() {
+        assertEquals(512, FirecrackerBalloon.idleTargetMb(1024, 50, null));
+        // Plenty available: the percentage decides
+        assertEquals(512, FirecrackerBalloon.idleTargetMb(1024, 50, statistics(0, 900 * MB)));
+        // 300 MB available of which 128 stay with the guest
+        assertEquals(172, FirecrackerBalloon.idleTargetMb(1024, 50, statistics(0, 300 * MB)));
+        // Already inflated to 172, so only the remaining available memory counts
+        assertEquals(172, FirecrackerBalloon.idleTargetMb(1024, 50, statistics(172, 128 * MB)));
+        assertEquals(0, FirecrackerBalloon.idleTargetMb(1024, 50, statistics(0, 64 * MB)));
+    }
+
+    @Test
+    public void testStatisticsWithoutGuestFigures() {
+        FirecrackerBalloon.Statistics statistics = FirecrackerBalloon.Statistics.fromJson(
+                JSONObject.fromObject("{\"target_mib\": 256, \"actual_mib\": 200, \"target_pages\": 65536, \"actual_pages\": 51200}"));
+        assertEquals(256, statistics.getTargetMb());
+        assertEquals(200, statistics.getActualMb());
+        assertEquals(-1, statistics.getAvailableMemoryBytes());
+        assertEquals(-1, statistics.getMajorFaults());
+    }
+
+    @Test
+    public void testBalloonIsConfiguredAndResized() throws Exception {
+        try (FakeFirecracker fake = new FakeFirecracker()) {
+            FirecrackerVM vm = new FirecrackerVM("balloon-test", fake.getRootfsImage().toString(),
+                    fake.getKernelImage().toString(), 1024, 1, "br0",
+                    FirecrackerAddressPool.forCidr("10.247.0.0/24").allocate());
+            vm.setBalloonReclaimPercent(50);
+            vm.start();
+            try {
+                FakeFirecrackerApiServer server = fake.getServers().iterator().next();
+                List<String> requests = server.getRequests();
+                JSONObject config = body(requests, "PUT /balloon ");
+                assertEquals(0, config.getInt("amount_mib"));
+                assertTrue(config.getBoolean("deflate_on_oom"));
+                assertEquals(FirecrackerBalloon.STATS_INTERVAL_SECONDS, config.getInt("stats_polling_interval_s"));
+                assertTrue("balloon is configured before the guest starts",
+                        indexOf(requests, "PUT /balloon ") < indexOf(requests, "PUT /actions "));
+
+                server.respond("GET", "/balloon/statistics", "200 OK",
+                        "{\"target_mib\": 0, \"actual_mib\": 0, \"available_memory\": " + (800 * MB) + ", \"major_faults\": 3}");
+                FirecrackerBalloon.Statistics statistics = vm.refreshBalloonStatistics();
+                assertSame(statistics, vm.getBalloonStatistics());
+                assertEquals(800 * MB, statistics.getAvailableMemoryBytes());
+
+                vm.setBalloonTarget(FirecrackerBalloon.idleTargetMb(vm.getMemorySize(), vm.getBalloonReclaimPercent(), statistics));
+                assertEquals(512, body(requests, "PATCH /balloon ").getInt("amount_mib"));
+                int count = requests.size();
+                vm.setBalloonTarget(512);
+                assertEquals("unchanged targets are not sent", count, requests.size());
+                vm.setBalloonTarget(0);
+                assertEquals(0, body(requests, "PATCH /balloon ").getInt("amount_mib"));
+            } finally {
+                vm.terminate();
+            }
+        }
+    }
+
+    private static FirecrackerBalloon.Statistics statistics(int actualMb, long availableBytes) {
+        return new FirecrackerBalloon.Statistics(actualMb, actualMb, availableBytes, 1024 * MB, 0, 0, 0);
+    }
+
+    private static int indexOf(List<String> requests, String prefix) {
+        for (int i = 0; i < requests.size(); i++) {
+            if (requests.get(i).startsWith(prefix)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The body of the last request starting with the prefix
+    private static JSONObject body(List<String> requests, String prefix) {
+        for (int i = requests.size() - 1; i >= 0; i--) {
+            if (requests.get(i).startsWith(prefix)) {
+                return JSONObject.fromObject(requests.get(i).substring(prefix.length()));
+            }
+        }
+        throw new AssertionError("No " + prefix + "in " + requests);
+    }
+}
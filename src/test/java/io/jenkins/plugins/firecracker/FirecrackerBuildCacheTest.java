@@ -0,0 +1,113 @@
+package io.jenkins.plugins.firecracker;
+
+import hudson.Util;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class FirecrackerBuildCacheTest {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("build-cache");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Util.deleteRecursive(dir.toFile());
+    }
+
+    @Test
+    public void testOverlaysAreMergedIntoANewGeneration() throws Exception {
+        Path seedTree = dir.resolve("seed");
+        write(seedTree.resolve(".m2/repository/a.jar"), "a");
+        write(seedTree.resolve(".m2/repository/old.jar"), "old");
+        Path seed = dir.resolve("cache.ext4");
+        run("mke2fs", "-q", "-F", "-t", "ext4", "-E", "root_owner=1000:1000", "-d", seedTree.toString(), seed.toString(), "16M");
+
+        FirecrackerBuildCache cache = new FirecrackerBuildCache(seed);
+        FirecrackerBuildCache.Lease used = cache.lease("vm1", 64);
+        FirecrackerBuildCache.Lease unused = cache.lease("vm2", 64);
+        assertEquals(seed, used.getImage());
+        assertTrue(Files.exists(used.getOverlay()));
+
+        // What the guest would have left in its overlay's upper directory
+        Path upperTree = dir.resolve("overlay");
+        write(upperTree.resolve("upper/.m2/repository/a.jar"), "a2");
+        write(upperTree.resolve("upper/.gradle/caches/b.bin"), "b");
+        run("mke2fs", "-q", "-F", "-t", "ext4", "-d", upperTree.toString(), used.getOverlay().toString(), "64M");
+
+        used.release(true);
+        unused.release(false);
+        assertEquals(1, cache.getPendingCount());
+        assertFalse(Files.exists(unused.getOverlay()));
+
+        Path generation = cache.merge();
+        assertEquals(generation, cache.getCurrentImage());
+        assertEquals(1, cache.getGeneration());
+        assertFalse("merged overlays are deleted", Files.exists(used.getOverlay()));
+        assertEquals("a2", run("debugfs", "-R", "cat /.m2/repository/a.jar", generation.toString()));
+        assertEquals("old", run("debugfs", "-R", "cat /.m2/repository/old.jar", generation.toString()));
+        assertEquals("b", run("debugfs", "-R", "cat /.gradle/caches/b.bin", generation.toString()));
+        assertTrue(run("debugfs", "-R", "stat /.gradle/caches/b.bin", generation.toString()).matches("(?s).*User:\\s+1000\\s+Group:\\s+1000.*"));
+
+        // New VMs get the new generation
+        FirecrackerBuildCache.Lease next = cache.lease("vm3", 64);
+        assertEquals(generation, next.getImage());
+        next.release(false);
+        assertNull("nothing to merge", cache.merge());
+    }
+
+    @Test
+    public void testHostileFileNamesAreDropped() throws Exception {
+        Path seedTree = dir.resolve("seed");
+        write(seedTree.resolve("keep.txt"), "seed");
+        Path seed = dir.resolve("cache.ext4");
+        run("mke2fs", "-q", "-F", "-t", "ext4", "-d", seedTree.toString(), seed.toString(), "16M");
+
+        FirecrackerBuildCache cache = new FirecrackerBuildCache(seed);
+        FirecrackerBuildCache.Lease lease = cache.lease("vm1", 64);
+        // Would close the quoted path and run mkdir in the chown script, and in the listing's rdump
+        Path upperTree = dir.resolve("overlay");
+        write(upperTree.resolve("upper/ok.txt"), "ok");
+        write(upperTree.resolve("upper/dir/x\"\nmkdir pwned\n\"y"), "evil");
+        write(upperTree.resolve("upper/a\"\nmkdir pwned2\n\""), "evil");
+        write(upperTree.resolve("upper/back\\slash"), "evil");
+        run("mke2fs", "-q", "-F", "-t", "ext4", "-d", upperTree.toString(), lease.getOverlay().toString(), "64M");
+        lease.release(true);
+
+        Path generation = cache.merge();
+        assertNotNull(generation);
+        assertEquals("ok", run("debugfs", "-R", "cat /ok.txt", generation.toString()));
+        assertEquals("seed", run("debugfs", "-R", "cat /keep.txt", generation.toString()));
+        String root = run("debugfs", "-R", "ls -p /", generation.toString());
+        String sub = run("debugfs", "-R", "ls -p /dir", generation.toString());
+        assertFalse(root, root.contains("pwned") || root.contains("slash"));
+        assertFalse(sub, sub.contains("pwned") || sub.contains("\""));
+
+        assertFalse(FirecrackerBuildCache.isSafeName("a\"b"));
+        assertFalse(FirecrackerBuildCache.isSafeName("a\tb"));
+        assertTrue(FirecrackerBuildCache.isSafeName("a b-c.jar"));
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String run(String... command) throws Exception {
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertEquals(String.join(" ", command), 0, process.waitFor());
+        return output;
+    }
+}
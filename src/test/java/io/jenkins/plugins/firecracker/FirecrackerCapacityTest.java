@@ -0,0 +1,191 @@
+package io.jenkins.plugins.firecracker;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FirecrackerCapacityTest {
+
+    @Test
+    public void testCloudAndTemplateCaps() {
+        FirecrackerCapacity capacity = new FirecrackerCapacity("caps");
+
+        FirecrackerCapacity.Reservation a = capacity.tryReserve("linux", 2, 3, 0, 0, 0, 0, 0, 0);
+        FirecrackerCapacity.Reservation b = capacity.tryReserve("linux", 2, 3, 0, 0, 0, 0, 0, 0);
+        assertNotNull(a);
+        assertNotNull(b);
+        assertNull("template cap", capacity.tryReserve("linux", 2, 3, 0, 0, 0, 0, 0, 0));
+
+        FirecrackerCapacity.Reservation c = capacity.tryReserve("docker", 0, 3, 0, 0, 0, 0, 0, 0);
+        assertNotNull(c);
+        assertNull("cloud cap", capacity.tryReserve("docker", 0, 3, 0, 0, 0, 0, 0, 0));
+        assertEquals(3, capacity.getInstanceCount());
+        assertEquals(2, capacity.getInstanceCount("linux"));
+
+        a.release();
+        a.release();
+        assertEquals(2, capacity.getInstanceCount());
+        assertNotNull(capacity.tryReserve("linux", 2, 3, 0, 0, 0, 0, 0, 0));
+
+        b.release();
+        c.release();
+    }
+
+    @Test
+    public void testCloudResourceCaps() {
+        FirecrackerCapacity capacity = new FirecrackerCapacity("shapes");
+
+        // Two large VMs fill the memory cap, after which only smaller shapes still fit
+        FirecrackerCapacity.Reservation compile = capacity.tryReserve("compile", 0, 0, 4096, 4, 10240, 12, 0, 0);
+        FirecrackerCapacity.Reservation compile2 = capacity.tryReserve("compile", 0, 0, 4096, 4, 10240, 12, 0, 0);
+        assertNotNull(compile);
+        assertNotNull(compile2);
+        assertNull("memory cap", capacity.tryReserve("compile", 0, 0, 4096, 4, 10240, 12, 0, 0));
+        FirecrackerCapacity.Reservation lint = capacity.tryReserve("lint", 0, 0, 512, 1, 10240, 12, 0, 0);
+        assertNotNull(lint);
+        assertEquals(8704, capacity.getMemoryMb());
+        assertEquals(9, capacity.getVcpus());
+        FirecrackerCapacity.Reservation lint2 = capacity.tryReserve("lint", 0, 0, 512, 3, 10240, 12, 0, 0);
+        assertNotNull(lint2);
+        assertNull("vCPU cap", capacity.tryReserve("lint", 0, 0, 512, 1, 10240, 12, 0, 0));
+
+        compile.release();
+        assertEquals(5120, capacity.getMemoryMb());
+        FirecrackerCapacity.Reservation compile3 = capacity.tryReserve("compile", 0, 0, 4096, 4, 10240, 12, 0, 0);
+        assertNotNull(compile3);
+
+        compile2.release();
+        compile3.release();
+        lint.release();
+        lint2.release();
+        assertEquals(0, capacity.getMemoryMb());
+        assertEquals(0, capacity.getVcpus());
+    }
+
+    @Test
+    public void testHostBudgetIsSharedAcrossClouds() {
+        FirecrackerCapacity first = new FirecrackerCapacity("first");
+        FirecrackerCapacity second = new FirecrackerCapacity("second");
+        long memoryBudget = FirecrackerCapacity.getHostMemoryMb() + 2048;
+
+        FirecrackerCapacity.Reservation a = first.tryReserve("", 0, 0, 1024, 1, 0, 0, memoryBudget, 0);
+        FirecrackerCapacity.Reservation b = second.tryReserve("", 0, 0, 1024, 1, 0, 0, memoryBudget, 0);
+        assertNotNull(a);
+        assertNotNull(b);
+        assertNull(first.tryReserve("", 0, 0, 1024, 1, 0, 0, memoryBudget, 0));
+
+        b.release();
+        FirecrackerCapacity.Reservation c = first.tryReserve("", 0, 0, 1024, 1, 0, 0, memoryBudget, 0);
+        assertNotNull(c);
+        int vcpuBudget = FirecrackerCapacity.getHostVcpus();
+        assertNull(first.tryReserve("", 0, 0, 0, 1, 0, 0, 0, vcpuBudget));
+
+        a.release();
+        c.release();
+    }
+
+    @Test
+    public void testControllerBudgetCoversOnlyVmsOnTheController() {
+        FirecrackerCapacity capacity = new FirecrackerCapacity("controller-budget");
+        FirecrackerHost controller = new FirecrackerLocalHost("controller-budget-local");
+        FirecrackerHost remote = new FirecrackerRemoteHost("controller-budget-remote", "http://127.0.0.1:1");
+        for (FirecrackerHost host : Arrays.asList(controller, remote)) {
+            host.setMemoryMb(8192);
+            host.setVcpus(8);
+        }
+        List<FirecrackerHost> hosts = Arrays.asList(controller, remote);
+        long budget = FirecrackerCapacity.getHostMemoryMb() + 2048;
+
+        // A golden VM takes the controller's budget without counting as an instance
+        FirecrackerCapacity.Reservation golden = capacity.tryReserveOnController(1024, 1, budget, 0, hosts);
+        assertNotNull(golden);
+        assertEquals("controller-budget-local", golden.getHostName());
+        assertEquals(0, capacity.getInstanceCount());
+
+        FirecrackerCapacity.Reservation local = capacity.tryReserve("", 0, 0, 1024, 1, 0, 0, budget, 0, hosts,
+                FirecrackerScheduler.Placement.PACK);
+        assertSame(controller, local.getHost());
+        // With the controller full, VMs still go to the remote host, which does not use its budget
+        FirecrackerCapacity.Reservation placed = capacity.tryReserve("", 0, 0, 1024, 1, 0, 0, budget, 0, hosts,
+                FirecrackerScheduler.Placement.PACK);
+        assertSame(remote, placed.getHost());
+        assertNull(capacity.tryReserveOnController(1024, 1, budget, 0, hosts));
+        assertEquals(budget, FirecrackerCapacity.getHostMemoryMb());
+
+        golden.release();
+        FirecrackerCapacity.Reservation rebuilt = capacity.tryReserveOnController(1024, 1, budget, 0, hosts);
+        assertNotNull(rebuilt);
+        rebuilt.release();
+        local.release();
+        placed.release();
+        assertEquals(0, capacity.getInstanceCount());
+        assertEquals(budget - 2048, FirecrackerCapacity.getHostMemoryMb());
+    }
+
+    @Test
+    public void testHostPlacementSkipsDrainingHosts() throws Exception {
+        FirecrackerCapacity capacity = new FirecrackerCapacity("placement");
+        FirecrackerHost small = new FirecrackerLocalHost("placement-small");
+        small.setMemoryMb(2048);
+        small.setVcpus(2);
+        FirecrackerHost large = new FirecrackerRemoteHost("placement-large", "http://127.0.0.1:1");
+        large.setMemoryMb(8192);
+        large.setVcpus(8);
+        List<FirecrackerHost> hosts = Arrays.asList(small, large);
+
+        // Packing fills the small host before touching the large one
+        List<FirecrackerCapacity.Reservation> reservations = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            reservations.add(capacity.tryReserve("", 0, 0, 1024, 1, 0, 0, 0, 0, hosts, FirecrackerScheduler.Placement.PACK));
+        }
+        assertEquals("placement-small", reservations.get(0).getHostName());
+        assertSame(small, reservations.get(1).getHost());
+        assertSame(large, reservations.get(2).getHost());
+        assertEquals(2, FirecrackerCapacity.getInstanceCountOn("placement-small"));
+
+        // The large host is unreachable, and is drained after enough failed checks
+        for (int i = 0; i < FirecrackerHost.FAILURE_THRESHOLD; i++) {
+            assertFalse(large.isDraining());
+            large.checkHealth();
+        }
+        assertTrue(large.isDraining());
+        assertNotNull(large.getLastError());
+        assertNull(capacity.tryReserve("", 0, 0, 1024, 1, 0, 0, 0, 0, hosts, FirecrackerScheduler.Placement.PACK));
+
+        reservations.forEach(FirecrackerCapacity.Reservation::release);
+        assertEquals(0, FirecrackerCapacity.getInstanceCountOn("placement-small"));
+        assertEquals(0, capacity.getInstanceCount());
+    }
+
+    @Test
+    public void testConcurrentReservationsNeverOvershoot() throws Exception {
+        FirecrackerCapacity capacity = new FirecrackerCapacity("burst");
+        ConcurrentLinkedQueue<FirecrackerCapacity.Reservation> granted = new ConcurrentLinkedQueue<>();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            tasks.add(() -> {
+                FirecrackerCapacity.Reservation reservation = capacity.tryReserve("", 0, 10, 0, 0, 0, 0, 0, 0);
+                if (reservation != null) {
+                    granted.add(reservation);
+                }
+            });
+        }
+        tasks.forEach(executor::execute);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(10, granted.size());
+        assertEquals(10, capacity.getInstanceCount());
+        granted.forEach(FirecrackerCapacity.Reservation::release);
+        assertEquals(0, capacity.getInstanceCount());
+    }
+}
@@ -0,0 +1,55 @@
+package io.jenkins.plugins.firecracker;
+
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class FirecrackerCloudTest {
+
+    @Test
+    public void testMetadata() throws IOException {
+        FirecrackerAgentTemplate template = new FirecrackerAgentTemplate();
+        template.setLabelString("linux docker");
+        template.setGuestEnvironment("# comment\nGRADLE_OPTS=-Xmx1g -Dorg.gradle.daemon=false\n\nbroken\nTZ=UTC\r\n");
+        FirecrackerVM vm = new FirecrackerVM("firecracker-pool-1", "rootfs", "vmlinux", 128, 1, "br0",
+                FirecrackerAddressPool.forCidr("10.252.0.0/24").allocate());
+
+        JSONObject metadata = new FirecrackerCloud("metadata-test").createMetadata(template, vm, "firecracker-1-abc", false);
+
+        assertEquals("firecracker-1-abc", metadata.getString("hostname"));
+        assertEquals(vm.getIpAddress(), metadata.getString("address"));
+        assertEquals("10.252.0.1", metadata.getString("gateway"));
+        assertEquals("linux docker", metadata.getString("labels"));
+        JSONObject env = metadata.getJSONObject("env");
+        assertEquals(2, env.size());
+        assertEquals("-Xmx1g -Dorg.gradle.daemon=false", env.getString("GRADLE_OPTS"));
+        assertEquals("UTC", env.getString("TZ"));
+        assertFalse(metadata.has("agent"));
+    }
+
+    @Test
+    public void testFailedCreationReleasesTheAddress() {
+        FirecrackerCloud cloud = new FirecrackerCloud("create-failure") {
+            @Override
+            JSONObject createMetadata(FirecrackerAgentTemplate template, FirecrackerVM vm, String nodeName, boolean inbound) throws IOException {
+                throw new IOException("no metadata");
+            }
+        };
+        cloud.setNetworkCidr("10.245.0.0/24");
+        cloud.setTapPoolSize(0);
+        FirecrackerCapacity capacity = FirecrackerCapacity.forCloud(cloud.name);
+        FirecrackerCapacity.Reservation reservation = capacity.tryReserve("create-failure", 0, 0, 0, 0, 0, 0, 0, 0);
+
+        try {
+            cloud.createVM(new FirecrackerAgentTemplate(), "firecracker-create-failure", reservation);
+            fail("Expected the metadata to fail");
+        } catch (IOException e) {
+            assertEquals("no metadata", e.getMessage());
+        }
+        assertEquals(0, FirecrackerAddressPool.forCidr("10.245.0.0/24").getAllocatedCount());
+        assertEquals(0, capacity.getInstanceCount());
+    }
+}
@@ -0,0 +1,119 @@
+package io.jenkins.plugins.firecracker;
+
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.Session;
+import hudson.model.TaskListener;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class FirecrackerComputerLauncherTest {
+    private static final FirecrackerComputerLauncher.AgentJar AGENT_JAR;
+
+    static {
+        try {
+            AGENT_JAR = new FirecrackerComputerLauncher.AgentJar("agent".getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // sha256sum of "agent"
+    private static final String AGENT_SHA256 = "d4f0bc5a29de06b510f9aa428f1eedba926012b591fef7a518e776a7c9bd1824";
+
+    @Test
+    public void testMatchingBakedJarIsUsed() throws Exception {
+        Connection ssh = mock(Connection.class);
+        Session sha256sum = session(AGENT_JAR.getSha256() + "  /usr/share/jenkins/agent.jar\n"
+                + "0000000000000000000000000000000000000000000000000000000000000000  /home/jenkins/remoting.jar\n");
+        when(ssh.openSession()).thenReturn(sha256sum);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        String jar = FirecrackerComputerLauncher.installAgentJar(ssh, "/home/jenkins", AGENT_JAR, listener(log));
+
+        assertEquals(FirecrackerComputerLauncher.BAKED_AGENT_JAR, jar);
+        verify(sha256sum).execCommand("mkdir -p '/home/jenkins' && sha256sum '/usr/share/jenkins/agent.jar' "
+                + "'/home/jenkins/remoting.jar' 2>/dev/null; true");
+        verify(ssh, times(1)).openSession();
+        assertFalse(log.toString("UTF-8").contains("Copying"));
+    }
+
+    @Test
+    public void testMismatchingJarsAreReplaced() throws Exception {
+        Connection ssh = mock(Connection.class);
+        Session sha256sum = session("0000000000000000000000000000000000000000000000000000000000000000  /home/jenkins/remoting.jar\n");
+        // What an scp sink answers: one zero byte per step
+        Session scp = session("\0\0\0\0\0\0\0\0");
+        when(scp.getStdin()).thenReturn(new ByteArrayOutputStream());
+        when(ssh.openSession()).thenReturn(sha256sum, scp);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        String jar = FirecrackerComputerLauncher.installAgentJar(ssh, "/home/jenkins", AGENT_JAR, listener(log));
+
+        assertEquals("/home/jenkins/remoting.jar", jar);
+        assertTrue(log.toString("UTF-8").contains("Copying agent JAR to /home/jenkins/remoting.jar"));
+    }
+
+    @Test
+    public void testAgentJarDigest() throws IOException {
+        assertEquals(AGENT_SHA256, AGENT_JAR.getSha256());
+    }
+
+    @Test
+    public void testRetryDoublesTheDelay() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+
+        String result = FirecrackerComputerLauncher.retry("SSH to 10.0.0.2", deadline, listener(log), () -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new IOException("Connection refused");
+            }
+            return "connected";
+        });
+
+        assertEquals("connected", result);
+        assertEquals(3, attempts.get());
+        String output = log.toString("UTF-8");
+        assertTrue(output, output.contains("SSH to 10.0.0.2 failed, retrying in 100 ms: Connection refused"));
+        assertTrue(output, output.contains("SSH to 10.0.0.2 failed, retrying in 200 ms: Connection refused"));
+    }
+
+    @Test
+    public void testRetryGivesUpAtTheDeadline() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(250);
+        try {
+            FirecrackerComputerLauncher.retry("SSH to 10.0.0.2", deadline, listener(new ByteArrayOutputStream()), () -> {
+                throw new IOException("attempt " + attempts.incrementAndGet());
+            });
+            fail("expected the last failure");
+        } catch (IOException e) {
+            // The first 100 ms wait fits before the deadline, the next 200 ms does not
+            assertEquals("attempt 2", e.getMessage());
+        }
+    }
+
+    private static Session session(String stdout) {
+        Session session = mock(Session.class);
+        InputStream in = new ByteArrayInputStream(stdout.getBytes(StandardCharsets.UTF_8));
+        when(session.getStdout()).thenReturn(in);
+        return session;
+    }
+
+    private static TaskListener listener(ByteArrayOutputStream log) {
+        TaskListener listener = mock(TaskListener.class);
+        when(listener.getLogger()).thenReturn(new PrintStream(log, true));
+        return listener;
+    }
+}
@@ -0,0 +1,197 @@
+package io.jenkins.plugins.firecracker;
+
+import hudson.util.Secret;
+import io.jenkins.plugins.firecracker.benchmark.FakeFirecracker;
+import net.sf.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives a {@link FirecrackerHostDaemon} running in this JVM through {@link FirecrackerRemoteHost},
+ * with the fake Firecracker binary behind it.
+ */
+public class FirecrackerHostDaemonTest {
+
+    private FakeFirecracker fake;
+    private String previousKvmDevice;
+
+    @Before
+    public void setUp() throws Exception {
+        fake = new FakeFirecracker();
+        previousKvmDevice = FirecrackerHost.KVM_DEVICE;
+        FirecrackerHost.KVM_DEVICE = fake.getKernelImage().toString();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FirecrackerHost.KVM_DEVICE = previousKvmDevice;
+        fake.close();
+    }
+
+    @Test
+    public void testVmLifecycleThroughRemoteHost() throws Exception {
+        try (FirecrackerHostDaemon daemon = daemon("s3cret")) {
+            daemon.start();
+            FirecrackerRemoteHost host = new FirecrackerRemoteHost("loopback", "http://127.0.0.1:" + daemon.getPort());
+            host.setToken(Secret.fromString("s3cret"));
+            host.setNetworkCidr("10.249.0.0/24");
+
+            host.checkHealth();
+            assertNull(host.getLastError());
+            assertTrue(host.getMemoryCapacityMb() > 0);
+            assertTrue(host.getVcpuCapacity() > 0);
+
+            // The daemon shares this JVM's pools, so the controller side allocates from a pool of its own
+            FirecrackerAddressPool pool = new FirecrackerAddressPool("10.249.0.0/24");
+            FirecrackerRemoteVM vm = new FirecrackerRemoteVM(host, "remote-test", fake.getRootfsImage().toString(),
+                    fake.getKernelImage().toString(), 128, 1, pool.allocate());
+            vm.setMetadata(vm.createMetadata().element("labels", "linux"));
+            vm.start();
+            assertTrue(vm.isAlive());
+            assertEquals(1, fake.getServerCount());
+
+            List<String> requests = fake.getServers().iterator().next().getRequests();
+            assertTrue(requests.toString(), requests.stream().anyMatch(r -> r.startsWith("PUT /mmds {") && r.contains("\"labels\":\"linux\"")));
+            assertTrue(requests.toString(), requests.stream().anyMatch(r -> r.contains(vm.getIpAddress())));
+
+            vm.setMetadata(vm.createMetadata().element("hostname", "agent-1"));
+            assertTrue(requests.get(requests.size() - 1).contains("\"hostname\":\"agent-1\""));
+
+            vm.terminateAsync().get(10, TimeUnit.SECONDS);
+            assertFalse(vm.isAlive());
+            assertEquals(0, pool.getAllocatedCount());
+            assertEquals(0, FirecrackerAddressPool.forCidr("10.249.0.0/24").getAllocatedCount());
+        }
+    }
+
+    @Test
+    public void testRequestsNeedTheToken() throws Exception {
+        try (FirecrackerHostDaemon daemon = daemon("s3cret")) {
+            daemon.start();
+            HttpClient client = HttpClient.newHttpClient();
+            URI health = URI.create("http://127.0.0.1:" + daemon.getPort() + "/health");
+
+            HttpResponse<String> denied = client.send(HttpRequest.newBuilder(health).header("Authorization", "Bearer wrong").build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(401, denied.statusCode());
+
+            HttpResponse<String> allowed = client.send(HttpRequest.newBuilder(health).header("Authorization", "Bearer s3cret").build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, allowed.statusCode());
+            assertTrue(JSONObject.fromObject(allowed.body()).getLong("memoryMb") > 0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTokenIsRequired() throws Exception {
+        daemon(null).close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPlainHttpOnlyOnLoopback() throws Exception {
+        new FirecrackerHostDaemon(new InetSocketAddress("0.0.0.0", 0), "br0", 0, "s3cret",
+                fake.getKernelImage().getParent()).close();
+    }
+
+    @Test
+    public void testServesTlsWithTheKeystore() throws Exception {
+        Path keystore = fake.getKernelImage().resolveSibling("daemon.p12");
+        Process keytool = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-keystore", keystore.toString(), "-storetype", "PKCS12", "-storepass", "changeit",
+                "-alias", "daemon", "-keyalg", "RSA", "-dname", "CN=localhost", "-ext", "SAN=ip:127.0.0.1")
+                .inheritIO().start();
+        assertEquals(0, keytool.waitFor());
+        SSLContext tls = FirecrackerHostDaemon.tls(keystore, "changeit");
+
+        try (FirecrackerHostDaemon daemon = new FirecrackerHostDaemon(new InetSocketAddress("0.0.0.0", 0), "br0", 0,
+                "s3cret", fake.getKernelImage().getParent(), tls)) {
+            daemon.start();
+            KeyStore keys = KeyStore.getInstance("PKCS12");
+            try (InputStream in = Files.newInputStream(keystore)) {
+                keys.load(in, "changeit".toCharArray());
+            }
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(keys);
+            SSLContext client = SSLContext.getInstance("TLS");
+            client.init(null, trust.getTrustManagers(), null);
+
+            HttpResponse<String> health = HttpClient.newBuilder().sslContext(client).build().send(
+                    HttpRequest.newBuilder(URI.create("https://127.0.0.1:" + daemon.getPort() + "/health"))
+                            .header("Authorization", "Bearer s3cret").build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, health.statusCode());
+        }
+    }
+
+    @Test
+    public void testRemoteHostNeedsHttpsOffLoopback() {
+        FirecrackerRemoteHost.checkUrl("https://10.0.0.5:7420");
+        FirecrackerRemoteHost.checkUrl("http://127.0.0.1:7420/");
+        FirecrackerRemoteHost.checkUrl("http://localhost:7420");
+        FirecrackerRemoteHost.checkUrl("http://[::1]:7420");
+        for (String url : new String[]{"http://10.0.0.5:7420", "http://127.0.0.1.example.com:7420", "ftp://127.0.0.1"}) {
+            try {
+                FirecrackerRemoteHost.checkUrl(url);
+                fail(url);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testImagesMustBeInTheImageDirectory() throws Exception {
+        Path outside = Files.createTempFile("outside", ".ext4");
+        Path link = fake.getRootfsImage().resolveSibling("link.ext4");
+        Files.createSymbolicLink(link, outside);
+        try (FirecrackerHostDaemon daemon = daemon("s3cret")) {
+            daemon.start();
+            HttpClient client = HttpClient.newHttpClient();
+            JSONObject spec = new JSONObject()
+                    .element("name", "escape-test")
+                    .element("kernelImagePath", fake.getKernelImage().toString())
+                    .element("memorySize", 128)
+                    .element("vcpuCount", 1)
+                    .element("networkCidr", "10.250.0.0/24")
+                    .element("address", "10.250.0.2");
+            for (String image : new String[]{outside.toString(), "../" + outside.getFileName(), link.toString(), "/dev/null"}) {
+                HttpResponse<String> response = client.send(HttpRequest.newBuilder(
+                                URI.create("http://127.0.0.1:" + daemon.getPort() + "/vms/escape"))
+                                .header("Authorization", "Bearer s3cret")
+                                .PUT(HttpRequest.BodyPublishers.ofString(spec.element("vmImagePath", image).toString()))
+                                .build(),
+                        HttpResponse.BodyHandlers.ofString());
+                assertEquals(image, 400, response.statusCode());
+            }
+            assertEquals(0, fake.getServerCount());
+            assertEquals(0, FirecrackerAddressPool.forCidr("10.250.0.0/24").getAllocatedCount());
+        } finally {
+            Files.delete(link);
+            Files.delete(outside);
+        }
+    }
+
+    private FirecrackerHostDaemon daemon(String token) throws Exception {
+        return new FirecrackerHostDaemon(new InetSocketAddress("127.0.0.1", 0), "br0", 0, token,
+                fake.getKernelImage().getParent());
+    }
+}
@@ -0,0 +1,83 @@
+package io.jenkins.plugins.firecracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FirecrackerJailTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private String previousSudo;
+
+    @Before
+    public void setUp() {
+        previousSudo = FirecrackerJail.SUDO_COMMAND;
+        FirecrackerJail.SUDO_COMMAND = "";
+    }
+
+    @After
+    public void tearDown() {
+        FirecrackerJail.SUDO_COMMAND = previousSudo;
+    }
+
+    @Test
+    public void testCommandSetsCgroupLimits() throws Exception {
+        FirecrackerTopology topology = new FirecrackerTopology(
+                Collections.singletonMap(1, new HashSet<>(Arrays.asList(4, 5, 6, 7))), Collections.emptySet());
+        Path base = tmp.getRoot().toPath();
+        FirecrackerJail jail = new FirecrackerJail("vm-1", "/opt/firecracker/bin/firecracker", base, 2, 512, topology.allocate(2));
+
+        List<String> command = jail.command();
+        assertEquals(FirecrackerJail.JAILER_BINARY, command.get(0));
+        assertArgument(command, "--exec-file", "/opt/firecracker/bin/firecracker");
+        assertArgument(command, "--chroot-base-dir", base.toString());
+        assertArgument(command, "--cgroup-version", "2");
+        assertTrue(command.toString(), command.contains("cpu.max=200000 100000"));
+        assertTrue(command.toString(), command.contains("memory.max=" + (512L + FirecrackerJail.MEMORY_OVERHEAD_MB) * 1024 * 1024));
+        assertTrue(command.toString(), command.contains("cpuset.cpus=4-5"));
+        assertTrue(command.toString(), command.contains("cpuset.mems=1"));
+        assertEquals(Arrays.asList("--", "--api-sock", FirecrackerJail.SOCKET), command.subList(command.size() - 3, command.size()));
+        assertEquals(base.resolve("firecracker/vm-1/root/run/firecracker.socket"), jail.getSocketPath());
+    }
+
+    @Test
+    public void testFilesAreLinkedIntoTheChrootAndRemovedWithIt() throws Exception {
+        FirecrackerTopology topology = new FirecrackerTopology(
+                Collections.singletonMap(0, new HashSet<>(Arrays.asList(0, 1))), Collections.emptySet());
+        Path base = tmp.newFolder("jail").toPath();
+        FirecrackerJail jail = new FirecrackerJail("vm-2", "/usr/bin/firecracker", base, 1, 128, topology.allocate(1));
+        jail.prepare();
+
+        Path drive = tmp.newFile("rootfs.ext4").toPath();
+        Files.write(drive, "root".getBytes(StandardCharsets.UTF_8));
+        assertEquals("/rootfs", jail.expose("rootfs", drive));
+        assertEquals("/rootfs", jail.expose("rootfs", drive));
+        Path linked = jail.getRoot().resolve("rootfs");
+        assertTrue(Files.isSameFile(drive, linked));
+
+        jail.delete();
+        assertFalse(Files.exists(jail.getRoot()));
+        assertTrue("the original survives", Files.exists(drive));
+        assertEquals("CPUs are given back", 2, topology.getFreeCpuCount());
+    }
+
+    private static void assertArgument(List<String> command, String option, String value) {
+        int index = command.indexOf(option);
+        assertTrue(option + " in " + command, index >= 0);
+        assertEquals(value, command.get(index + 1));
+    }
+}
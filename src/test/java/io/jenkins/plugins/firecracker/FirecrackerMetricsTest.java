@@ -0,0 +1,67 @@
+package io.jenkins.plugins.firecracker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FirecrackerMetricsTest {
+
+    @Test
+    public void testHistogramQuantiles() {
+        FirecrackerHistogram histogram = new FirecrackerHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 10);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(50500, histogram.getSumMillis());
+        assertEquals(1000, histogram.getMaxMillis());
+        double p50 = histogram.getQuantileMillis(0.5);
+        assertTrue("p50 was " + p50, p50 >= 200 && p50 <= 500);
+        double p99 = histogram.getQuantileMillis(0.99);
+        assertTrue("p99 was " + p99, p99 > 500 && p99 <= 1000);
+        assertEquals(0, new FirecrackerHistogram().getQuantileMillis(0.5), 0);
+    }
+
+    @Test
+    public void testTimelineFeedsTemplateHistograms() {
+        FirecrackerTimeline timeline = new FirecrackerTimeline();
+        timeline.setTemplate("metrics-test");
+        timeline.record(FirecrackerTimeline.Phase.SOCKET_WAIT, 1000, 120);
+        timeline.record(FirecrackerTimeline.Phase.HOST_SETUP, 900, 80);
+
+        assertEquals(FirecrackerTimeline.Phase.HOST_SETUP, timeline.getEntries().get(0).getPhase());
+        assertEquals(900, timeline.getStartMillis());
+        assertEquals(1, FirecrackerMetrics.getPhase("metrics-test", FirecrackerTimeline.Phase.SOCKET_WAIT).getCount());
+
+        String text = FirecrackerMetrics.toPrometheus();
+        assertTrue(text.contains("# TYPE firecracker_provisioning_phase_seconds histogram\n"));
+        assertTrue(text.contains(
+                "firecracker_provisioning_phase_seconds_bucket{template=\"metrics-test\",phase=\"socket_wait\",le=\"0.200\"} 1\n"));
+        assertTrue(text.contains(
+                "firecracker_provisioning_phase_seconds_count{template=\"metrics-test\",phase=\"socket_wait\"} 1\n"));
+        assertTrue(text.contains(
+                "firecracker_provisioning_phase_quantile_seconds{template=\"metrics-test\",phase=\"socket_wait\",quantile=\"0.95\"}"));
+        assertFalse("phases without samples are not exported",
+                text.contains("template=\"metrics-test\",phase=\"ssh_wait\""));
+    }
+
+    @Test
+    public void testTimeToAgentIsSplitByLaunchMode() {
+        FirecrackerMetrics.recordTimeToAgent(FirecrackerMetrics.BootPath.COLD, FirecrackerCloud.LaunchMode.INBOUND, 1500);
+
+        assertEquals(0, FirecrackerMetrics.getTimeToAgent(FirecrackerMetrics.BootPath.COLD, FirecrackerCloud.LaunchMode.SSH).getCount());
+        String text = FirecrackerMetrics.toPrometheus();
+        assertTrue(text.contains("firecracker_time_to_agent_seconds_count{boot_path=\"cold\",launch_mode=\"inbound\"} 1\n"));
+        assertTrue(text.contains("firecracker_time_to_agent_seconds_count{boot_path=\"warm\",launch_mode=\"ssh\"} 0\n"));
+    }
+
+    @Test
+    public void testUnattributedTimelineIsNotExported() {
+        FirecrackerTimeline timeline = new FirecrackerTimeline();
+        timeline.record(FirecrackerTimeline.Phase.GUEST_BOOT, 0, 5000);
+
+        assertEquals(1, timeline.getEntries().size());
+        assertFalse(FirecrackerMetrics.toPrometheus().contains("phase=\"guest_boot\""));
+    }
+}
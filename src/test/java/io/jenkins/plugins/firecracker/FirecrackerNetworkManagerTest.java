@@ -0,0 +1,83 @@
+package io.jenkins.plugins.firecracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class FirecrackerNetworkManagerTest {
+
+    private Path script;
+    private FirecrackerNetworkManager manager;
+
+    @Before
+    public void setUp() throws IOException {
+        // Fails commands mentioning "missing" and exits on "exit", like ip -force -batch -
+        script = Files.createTempFile("fake-ip", ".sh");
+        Files.write(script, ("#!/bin/sh\n"
+                + "n=0\n"
+                + "while IFS= read -r line; do\n"
+                + "  n=$((n + 1))\n"
+                + "  case \"$line\" in\n"
+                + "    exit) exit 0 ;;\n"
+                + "    *missing*|'link show dev '*)\n"
+                + "      echo 'Cannot find device' >&2\n"
+                + "      echo \"Command failed -:$n\" >&2 ;;\n"
+                + "  esac\n"
+                + "done\n").getBytes(StandardCharsets.UTF_8));
+        assertTrue(script.toFile().setExecutable(true));
+        manager = new FirecrackerNetworkManager(Collections.singletonList(script.toString()));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        manager.close();
+        Files.deleteIfExists(script);
+    }
+
+    @Test
+    public void testFailuresAreMatchedToCommands() throws Exception {
+        FirecrackerNetworkManager.Result result = manager.execute(Arrays.asList(
+                "tuntap add fc-tap0 mode tap", "link set fc-tap0 master missing0", "link set fc-tap0 up"));
+
+        assertFalse(result.isSuccessful());
+        assertEquals(1, result.getFailures().size());
+        assertEquals("link set fc-tap0 master missing0", result.getFailures().get(0).getCommand());
+        assertEquals("Cannot find device", result.getFailures().get(0).getMessage());
+
+        // Line numbers carry on across requests to the same helper
+        FirecrackerNetworkManager.Result next = manager.execute(Arrays.asList(
+                "tuntap del fc-tap0 mode tap", "tuntap del missing1 mode tap"));
+        assertEquals(1, next.getFailures().size());
+        assertEquals("tuntap del missing1 mode tap", next.getFailures().get(0).getCommand());
+
+        assertTrue(manager.execute(Collections.singletonList("link set fc-tap1 up")).isSuccessful());
+    }
+
+    @Test
+    public void testHelperIsRestartedAfterExit() throws Exception {
+        try {
+            manager.execute(Collections.singletonList("exit"));
+            fail("expected the helper to exit");
+        } catch (IOException e) {
+            assertEquals("Network helper exited", e.getMessage());
+        }
+
+        FirecrackerNetworkManager.Result result = manager.execute(Collections.singletonList("tuntap add missing2 mode tap"));
+        assertEquals(1, result.getFailures().size());
+        try {
+            result.check();
+            fail("expected check to throw");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("tuntap add missing2 mode tap: Cannot find device"));
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package io.jenkins.plugins.firecracker;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import static org.junit.Assert.*;
+
+public class FirecrackerProvisioningExecutorTest {
+
+    @Test
+    public void testOneExecutorPerCloud() {
+        FirecrackerProvisioningExecutor executor = FirecrackerProvisioningExecutor.forCloud("provisioning-shared", 2);
+        assertSame(executor, FirecrackerProvisioningExecutor.forCloud("provisioning-shared", 2));
+        assertNotSame(executor, FirecrackerProvisioningExecutor.forCloud("provisioning-other", 2));
+        assertEquals("at least one thread", 1, FirecrackerProvisioningExecutor.forCloud("provisioning-empty", 0).getThreads());
+    }
+
+    @Test
+    public void testCountersAndResize() throws Exception {
+        FirecrackerProvisioningExecutor executor = FirecrackerProvisioningExecutor.forCloud("provisioning-resize", 1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            tasks.add(executor.submit(() -> {
+                release.await();
+                return null;
+            }));
+        }
+        await(executor::getInFlight, 1);
+        assertEquals(2, executor.getQueueDepth());
+
+        // Growing the cloud's limit starts the queued work
+        assertSame(executor, FirecrackerProvisioningExecutor.forCloud("provisioning-resize", 3));
+        assertEquals(3, executor.getThreads());
+        executor.submit(() -> null);
+        await(executor::getInFlight, 3);
+        assertEquals(1, executor.getQueueDepth());
+
+        // Shrinking it lets running work finish
+        FirecrackerProvisioningExecutor.forCloud("provisioning-resize", 1);
+        assertEquals(1, executor.getThreads());
+        assertEquals(3, executor.getInFlight());
+
+        release.countDown();
+        for (Future<Void> task : tasks) {
+            task.get(10, TimeUnit.SECONDS);
+        }
+        await(executor::getInFlight, 0);
+        await(executor::getQueueDepth, 0);
+    }
+
+    private static void await(IntSupplier value, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (value.getAsInt() != expected) {
+            assertTrue("expected " + expected + " but was " + value.getAsInt(), System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package io.jenkins.plugins.firecracker;
+
+import io.jenkins.plugins.firecracker.benchmark.FakeFirecracker;
+import net.sf.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FirecrackerRateLimitsTest {
+
+    private Path pressureFile;
+    private String previousPressureFile;
+
+    @Before
+    public void setUp() throws IOException {
+        pressureFile = Files.createTempFile("pressure", ".txt");
+        previousPressureFile = FirecrackerRateLimits.PRESSURE_FILE;
+        FirecrackerRateLimits.PRESSURE_FILE = pressureFile.toString();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        setPressure(0);
+        FirecrackerRateLimits.adjust();
+        FirecrackerRateLimits.PRESSURE_FILE = previousPressureFile;
+        Files.deleteIfExists(pressureFile);
+    }
+
+    @Test
+    public void testReadPressure() throws IOException {
+        assertEquals(12.5, FirecrackerRateLimits.readPressure(
+                "some avg10=12.50 avg60=3.00 avg300=1.00 total=123\nfull avg10=40.00 avg60=0.00 avg300=0.00 total=0\n"), 0.001);
+    }
+
+    @Test
+    public void testLimiters() {
+        FirecrackerRateLimits limits = new FirecrackerRateLimits(1000, 50, 0);
+        JSONObject drive = limits.getDriveLimiter();
+        assertEquals(1000, drive.getJSONObject("bandwidth").getLong("size"));
+        assertEquals(1000, drive.getJSONObject("bandwidth").getLong("refill_time"));
+        assertEquals(50, drive.getJSONObject("ops").getLong("size"));
+        // Unlimited buckets are empty
+        assertEquals(0, limits.getNetworkLimiter().getJSONObject("bandwidth").getLong("size"));
+        assertEquals(0, limits.getNetworkLimiter().getJSONObject("bandwidth").getLong("refill_time"));
+
+        FirecrackerRateLimits halved = limits.withDiskShare(0.5);
+        assertEquals(500, halved.getDiskBytesPerSecond());
+        assertEquals(25, halved.getDiskOpsPerSecond());
+        assertEquals(0, halved.getNetworkBytesPerSecond());
+        assertEquals(limits.toString(), FirecrackerRateLimits.fromJson(limits.toJson()).toString());
+    }
+
+    @Test
+    public void testLimitsFollowIoPressure() throws Exception {
+        try (FakeFirecracker fake = new FakeFirecracker()) {
+            FirecrackerVM vm = new FirecrackerVM("qos-test", fake.getRootfsImage().toString(),
+                    fake.getKernelImage().toString(), 128, 1, "br0",
+                    FirecrackerAddressPool.forCidr("10.248.0.0/24").allocate());
+            vm.setRateLimits(new FirecrackerRateLimits(4000, 100, 8000));
+            vm.start();
+            try {
+                List<String> requests = fake.getServers().iterator().next().getRequests();
+                assertEquals(4000, body(requests, "PUT /drives/rootfs ").getJSONObject("rate_limiter")
+                        .getJSONObject("bandwidth").getLong("size"));
+                assertEquals(8000, body(requests, "PUT /network-interfaces/eth0 ").getJSONObject("tx_rate_limiter")
+                        .getJSONObject("bandwidth").getLong("size"));
+
+                setPressure(FirecrackerRateLimits.PRESSURE_THRESHOLD + 1);
+                FirecrackerRateLimits.adjust();
+                assertTrue(FirecrackerRateLimits.isContended());
+                JSONObject tightened = body(requests, "PATCH /drives/rootfs ").getJSONObject("rate_limiter");
+                assertEquals(2000, tightened.getJSONObject("bandwidth").getLong("size"));
+                assertEquals(50, tightened.getJSONObject("ops").getLong("size"));
+                assertEquals(8000, body(requests, "PATCH /network-interfaces/eth0 ").getJSONObject("rx_rate_limiter")
+                        .getJSONObject("bandwidth").getLong("size"));
+
+                // Still above half the threshold, so nothing changes
+                int patches = requests.size();
+                setPressure(FirecrackerRateLimits.PRESSURE_THRESHOLD * 0.75);
+                FirecrackerRateLimits.adjust();
+                assertEquals(patches, requests.size());
+
+                setPressure(0);
+                FirecrackerRateLimits.adjust();
+                assertFalse(FirecrackerRateLimits.isContended());
+                assertEquals(4000, body(requests, "PATCH /drives/rootfs ").getJSONObject("rate_limiter")
+                        .getJSONObject("bandwidth").getLong("size"));
+            } finally {
+                vm.terminate();
+            }
+        }
+    }
+
+    private void setPressure(double avg10) throws IOException {
+        Files.write(pressureFile, String.format("some avg10=%.2f avg60=0.00 avg300=0.00 total=0%n", avg10)
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    // The body of the last request starting with the prefix
+    private static JSONObject body(List<String> requests, String prefix) {
+        for (int i = requests.size() - 1; i >= 0; i--) {
+            if (requests.get(i).startsWith(prefix)) {
+                return JSONObject.fromObject(requests.get(i).substring(prefix.length()));
+            }
+        }
+        throw new AssertionError("No " + prefix + "in " + requests);
+    }
+}
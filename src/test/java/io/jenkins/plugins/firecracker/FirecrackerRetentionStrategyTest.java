@@ -0,0 +1,93 @@
+package io.jenkins.plugins.firecracker;
+
+import hudson.model.Computer;
+import hudson.model.Node;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class FirecrackerRetentionStrategyTest {
+
+    @Test
+    public void testNextCheckIsWhenTheIdleTimeoutExpires() {
+        FirecrackerRetentionStrategy strategy = new FirecrackerRetentionStrategy("30");
+        FirecrackerAgent.FirecrackerComputer computer = onlineComputer();
+
+        when(computer.isIdle()).thenReturn(false);
+        assertEquals(30, strategy.check(computer));
+
+        when(computer.isIdle()).thenReturn(true);
+        when(computer.getIdleStartMilliseconds()).thenReturn(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(10));
+        assertEquals(20, strategy.check(computer));
+        verify(computer, never()).setAcceptingTasks(false);
+    }
+
+    @Test
+    public void testDisabledOrInvalidTimeoutBacksOff() {
+        FirecrackerAgent.FirecrackerComputer computer = onlineComputer();
+        when(computer.getIdleStartMilliseconds()).thenReturn(0L);
+
+        assertEquals(60, new FirecrackerRetentionStrategy("0").check(computer));
+        assertEquals(60, new FirecrackerRetentionStrategy("soon").check(computer));
+        verify(computer, never()).setAcceptingTasks(false);
+    }
+
+    @Test
+    public void testPendingInboundAgentIsCheckedEveryMinuteWithoutIdleTimeout() {
+        FirecrackerAgent.FirecrackerComputer computer = onlineComputer();
+        when(computer.isOffline()).thenReturn(true);
+        FirecrackerAgent node = mock(FirecrackerAgent.class);
+        when(node.isAwaitingLaunch()).thenReturn(true);
+        when(node.isLaunchOverdue()).thenReturn(false);
+        when(computer.getNode()).thenReturn(node);
+
+        assertEquals(1, new FirecrackerRetentionStrategy("0").check(computer));
+        verify(computer, never()).setAcceptingTasks(false);
+
+        // Once connected, the disabled timeout backs off again
+        when(computer.isOffline()).thenReturn(false);
+        when(node.isAwaitingLaunch()).thenReturn(false);
+        assertEquals(60, new FirecrackerRetentionStrategy("0").check(computer));
+    }
+
+    @Test
+    public void testIdleFloorIsKeptAcrossOnePass() {
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            nodes.add(agent("idle-floor", "small", onlineComputer()));
+        }
+        Computer busy = onlineComputer();
+        when(busy.isIdle()).thenReturn(false);
+        nodes.add(agent("idle-floor", "small", busy));
+        nodes.add(agent("idle-floor", "large", onlineComputer()));
+
+        FirecrackerAgent expiring = (FirecrackerAgent) nodes.get(0);
+        assertTrue(FirecrackerRetentionStrategy.takeIdlePeer(expiring, 1, nodes));
+        assertTrue(FirecrackerRetentionStrategy.takeIdlePeer(expiring, 1, nodes));
+        assertFalse("one idle agent stays", FirecrackerRetentionStrategy.takeIdlePeer(expiring, 1, nodes));
+        assertFalse(FirecrackerRetentionStrategy.takeIdlePeer((FirecrackerAgent) nodes.get(4), 1, nodes));
+    }
+
+    private static FirecrackerAgent agent(String cloudName, String label, Computer computer) {
+        FirecrackerAgent agent = mock(FirecrackerAgent.class);
+        when(agent.getCloudName()).thenReturn(cloudName);
+        when(agent.getLabelString()).thenReturn(label);
+        when(agent.toComputer()).thenReturn(computer);
+        return agent;
+    }
+
+    private static FirecrackerAgent.FirecrackerComputer onlineComputer() {
+        FirecrackerAgent.FirecrackerComputer computer = mock(FirecrackerAgent.FirecrackerComputer.class);
+        when(computer.isIdle()).thenReturn(true);
+        when(computer.isOffline()).thenReturn(false);
+        when(computer.isOnline()).thenReturn(true);
+        when(computer.isConnecting()).thenReturn(false);
+        when(computer.isAcceptingTasks()).thenReturn(true);
+        return computer;
+    }
+}
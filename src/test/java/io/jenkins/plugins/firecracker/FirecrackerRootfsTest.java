@@ -0,0 +1,107 @@
+package io.jenkins.plugins.firecracker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class FirecrackerRootfsTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testSparseCopyPreservesContentAndLength() throws Exception {
+        Path base = tmp.newFile("rootfs.ext4").toPath();
+        try (RandomAccessFile file = new RandomAccessFile(base.toFile(), "rw")) {
+            file.setLength(10 * 1024 * 1024 + 123);
+            file.seek(4096 * 3 + 17);
+            file.write("superblock".getBytes());
+            file.seek(8 * 1024 * 1024);
+            file.write(new byte[]{1, 2, 3});
+        }
+
+        Path copy = tmp.getRoot().toPath().resolve("copy.ext4");
+        FirecrackerRootfs.sparseCopy(base, copy);
+
+        assertEquals(Files.size(base), Files.size(copy));
+        assertTrue(Arrays.equals(Files.readAllBytes(base), Files.readAllBytes(copy)));
+    }
+
+    @Test
+    public void testCloneIsPrivateAndDeleted() throws Exception {
+        Path base = tmp.newFile("rootfs.ext4").toPath();
+        Files.write(base, "base".getBytes());
+
+        FirecrackerRootfs rootfs = FirecrackerRootfs.create(base, "vm1", FirecrackerRootfs.Strategy.SPARSE_COPY);
+        assertEquals(FirecrackerRootfs.Strategy.SPARSE_COPY, rootfs.getStrategy());
+        assertNotEquals(base, rootfs.getRootPath());
+        assertFalse(rootfs.isReadOnly());
+        assertNull(rootfs.getScratchPath());
+
+        Files.write(rootfs.getRootPath(), "written by the guest".getBytes());
+        assertEquals("base", new String(Files.readAllBytes(base)));
+
+        rootfs.delete();
+        assertFalse(Files.exists(rootfs.getRootPath()));
+        assertTrue(Files.exists(base));
+    }
+
+    @Test
+    public void testOnlyMissingReflinkSupportFallsBack() {
+        assertTrue(FirecrackerRootfs.isReflinkUnsupported("cp --reflink=always a b failed: cp: failed to clone 'b' from 'a': Operation not supported"));
+        assertTrue(FirecrackerRootfs.isReflinkUnsupported("cp --reflink=always a b failed: cp: failed to clone 'b' from 'a': Invalid cross-device link"));
+        assertTrue(FirecrackerRootfs.isReflinkUnsupported("cp --reflink=always a b failed: cp: failed to clone 'b' from 'a': Inappropriate ioctl for device"));
+        assertFalse(FirecrackerRootfs.isReflinkUnsupported("cp --reflink=always a b failed: cp: failed to clone 'b' from 'a': No space left on device"));
+        assertFalse(FirecrackerRootfs.isReflinkUnsupported("cp --reflink=always a b failed: cp: cannot open 'a' for reading: Permission denied"));
+        assertFalse(FirecrackerRootfs.isReflinkUnsupported(null));
+    }
+
+    @Test
+    public void testAutoFallsBackWithoutReflinkSupport() throws Exception {
+        Path base = tmp.newFile("rootfs.ext4").toPath();
+        Files.write(base, "base".getBytes());
+        Process probe = new ProcessBuilder("cp", "--reflink=always", base.toString(), base + ".probe").start();
+        assumeTrue("the temporary folder supports reflinks", probe.waitFor() != 0);
+
+        try {
+            FirecrackerRootfs.create(base, "vm1", FirecrackerRootfs.Strategy.REFLINK);
+            fail("Expected the reflink to fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), FirecrackerRootfs.isReflinkUnsupported(e.getMessage()));
+        }
+
+        FirecrackerRootfs rootfs = FirecrackerRootfs.create(base, "vm2", FirecrackerRootfs.Strategy.AUTO);
+        assertEquals(FirecrackerRootfs.Strategy.SPARSE_COPY, rootfs.getStrategy());
+        assertEquals("base", new String(Files.readAllBytes(rootfs.getRootPath())));
+        rootfs.delete();
+    }
+
+    @Test
+    public void testOverlaySharesBaseReadOnly() throws Exception {
+        Path base = tmp.newFile("rootfs.ext4").toPath();
+
+        FirecrackerRootfs golden = FirecrackerRootfs.create(base, "golden", FirecrackerRootfs.Strategy.OVERLAY);
+        assertEquals(base, golden.getRootPath());
+        assertTrue(golden.isReadOnly());
+        assertNotNull(golden.getScratchPath());
+
+        FirecrackerRootfs clone = golden.cloneFor("vm1", FirecrackerRootfs.Strategy.OVERLAY);
+        assertEquals(base, clone.getRootPath());
+        assertNotEquals(golden.getScratchPath(), clone.getScratchPath());
+        assertEquals(Files.size(golden.getScratchPath()), Files.size(clone.getScratchPath()));
+
+        clone.delete();
+        golden.delete();
+        assertFalse(Files.exists(clone.getScratchPath()));
+        assertTrue(Files.exists(base));
+    }
+}
@@ -0,0 +1,42 @@
+package io.jenkins.plugins.firecracker;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FirecrackerSchedulerTest {
+
+    private static final List<FirecrackerScheduler.Candidate> HOSTS = Arrays.asList(
+            // Half full
+            new FirecrackerScheduler.Candidate("busy", 8192, 8, 4096, 4, 4),
+            // Empty
+            new FirecrackerScheduler.Candidate("idle", 8192, 8, 0, 0, 0),
+            // Out of vCPUs
+            new FirecrackerScheduler.Candidate("full", 16384, 4, 1024, 4, 4));
+
+    @Test
+    public void testPackPicksTheFullestHostWithRoom() {
+        assertEquals("busy", FirecrackerScheduler.choose(HOSTS, 1024, 1, FirecrackerScheduler.Placement.PACK).name);
+    }
+
+    @Test
+    public void testSpreadPicksTheEmptiestHost() {
+        assertEquals("idle", FirecrackerScheduler.choose(HOSTS, 1024, 1, FirecrackerScheduler.Placement.SPREAD).name);
+    }
+
+    @Test
+    public void testNoHostWithRoom() {
+        assertNull(FirecrackerScheduler.choose(HOSTS, 16384, 1, FirecrackerScheduler.Placement.PACK));
+    }
+
+    @Test
+    public void testHostsOfUnknownCapacityTakeTurns() {
+        List<FirecrackerScheduler.Candidate> hosts = Arrays.asList(
+                new FirecrackerScheduler.Candidate("a", 0, 0, 2048, 2, 2),
+                new FirecrackerScheduler.Candidate("b", 0, 0, 1024, 1, 1));
+        assertEquals("b", FirecrackerScheduler.choose(hosts, 1024, 1, FirecrackerScheduler.Placement.PACK).name);
+    }
+}
@@ -0,0 +1,101 @@
+package io.jenkins.plugins.firecracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class FirecrackerTapPoolTest {
+
+    private Path dir;
+    private Path sys;
+    private Path log;
+    private String previousIpCommand;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("tap-pool");
+        sys = Files.createDirectory(dir.resolve("net"));
+        log = dir.resolve("ip.log");
+        Path ip = dir.resolve("ip");
+        // Logs every command; link show fails like ip does for a missing device
+        Files.write(ip, ("#!/bin/sh\n"
+                + "n=0\n"
+                + "while IFS= read -r line; do\n"
+                + "  n=$((n + 1))\n"
+                + "  case \"$line\" in\n"
+                + "    'link show dev '*) echo \"Command failed -:$n\" >&2 ;;\n"
+                + "    *) echo \"$line\" >> '" + log + "' ;;\n"
+                + "  esac\n"
+                + "done\n").getBytes(StandardCharsets.UTF_8));
+        assertTrue(ip.toFile().setExecutable(true));
+        previousIpCommand = FirecrackerVM.IP_COMMAND;
+        FirecrackerVM.IP_COMMAND = ip.toString();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FirecrackerNetworkManager.get().close();
+        FirecrackerVM.IP_COMMAND = previousIpCommand;
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Test
+    public void testReconcileAdoptsIdleTapsAndSkipsBusyOnes() throws Exception {
+        FirecrackerTapPool pool = new FirecrackerTapPool("cloud@br0", "br0", 2, sys);
+        String idle = pool.getPrefix() + "0";
+        String busy = pool.getPrefix() + "1";
+        Files.createDirectory(sys.resolve(idle));
+        Files.createSymbolicLink(sys.resolve(idle).resolve("master"), dir.resolve("br1"));
+        Files.createDirectory(sys.resolve(busy));
+        Files.write(sys.resolve(busy).resolve("carrier"), "1\n".getBytes(StandardCharsets.US_ASCII));
+        Files.createDirectory(sys.resolve("eth0"));
+
+        pool.reconcile();
+
+        assertEquals(2, pool.getIdleCount());
+        List<String> commands = Files.readAllLines(log);
+        assertTrue(commands.contains("link set " + idle + " master br0"));
+        assertTrue(commands.contains("tuntap add " + pool.getPrefix() + "2 mode tap"));
+        assertFalse(commands.toString().contains(busy));
+
+        FirecrackerTapPool.Lease lease = pool.lease();
+        assertEquals(idle, lease.getName());
+        assertTrue(lease.getSetupCommands().isEmpty());
+    }
+
+    @Test
+    public void testReleasedTapsAreRecycledUpToTheSize() throws Exception {
+        FirecrackerTapPool pool = new FirecrackerTapPool("cloud@br0", "br0", 1, sys);
+        FirecrackerTapPool.Lease first = pool.lease();
+        FirecrackerTapPool.Lease second = pool.lease();
+        assertNotEquals(first.getName(), second.getName());
+        assertEquals(3, first.getSetupCommands().size());
+        first.markCreated();
+        second.markCreated();
+
+        first.release();
+        second.release();
+        first.release();
+
+        assertEquals(1, pool.getIdleCount());
+        List<String> commands = Files.readAllLines(log);
+        assertTrue(commands.contains("neigh flush dev " + first.getName()));
+        assertTrue(commands.contains("tuntap del " + second.getName() + " mode tap"));
+        assertFalse(commands.contains("tuntap del " + first.getName() + " mode tap"));
+        assertEquals(first.getName(), pool.lease().getName());
+    }
+}
@@ -0,0 +1,107 @@
+package io.jenkins.plugins.firecracker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class FirecrackerTopologyTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testListFormat() {
+        assertEquals(set(0, 1, 2, 3, 8, 10, 11), FirecrackerTopology.parseList("0-3,8,10-11\n"));
+        assertEquals("0-3,8,10-11", FirecrackerTopology.formatList(set(11, 10, 8, 3, 2, 1, 0)));
+        assertEquals("5", FirecrackerTopology.formatList(set(5)));
+        assertTrue(FirecrackerTopology.parseList("").isEmpty());
+    }
+
+    @Test
+    public void testReadNodesFromSysfs() throws Exception {
+        Path sys = tmp.newFolder("system").toPath();
+        write(sys.resolve("node/node0/cpulist"), "0-3,8-11\n");
+        write(sys.resolve("node/node1/cpulist"), "4-7,12-15\n");
+        write(sys.resolve("node/possible"), "0-1\n");
+        Map<Integer, Set<Integer>> nodes = FirecrackerTopology.read(sys);
+        assertEquals(2, nodes.size());
+        assertEquals("4-7,12-15", FirecrackerTopology.formatList(nodes.get(1)));
+    }
+
+    @Test
+    public void testMachinesWithoutNumaAreOneNode() throws Exception {
+        Path sys = tmp.newFolder("system").toPath();
+        write(sys.resolve("cpu/online"), "0-7\n");
+        assertEquals(Collections.singletonMap(0, set(0, 1, 2, 3, 4, 5, 6, 7)), FirecrackerTopology.read(sys));
+    }
+
+    @Test
+    public void testAllocationsStayOnOneNodeAndNeverOverlap() {
+        Map<Integer, Set<Integer>> nodes = new TreeMap<>();
+        nodes.put(0, set(0, 1, 2, 3));
+        nodes.put(1, set(4, 5, 6, 7));
+        FirecrackerTopology topology = new FirecrackerTopology(nodes, set(0));
+
+        // Best fit: node 0 has 3 free CPUs, node 1 has 4
+        FirecrackerTopology.Allocation first = topology.allocate(2);
+        assertEquals(0, first.getNode());
+        assertEquals(set(1, 2), first.getCpus());
+
+        // Node 0 has a single CPU left, so a 2-vCPU VM goes to node 1
+        FirecrackerTopology.Allocation second = topology.allocate(2);
+        assertEquals(1, second.getNode());
+        assertEquals(set(4, 5), second.getCpus());
+
+        assertNull("no node has 3 free CPUs", topology.allocate(3));
+        assertEquals(3, topology.getFreeCpuCount());
+
+        second.release();
+        second.release();
+        assertEquals(5, topology.getFreeCpuCount());
+        assertEquals(set(4, 5, 6), topology.allocate(3).getCpus());
+    }
+
+    @Test
+    public void testVmsGetWholeCores() throws Exception {
+        Path sys = tmp.newFolder("system").toPath();
+        write(sys.resolve("node/node0/cpulist"), "0-3,8-11\n");
+        for (int cpu = 0; cpu < 4; cpu++) {
+            write(sys.resolve("cpu/cpu" + cpu + "/topology/thread_siblings_list"), cpu + "," + (cpu + 8) + "\n");
+            write(sys.resolve("cpu/cpu" + (cpu + 8) + "/topology/thread_siblings_list"), cpu + "," + (cpu + 8) + "\n");
+        }
+        Map<Integer, Set<Integer>> nodes = FirecrackerTopology.read(sys);
+        Map<Integer, Set<Integer>> siblings = FirecrackerTopology.readSiblings(sys, nodes);
+        assertEquals(set(2, 10), siblings.get(10));
+        FirecrackerTopology topology = new FirecrackerTopology(nodes, siblings, set(0));
+
+        assertEquals(set(1, 9), topology.allocate(2).getCpus());
+        // CPU 0 is reserved, so its sibling is the best fit for one vCPU
+        assertEquals(set(8), topology.allocate(1).getCpus());
+        FirecrackerTopology.Allocation three = topology.allocate(3);
+        assertEquals(set(2, 3, 10), three.getCpus());
+        assertEquals(set(11), topology.allocate(1).getCpus());
+        three.release();
+        assertEquals(set(2, 10), topology.allocate(2).getCpus());
+    }
+
+    private static Set<Integer> set(Integer... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+
+    private static void write(Path file, String content) throws Exception {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
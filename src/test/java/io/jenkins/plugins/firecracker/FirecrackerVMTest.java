@@ -0,0 +1,222 @@
+package io.jenkins.plugins.firecracker;
+
+import hudson.Util;
+import io.jenkins.plugins.firecracker.benchmark.FakeFirecracker;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class FirecrackerVMTest {
+
+    @Test
+    public void testParseAnnouncedAddress() {
+        assertEquals("172.16.0.2", FirecrackerVM.parseAnnouncedAddress(" ip=172.16.0.2"));
+        assertEquals("172.16.0.2", FirecrackerVM.parseAnnouncedAddress(" host=agent ip=172.16.0.2 sshd=up"));
+    }
+
+    @Test
+    public void testParseAnnouncedAddressWithoutAddress() {
+        assertNull(FirecrackerVM.parseAnnouncedAddress(""));
+        assertNull(FirecrackerVM.parseAnnouncedAddress(" ip="));
+    }
+
+    @Test
+    public void testTerminateAsyncKillsAfterGracePeriod() throws Exception {
+        try (FakeFirecracker fake = new FakeFirecracker()) {
+            FirecrackerAddressPool pool = FirecrackerAddressPool.forCidr("10.251.0.0/24");
+            FirecrackerVM vm = new FirecrackerVM("terminate-test", fake.getRootfsImage().toString(),
+                    fake.getKernelImage().toString(), 128, 1, "br0", pool.allocate());
+            vm.start();
+            assertTrue(vm.isAlive());
+
+            // The fake ignores SendCtrlAltDel, so it is killed once the grace period is over
+            FirecrackerVM.TERMINATION_GRACE_MILLIS = 500;
+            CompletableFuture<Void> termination = vm.terminateAsync();
+            assertFalse("terminateAsync must not wait for the VM", termination.isDone());
+            assertSame(termination, vm.terminateAsync());
+
+            termination.get(10, TimeUnit.SECONDS);
+            assertFalse(vm.isAlive());
+            assertEquals(0, pool.getAllocatedCount());
+        }
+    }
+
+    @Test
+    public void testMetadataIsInPlaceBeforeInstanceStart() throws Exception {
+        try (FakeFirecracker fake = new FakeFirecracker()) {
+            FirecrackerVM vm = new FirecrackerVM("mmds-test", fake.getRootfsImage().toString(),
+                    fake.getKernelImage().toString(), 128, 1, "br0",
+                    FirecrackerAddressPool.forCidr("10.253.0.0/24").allocate());
+            vm.setMetadata(vm.createMetadata().element("labels", "linux"));
+            vm.start();
+            try {
+                List<String> requests = fake.getServers().iterator().next().getRequests();
+                int config = indexOf(requests, "PUT /mmds/config ");
+                int data = indexOf(requests, "PUT /mmds {");
+                int start = indexOf(requests, "PUT /actions ");
+                assertTrue(requests.toString(), config >= 0 && config < data && data < start);
+                JSONObject document = JSONObject.fromObject(requests.get(data).substring("PUT /mmds ".length()));
+                assertEquals("linux", document.getJSONObject("jenkins").getString("labels"));
+                assertEquals(vm.getIpAddress(), document.getJSONObject("jenkins").getString("address"));
+
+                // A running VM gets the new document straight away
+                vm.setMetadata(vm.createMetadata().element("hostname", "agent-1"));
+                assertTrue(requests.get(requests.size() - 1).contains("\"hostname\":\"agent-1\""));
+            } finally {
+                vm.terminate();
+            }
+        }
+    }
+
+    @Test
+    public void testColdBootedSnapshotGuestIsOfferedItsOwnAddress() throws Exception {
+        try (FakeFirecracker fake = new FakeFirecracker()) {
+            FirecrackerVM vm = new FirecrackerVM("cold-snapshot-test", fake.getRootfsImage().toString(),
+                    fake.getKernelImage().toString(), 128, 1, "br0",
+                    FirecrackerAddressPool.forCidr("10.253.0.0/24").allocate());
+            vm.setReaddressOffered(true);
+            vm.start();
+            try {
+                JSONObject metadata = lastMetadata(fake.getServers().iterator().next().getRequests());
+                assertEquals(vm.getIpAddress(), metadata.getString("address"));
+                assertEquals(vm.getIpAddress(), metadata.getJSONObject("readdress").getString("address"));
+                assertEquals(metadata.getString("mac"), metadata.getJSONObject("readdress").getString("mac"));
+            } finally {
+                vm.terminate();
+            }
+        }
+    }
+
+    @Test
+    public void testConfigFileBoot() throws Exception {
+        Path configDir = Files.createTempDirectory("firecracker-config");
+        String previousConfigDir = FirecrackerVM.CONFIG_DIR;
+        FirecrackerVM.CONFIG_DIR = configDir.toString();
+        try (FakeFirecracker fake = new FakeFirecracker()) {
+            FirecrackerAddressPool pool = FirecrackerAddressPool.forCidr("10.249.0.0/24");
+            FirecrackerVM first = configFileVM(fake, pool, "config-file-1");
+            FirecrackerVM second = configFileVM(fake, pool, "config-file-2");
+            try {
+                first.start();
+                second.start();
+
+                JSONObject config = read(configDir.resolve("firecracker-" + second.getId() + ".json"));
+                assertTrue(config.getJSONObject("boot-source").getString("boot_args").contains(second.getIpAddress()));
+                assertEquals("rootfs", config.getJSONArray("drives").getJSONObject(0).getString("drive_id"));
+                assertEquals(2000, config.getJSONArray("drives").getJSONObject(0).getJSONObject("rate_limiter")
+                        .getJSONObject("bandwidth").getLong("size"));
+                assertEquals(256, config.getJSONObject("machine-config").getInt("mem_size_mib"));
+                assertEquals("V2", config.getJSONObject("mmds-config").getString("version"));
+                assertNotEquals(read(configDir.resolve("firecracker-" + first.getId() + ".json"))
+                        .getJSONArray("network-interfaces").getJSONObject(0).getString("guest_mac"),
+                        config.getJSONArray("network-interfaces").getJSONObject(0).getString("guest_mac"));
+                assertEquals("linux", read(configDir.resolve("firecracker-" + second.getId() + "-metadata.json"))
+                        .getJSONObject("jenkins").getString("labels"));
+
+                for (FakeFirecrackerApiServer server : fake.getServers()) {
+                    List<String> requests = server.getRequests();
+                    assertEquals(requests.toString(), -1, indexOf(requests, "PUT /boot-source "));
+                    assertEquals(requests.toString(), -1, indexOf(requests, "PUT /drives/"));
+                    assertEquals(requests.toString(), -1, indexOf(requests, "PUT /actions "));
+                }
+
+                // The API is still there for metadata updates
+                second.setMetadata(second.createMetadata().element("hostname", "agent-2"));
+                assertTrue(fake.getServers().stream().anyMatch(server -> server.getRequests().stream()
+                        .anyMatch(request -> request.startsWith("PUT /mmds ") && request.contains("agent-2"))));
+            } finally {
+                first.terminate();
+                second.terminate();
+                FirecrackerVM.CONFIG_DIR = previousConfigDir;
+            }
+            try (Stream<Path> left = Files.list(configDir)) {
+                assertEquals("config files are removed with the VM", 0, left.count());
+            }
+        } finally {
+            Files.deleteIfExists(configDir);
+        }
+    }
+
+    @Test
+    public void testRestoredVmIsReadyOnceItHasMovedToItsAddress() throws Exception {
+        try (FakeFirecracker fake = new FakeFirecracker()) {
+            FirecrackerAddressPool pool = FirecrackerAddressPool.forCidr("10.254.0.0/24");
+            FirecrackerAddressPool.Lease golden = pool.allocate();
+            Path goldenDir = Files.createTempDirectory("golden");
+            Path goldenRootfs = goldenDir.resolve("rootfs.ext4");
+            Files.copy(fake.getRootfsImage(), goldenRootfs);
+            FirecrackerSnapshotStore.Snapshot snapshot = new FirecrackerSnapshotStore.Snapshot("restore-test",
+                    goldenDir.resolve("vmstate"), goldenDir.resolve("memory"),
+                    FirecrackerRootfs.existing(goldenRootfs, false, null, FirecrackerRootfs.Strategy.SPARSE_COPY), golden);
+
+            FirecrackerVM vm = new FirecrackerVM("restore-test", fake.getRootfsImage().toString(),
+                    fake.getKernelImage().toString(), 128, 1, "br0", pool.allocate());
+            try {
+                vm.restore(snapshot);
+                FakeFirecrackerApiServer server = fake.getServers().iterator().next();
+                JSONObject pending = lastMetadata(server.getRequests());
+                assertFalse("the guest does not have its address yet", pending.has("address"));
+                assertEquals(vm.getIpAddress(), pending.getJSONObject("readdress").getString("address"));
+                assertNotEquals(golden.getMacAddress(), pending.getJSONObject("readdress").getString("mac"));
+
+                // Still on the golden VM's address
+                fake.printOnConsole(server, FirecrackerVM.READY_MARKER + " ip=" + golden.getAddress());
+                TimeUnit.MILLISECONDS.sleep(500);
+                assertFalse(vm.getReadyFuture().isDone());
+
+                fake.printOnConsole(server, FirecrackerVM.READY_MARKER + " ip=" + vm.getIpAddress());
+                assertEquals("ready on the address the controller connects to",
+                        vm.getIpAddress(), vm.getReadyFuture().get(10, TimeUnit.SECONDS));
+                JSONObject moved = lastMetadata(server.getRequests());
+                assertEquals(vm.getIpAddress(), moved.getString("address"));
+                assertFalse(moved.has("readdress"));
+                vm.terminate();
+                assertEquals("the golden address stays allocated", 1, pool.getAllocatedCount());
+            } finally {
+                vm.terminate();
+                golden.release();
+                Util.deleteRecursive(goldenDir.toFile());
+            }
+        }
+    }
+
+    private static JSONObject lastMetadata(List<String> requests) {
+        for (int i = requests.size() - 1; i >= 0; i--) {
+            if (requests.get(i).startsWith("PUT /mmds {")) {
+                return JSONObject.fromObject(requests.get(i).substring("PUT /mmds ".length())).getJSONObject("jenkins");
+            }
+        }
+        throw new AssertionError("No metadata in " + requests);
+    }
+
+    private static FirecrackerVM configFileVM(FakeFirecracker fake, FirecrackerAddressPool pool, String name) throws Exception {
+        FirecrackerVM vm = new FirecrackerVM(name, fake.getRootfsImage().toString(),
+                fake.getKernelImage().toString(), 256, 1, "br0", pool.allocate());
+        vm.setRateLimits(new FirecrackerRateLimits(2000, 0, 0));
+        vm.setConfigFileBoot(true);
+        vm.setMetadata(vm.createMetadata().element("labels", "linux"));
+        return vm;
+    }
+
+    private static JSONObject read(Path file) throws Exception {
+        return JSONObject.fromObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+
+    private static int indexOf(List<String> requests, String prefix) {
+        for (int i = 0; i < requests.size(); i++) {
+            if (requests.get(i).startsWith(prefix)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,81 @@
+package io.jenkins.plugins.firecracker;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class FirecrackerWarmPoolTest {
+
+    @Test
+    public void testOneShotReplacementIsTakenOnce() throws Exception {
+        FirecrackerAgentTemplate template = oneShotTemplate();
+        FirecrackerWarmPool pool = FirecrackerWarmPool.get(new BootingCloud("warm-pool-replacement", false), template);
+
+        pool.prewarm();
+        awaitBoots(pool);
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(1, pool.getMaxIdle());
+
+        FirecrackerWarmPool.WarmVM warm = pool.take();
+        assertNotNull(warm);
+        assertEquals("10.0.0.2", warm.getIpAddress());
+        assertEquals(0, pool.getMaxIdle());
+        assertNull("a replacement stands in for one agent only", pool.take());
+        pool.drain();
+    }
+
+    @Test
+    public void testFailedReplacementGivesBackItsSlot() throws Exception {
+        FirecrackerAgentTemplate template = oneShotTemplate();
+        FirecrackerWarmPool pool = FirecrackerWarmPool.get(new BootingCloud("warm-pool-failure", true), template);
+
+        pool.prewarm();
+        pool.prewarm();
+        awaitBoots(pool);
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getMaxIdle());
+        pool.drain();
+    }
+
+    private static FirecrackerAgentTemplate oneShotTemplate() {
+        FirecrackerAgentTemplate template = new FirecrackerAgentTemplate();
+        template.setLabelString("one-shot");
+        template.setOneShot(true);
+        return template;
+    }
+
+    private static void awaitBoots(FirecrackerWarmPool pool) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (pool.getBootingCount() > 0) {
+            assertTrue("boots did not finish", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static final class BootingCloud extends FirecrackerCloud {
+        private final boolean failing;
+
+        BootingCloud(String name, boolean failing) {
+            super(name);
+            this.failing = failing;
+        }
+
+        @Override
+        FirecrackerVM bootVM(FirecrackerAgentTemplate template, String vmName, FirecrackerCapacity.Reservation reservation) throws IOException {
+            reservation.release();
+            if (failing) {
+                throw new IOException("host is out of taps");
+            }
+            FirecrackerVM vm = mock(FirecrackerVM.class);
+            when(vm.getName()).thenReturn(vmName);
+            when(vm.getIpAddress()).thenReturn("10.0.0.2");
+            when(vm.isAlive()).thenReturn(true);
+            when(vm.terminateAsync()).thenReturn(CompletableFuture.completedFuture(null));
+            return vm;
+        }
+    }
+}
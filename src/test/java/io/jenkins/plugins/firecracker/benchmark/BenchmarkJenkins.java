@@ -0,0 +1,61 @@
+package io.jenkins.plugins.firecracker.benchmark;
+
+import jenkins.model.Jenkins;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.Closeable;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs a {@link JenkinsRule} instance for the lifetime of a JMH trial. The rule only offers
+ * a statement-wrapping lifecycle, so it is evaluated on its own thread and held open until
+ * {@link #close()}.
+ */
+final class BenchmarkJenkins implements Closeable {
+    private final JenkinsRule rule = new JenkinsRule();
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch stop = new CountDownLatch(1);
+    private final Thread thread;
+    private volatile Throwable failure;
+
+    BenchmarkJenkins() throws Exception {
+        rule.timeout = 0;
+        Statement hold = new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                started.countDown();
+                stop.await();
+            }
+        };
+        thread = new Thread(() -> {
+            try {
+                rule.apply(hold, Description.createTestDescription(BenchmarkJenkins.class, "benchmark")).evaluate();
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                started.countDown();
+            }
+        }, "benchmark-jenkins");
+        thread.start();
+        started.await();
+        if (failure != null) {
+            throw new Exception("Jenkins failed to start", failure);
+        }
+    }
+
+    Jenkins get() {
+        return rule.jenkins;
+    }
+
+    @Override
+    public void close() {
+        stop.countDown();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package io.jenkins.plugins.firecracker.benchmark;
+
+import io.jenkins.plugins.firecracker.FakeFirecrackerApiServer;
+import io.jenkins.plugins.firecracker.FirecrackerVM;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Replaces the {@code firecracker} and {@code ip} commands with scripts so VMs can be started
+ * without KVM or root.
+ *
+ * <p>The fake {@code firecracker} announces its {@code --api-sock} path on a FIFO and then
+ * copies a console file to its output until it is killed, so tests can write the guest's
+ * serial console with {@link #printOnConsole}; a listener thread binds a
+ * {@link FakeFirecrackerApiServer} on that path.
+ * The fake {@code ip} is {@link #FAKE_IP}. Small sparse kernel and rootfs images are provided
+ * as well.
+ */
+public final class FakeFirecracker implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(FakeFirecracker.class.getName());
+
+    /**
+     * An {@code ip -force -batch -} stand-in: every command succeeds except {@code link show},
+     * which reports a missing device the way {@code ip} does.
+     */
+    public static final String FAKE_IP = "#!/bin/sh\n"
+            + "n=0\n"
+            + "while IFS= read -r line; do\n"
+            + "  n=$((n + 1))\n"
+            + "  case \"$line\" in\n"
+            + "    'link show dev '*)\n"
+            + "      echo \"Device \\\"${line#link show dev }\\\" does not exist.\" >&2\n"
+            + "      echo \"Command failed -:$n\" >&2 ;;\n"
+            + "  esac\n"
+            + "done\n";
+
+    private final Path dir;
+    private final Path fifo;
+    private final Path kernelImage;
+    private final Path rootfsImage;
+    private final String previousBinary;
+    private final String previousIpCommand;
+    private final long previousGraceMillis;
+    private final Map<Path, FakeFirecrackerApiServer> servers = new ConcurrentHashMap<>();
+    private final Thread listener;
+    private volatile boolean closed;
+
+    public FakeFirecracker() throws IOException, InterruptedException {
+        dir = Files.createTempDirectory("fake-firecracker");
+        fifo = dir.resolve("launches");
+        Process mkfifo = new ProcessBuilder("mkfifo", fifo.toString()).inheritIO().start();
+        if (mkfifo.waitFor() != 0) {
+            throw new IOException("mkfifo failed");
+        }
+
+        Path firecracker = script("firecracker",
+                "#!/bin/sh\n"
+                        + "# firecracker --api-sock <path>\n"
+                        + "console='" + dir + "'/console-$(basename \"$(dirname \"$2\")\")\n"
+                        + ": > \"$console\"\n"
+                        + "echo \"$2\" > '" + fifo + "'\n"
+                        + "exec tail -n +1 -f \"$console\"\n");
+        Path ip = script("ip", FAKE_IP);
+
+        kernelImage = image("vmlinux", 1024 * 1024);
+        rootfsImage = image("rootfs.ext4", 64 * 1024 * 1024);
+
+        previousBinary = FirecrackerVM.FIRECRACKER_BINARY;
+        previousIpCommand = FirecrackerVM.IP_COMMAND;
+        FirecrackerVM.FIRECRACKER_BINARY = firecracker.toString();
+        FirecrackerVM.IP_COMMAND = ip.toString();
+        // The fake ignores SendCtrlAltDel, so waiting for it to shut down would only add latency
+        previousGraceMillis = FirecrackerVM.TERMINATION_GRACE_MILLIS;
+        FirecrackerVM.TERMINATION_GRACE_MILLIS = 0;
+
+        listener = new Thread(this::listen, "fake-firecracker-launches");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    public Path getKernelImage() {
+        return kernelImage;
+    }
+
+    public Path getRootfsImage() {
+        return rootfsImage;
+    }
+
+    /** The fake API servers currently bound, one per live VM. */
+    public Collection<FakeFirecrackerApiServer> getServers() {
+        return servers.values();
+    }
+
+    /** Appends a line to the serial console of the VM whose API server this is. */
+    public void printOnConsole(FakeFirecrackerApiServer server, String line) throws IOException {
+        for (Map.Entry<Path, FakeFirecrackerApiServer> entry : servers.entrySet()) {
+            if (entry.getValue() == server) {
+                Files.write(dir.resolve("console-" + entry.getKey().getParent().getFileName()),
+                        (line + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Not a live VM's server");
+    }
+
+    /** Number of fake API servers currently bound, one per live VM. */
+    public int getServerCount() {
+        return servers.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        FirecrackerVM.FIRECRACKER_BINARY = previousBinary;
+        FirecrackerVM.IP_COMMAND = previousIpCommand;
+        FirecrackerVM.TERMINATION_GRACE_MILLIS = previousGraceMillis;
+        // Wake the listener, which may be blocked opening the FIFO; opened read-write, the FIFO
+        // does not block if the listener has not opened it yet
+        try (RandomAccessFile writer = new RandomAccessFile(fifo.toFile(), "rw")) {
+            writer.write('\n');
+        }
+        for (FakeFirecrackerApiServer server : servers.values()) {
+            server.close();
+        }
+        servers.clear();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private void listen() {
+        while (!closed) {
+            // Reading hits end of file whenever the last writer closes, so reopen for the next launch
+            try (BufferedReader reader = Files.newBufferedReader(fifo, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty() && !closed) {
+                        reap();
+                        Path socket = Paths.get(line);
+                        servers.put(socket, new FakeFirecrackerApiServer(socket));
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    LOGGER.log(Level.WARNING, "Failed to serve a fake Firecracker launched through " + fifo, e);
+                }
+            }
+        }
+    }
+
+    /** Closes the servers of VMs whose socket was deleted by {@code terminate()}. */
+    private void reap() throws IOException {
+        Iterator<Map.Entry<Path, FakeFirecrackerApiServer>> it = servers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, FakeFirecrackerApiServer> entry = it.next();
+            if (!Files.exists(entry.getKey())) {
+                entry.getValue().close();
+                it.remove();
+            }
+        }
+    }
+
+    private Path script(String name, String content) throws IOException {
+        Path script = dir.resolve(name);
+        Files.write(script, content.getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(script, PosixFilePermissions.fromString("rwxr-xr-x"));
+        return script;
+    }
+
+    private Path image(String name, long size) throws IOException {
+        Path image = dir.resolve(name);
+        try (RandomAccessFile file = new RandomAccessFile(image.toFile(), "rw")) {
+            file.setLength(size);
+            file.write("fake".getBytes(StandardCharsets.US_ASCII));
+        }
+        return image;
+    }
+}
@@ -0,0 +1,75 @@
+package io.jenkins.plugins.firecracker.benchmark;
+
+import io.jenkins.plugins.firecracker.FakeFirecrackerApiServer;
+import io.jenkins.plugins.firecracker.FirecrackerApiClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the in-JVM API client with forking {@code curl --unix-socket} per call,
+ * against a local fake Firecracker socket.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FirecrackerApiClientBenchmark {
+    private static final String BODY = "{\"vcpu_count\": 2, \"mem_size_mib\": 1024, \"ht_enabled\": false}";
+
+    private Path dir;
+    private FakeFirecrackerApiServer server;
+    private FirecrackerApiClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("fc-bench");
+        server = new FakeFirecrackerApiServer(dir.resolve("api.socket"));
+        client = new FirecrackerApiClient(server.getSocketPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        server.close();
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public FirecrackerApiClient.Response client() throws IOException {
+        return client.request("PUT", "/machine-config", BODY);
+    }
+
+    @Benchmark
+    public void curl() throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(
+                "curl", "-s", "--unix-socket", server.getSocketPath().toString(),
+                "-X", "PUT",
+                "-H", "Accept: application/json",
+                "-H", "Content-Type: application/json",
+                "-d", BODY,
+                "http://localhost/machine-config")
+                .redirectErrorStream(true)
+                .start();
+        process.getInputStream().readAllBytes();
+        if (process.waitFor() != 0) {
+            throw new IOException("curl exited with " + process.exitValue());
+        }
+    }
+}
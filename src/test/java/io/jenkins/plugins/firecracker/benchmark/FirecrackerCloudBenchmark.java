@@ -0,0 +1,101 @@
+package io.jenkins.plugins.firecracker.benchmark;
+
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.slaves.NodeProvisioner;
+import io.jenkins.plugins.firecracker.FirecrackerAgent;
+import io.jenkins.plugins.firecracker.FirecrackerAgentTemplate;
+import io.jenkins.plugins.firecracker.FirecrackerCloud;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provisioning decisions on a cloud with many templates, where the requested label matches
+ * the last template. {@code provision} measures only the planning done on the
+ * {@code NodeProvisioner} thread; the planned boots are awaited and torn down outside the
+ * measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FirecrackerCloudBenchmark {
+    @Param({"1", "10", "100"})
+    public int templates;
+
+    private BenchmarkJenkins jenkins;
+    private FakeFirecracker fake;
+    private FirecrackerCloud cloud;
+    private Label label;
+    private final List<NodeProvisioner.PlannedNode> planned = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        jenkins = new BenchmarkJenkins();
+        fake = new FakeFirecracker();
+
+        List<FirecrackerAgentTemplate> list = new ArrayList<>();
+        for (int i = 0; i < templates; i++) {
+            FirecrackerAgentTemplate template = new FirecrackerAgentTemplate();
+            template.setLabelString("bench-" + i);
+            list.add(template);
+        }
+        cloud = new FirecrackerCloud("bench");
+        cloud.setVmImagePath(fake.getRootfsImage().toString());
+        cloud.setKernelImagePath(fake.getKernelImage().toString());
+        cloud.setNetworkCidr("10.251.0.0/16");
+        cloud.setInstanceCap(1000);
+        cloud.setTemplates(list);
+        jenkins.get().clouds.add(cloud);
+        label = Label.get("bench-" + (templates - 1));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fake.close();
+        jenkins.close();
+    }
+
+    @TearDown(Level.Invocation)
+    public void awaitPlanned() {
+        for (NodeProvisioner.PlannedNode node : planned) {
+            try {
+                Node agent = node.future.get(30, TimeUnit.SECONDS);
+                ((FirecrackerAgent) agent).getVm().terminate();
+            } catch (Exception e) {
+                // A failed boot has already released its VM
+            }
+        }
+        planned.clear();
+    }
+
+    @Benchmark
+    public boolean canProvision() {
+        return cloud.canProvision(label);
+    }
+
+    @Benchmark
+    public Collection<NodeProvisioner.PlannedNode> provision() {
+        Collection<NodeProvisioner.PlannedNode> nodes = cloud.provision(label, 1);
+        planned.addAll(nodes);
+        return nodes;
+    }
+}
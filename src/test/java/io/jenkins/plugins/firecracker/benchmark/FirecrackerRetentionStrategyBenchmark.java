@@ -0,0 +1,86 @@
+package io.jenkins.plugins.firecracker.benchmark;
+
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.SlaveComputer;
+import io.jenkins.plugins.firecracker.FirecrackerAgent;
+import io.jenkins.plugins.firecracker.FirecrackerRetentionStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One {@code ComputerRetentionWork} pass: {@link FirecrackerRetentionStrategy#check} over every
+ * Firecracker computer. The agents are never connected, so this measures the per-computer
+ * gating that runs on each retention pass rather than the idle-termination path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FirecrackerRetentionStrategyBenchmark {
+    @Param({"10", "100", "500"})
+    public int computers;
+
+    private BenchmarkJenkins jenkins;
+    private final List<FirecrackerAgent.FirecrackerComputer> list = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        jenkins = new BenchmarkJenkins();
+        for (int i = 0; i < computers; i++) {
+            FirecrackerAgent agent = new FirecrackerAgent(
+                    "bench-" + i, "benchmark agent", "/home/jenkins", 1, null,
+                    Collections.emptyList(), "10.252." + (i / 250) + "." + (i % 250 + 2), null, "30");
+            agent.setLauncher(new IdleLauncher());
+            jenkins.get().addNode(agent);
+        }
+        for (Computer computer : jenkins.get().getComputers()) {
+            if (computer instanceof FirecrackerAgent.FirecrackerComputer) {
+                list.add((FirecrackerAgent.FirecrackerComputer) computer);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        jenkins.close();
+    }
+
+    @Benchmark
+    public long check() {
+        long next = 0;
+        for (FirecrackerAgent.FirecrackerComputer computer : list) {
+            FirecrackerAgent node = computer.getNode();
+            if (node != null) {
+                next += ((FirecrackerRetentionStrategy) node.getRetentionStrategy()).check(computer);
+            }
+        }
+        return next;
+    }
+
+    /** Leaves the computer disconnected instead of trying SSH to an address nobody answers on. */
+    private static final class IdleLauncher extends ComputerLauncher {
+        @Override
+        public void launch(SlaveComputer computer, TaskListener listener) {
+        }
+    }
+}
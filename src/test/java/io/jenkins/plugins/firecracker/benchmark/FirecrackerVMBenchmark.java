@@ -0,0 +1,81 @@
+package io.jenkins.plugins.firecracker.benchmark;
+
+import io.jenkins.plugins.firecracker.FirecrackerAddressPool;
+import io.jenkins.plugins.firecracker.FirecrackerVM;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host-side cost of starting and terminating a VM: rootfs clone, tap setup, process launch,
+ * API socket wait and the configuration calls, against {@link FakeFirecracker}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FirecrackerVMBenchmark {
+    private FakeFirecracker fake;
+    private FirecrackerAddressPool pool;
+    private FirecrackerVM started;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fake = new FakeFirecracker();
+        pool = FirecrackerAddressPool.forCidr("10.240.0.0/16");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fake.close();
+    }
+
+    @TearDown(Level.Invocation)
+    public void terminateStarted() {
+        if (started != null) {
+            started.terminate();
+            started = null;
+        }
+    }
+
+    @Benchmark
+    public FirecrackerVM start() throws Exception {
+        started = newVM();
+        started.start();
+        return started;
+    }
+
+    @Benchmark
+    public void startAndTerminate() throws Exception {
+        FirecrackerVM vm = newVM();
+        try {
+            vm.start();
+        } finally {
+            vm.terminate();
+        }
+    }
+
+    private FirecrackerVM newVM() throws Exception {
+        return new FirecrackerVM(
+                "bench",
+                fake.getRootfsImage().toString(),
+                fake.getKernelImage().toString(),
+                128,
+                1,
+                "br0",
+                pool.allocate());
+    }
+}